@@ -0,0 +1,85 @@
+/**
+ * Class representing aggregates over the records matching a query
+ */
+public class Aggregate {
+
+    /**
+     * Number of matching records
+     */
+    private long count;
+
+    /**
+     * Sum of averageRating of matching records
+     */
+    private double sumRating;
+
+    /**
+     * Sum of numVotes of matching records
+     */
+    private long sumVotes;
+
+    /**
+     * Construct an empty aggregate
+     */
+    public Aggregate() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Construct an aggregate with all attributes
+     *
+     * @param count     number of matching records
+     * @param sumRating sum of averageRating
+     * @param sumVotes  sum of numVotes
+     */
+    public Aggregate(long count, double sumRating, long sumVotes) {
+        this.count = count;
+        this.sumRating = sumRating;
+        this.sumVotes = sumVotes;
+    }
+
+    /**
+     * Add a matching record to the aggregate
+     *
+     * @param rating   averageRating of the record
+     * @param numVotes numVotes of the record
+     */
+    public void add(float rating, int numVotes) {
+        count++;
+        sumRating += rating;
+        sumVotes += numVotes;
+    }
+
+    /**
+     * Merge another aggregate into this aggregate
+     *
+     * @param other aggregate to be merged
+     */
+    public void merge(Aggregate other) {
+        count += other.count;
+        sumRating += other.sumRating;
+        sumVotes += other.sumVotes;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSumRating() {
+        return sumRating;
+    }
+
+    public long getSumVotes() {
+        return sumVotes;
+    }
+
+    public double getAverageRating() {
+        return count == 0 ? 0.0 : sumRating / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, avg(averageRating)=%.4f, sum(numVotes)=%d", count, getAverageRating(),
+                sumVotes);
+    }
+}
@@ -0,0 +1,265 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Class representing an asynchronous query API over a storage. Point and aggregate
+ * queries complete a CompletableFuture, and range queries are streamed to a
+ * Flow.Subscriber in batches fetched only as the subscriber requests them, so a range
+ * result is never buffered whole. Queries run on virtual threads when the runtime
+ * provides them, otherwise on a work-stealing pool
+ */
+public class AsyncStorage implements AutoCloseable {
+
+    /**
+     * Default number of records fetched from the storage per batch of a range stream
+     */
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Storage being queried
+     */
+    private final Storage storage;
+
+    /**
+     * Executor running the queries
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Number of records fetched from the storage per batch of a range stream
+     */
+    private final int batchSize;
+
+    /**
+     * Construct an asynchronous API running queries on the default executor
+     *
+     * @param storage storage being queried
+     */
+    public AsyncStorage(Storage storage) {
+        this(storage, newDefaultExecutor(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Construct an asynchronous API running queries on the given executor
+     *
+     * @param storage   storage being queried
+     * @param executor  executor running the queries
+     * @param batchSize number of records fetched per batch of a range stream
+     */
+    public AsyncStorage(Storage storage, ExecutorService executor, int batchSize) {
+        this.storage = storage;
+        this.executor = executor;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Create an executor starting one virtual thread per query if the runtime supports
+     * virtual threads, otherwise a work-stealing pool sized to the processors
+     *
+     * @return executor running the queries
+     */
+    public static ExecutorService newDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+    }
+
+    /**
+     * Search for records given the key (numVotes), using index
+     *
+     * @param key search key value
+     * @return future of the records matching the key value
+     */
+    public CompletableFuture<List<Record>> searchBPT(int key) {
+        return submit(() -> storage.searchBPT(key));
+    }
+
+    /**
+     * Search for a record given its tconst, using the hash index
+     *
+     * @param tconst tconst value
+     * @return future of the record, completed with null if not found
+     */
+    public CompletableFuture<Record> searchTconst(String tconst) {
+        return submit(() -> storage.searchTconst(tconst));
+    }
+
+    /**
+     * Count records given the numVotes bounds from the subtree counts of the B+ tree
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return future of the number of records within the bounds
+     */
+    public CompletableFuture<Long> countBPT(int lower, int upper) {
+        return submit(() -> storage.countBPT(lower, upper));
+    }
+
+    /**
+     * Average the averageRating of records given the numVotes bounds
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return future of the average, or 0 if there is no record
+     */
+    public CompletableFuture<Double> averageRatingBPT(int lower, int upper) {
+        return submit(() -> storage.averageRatingBPT(lower, upper));
+    }
+
+    /**
+     * Aggregate the records matching all predicates of a query
+     *
+     * @param query conjunctive query
+     * @return future of the count and sums of the matching records
+     */
+    public CompletableFuture<Aggregate> aggregate(Query query) {
+        return submit(() -> storage.aggregate(query));
+    }
+
+    /**
+     * Stream the records given the lower and upper bounds of numVotes in key order.
+     * Each subscription walks the range on its own, fetching the next batch only once
+     * the records of the previous batch have been requested. Every batch reflects the
+     * storage when it is fetched, and each key is delivered at most once
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return publisher of the records
+     */
+    public Flow.Publisher<Record> searchBPT(int lower, int upper) {
+        return subscriber -> {
+            RangeSubscription subscription = new RangeSubscription(subscriber, lower, upper);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    /**
+     * Run a query on the executor with the storage bound to the thread running it, so
+     * that B+ tree operations of the query log to this storage
+     *
+     * @param query query to run
+     * @return future of the query result
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> query) {
+        return CompletableFuture.supplyAsync(() -> Node.withStorage(storage, query), executor);
+    }
+
+    /**
+     * Stop accepting queries, letting running queries finish
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Subscription streaming a numVotes range to one subscriber. Signals are emitted by
+     * a single drain loop at a time, run on the executor whenever demand is added
+     */
+    private class RangeSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super Record> subscriber;
+        private final int upper;
+
+        /**
+         * Smallest key not yet fetched, only accessed by the drain loop
+         */
+        private long cursor;
+
+        /**
+         * Records fetched but not yet delivered, only accessed by the drain loop
+         */
+        private final Queue<Record> buffer = new ArrayDeque<>();
+
+        /**
+         * Number of records requested and not yet delivered
+         */
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * Number of pending drain requests, so that only one drain loop runs at a time
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        RangeSubscription(Flow.Subscriber<? super Record> subscriber, int lower, int upper) {
+            this.subscriber = subscriber;
+            this.cursor = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(() -> Node.withStorage(storage, () -> {
+                    drain();
+                    return null;
+                }));
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                try {
+                    while (!cancelled) {
+                        if (error != null) {
+                            cancelled = true;
+                            subscriber.onError(error);
+                        } else if (buffer.isEmpty() && cursor > upper) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                        } else if (demand.get() == 0) {
+                            break;
+                        } else if (buffer.isEmpty()) {
+                            List<Record> batch = new ArrayList<>();
+                            cursor = storage.searchBPTBatch(cursor, upper, batchSize, batch);
+                            buffer.addAll(batch);
+                        } else {
+                            demand.decrementAndGet();
+                            subscriber.onNext(buffer.poll());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if (!cancelled) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                    }
+                }
+                if (cancelled) {
+                    buffer.clear();
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
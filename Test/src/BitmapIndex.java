@@ -0,0 +1,105 @@
+/**
+ * Class representing a bitmap index on averageRating.
+ * averageRating has one decimal place, so each distinct value is mapped to a bucket
+ * (rating * 10) holding a compressed bitmap of the record slots having that rating
+ */
+public class BitmapIndex {
+
+    /**
+     * Number of buckets, covering ratings from 0.0 to 10.0
+     */
+    private static final int NUM_OF_BUCKET = 101;
+
+    /**
+     * Bitmaps of record slots, one for each rating bucket
+     */
+    private CompressedBitmap[] buckets;
+
+    /**
+     * Construct an empty bitmap index
+     */
+    public BitmapIndex() {
+        buckets = new CompressedBitmap[NUM_OF_BUCKET];
+        for (int i = 0; i < NUM_OF_BUCKET; i++) {
+            buckets[i] = new CompressedBitmap();
+        }
+    }
+
+    /**
+     * Add a record slot to the bitmap of its rating
+     *
+     * @param rating averageRating of the record
+     * @param slot   record slot
+     */
+    public void add(float rating, int slot) {
+        buckets[toBucket(rating)].add(slot);
+    }
+
+    /**
+     * Remove a record slot from the bitmap of its rating
+     *
+     * @param rating averageRating of the record
+     * @param slot   record slot
+     */
+    public void remove(float rating, int slot) {
+        buckets[toBucket(rating)].remove(slot);
+    }
+
+    /**
+     * Search for record slots with rating within the given lower and upper bounds
+     *
+     * @param lower lower bound of rating, inclusive
+     * @param upper upper bound of rating, inclusive
+     * @return bitmap of matching record slots
+     */
+    public CompressedBitmap search(float lower, float upper) {
+        CompressedBitmap result = new CompressedBitmap();
+        for (int i = lowerBucket(lower); i <= upperBucket(upper); i++) {
+            if (!buckets[i].isEmpty()) {
+                result = result.or(buckets[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count record slots with rating within the given lower and upper bounds
+     * without building the result bitmap
+     *
+     * @param lower lower bound of rating, inclusive
+     * @param upper upper bound of rating, inclusive
+     * @return number of matching record slots
+     */
+    public int count(float lower, float upper) {
+        int total = 0;
+        for (int i = lowerBucket(lower); i <= upperBucket(upper); i++) {
+            total += buckets[i].getCardinality();
+        }
+        return total;
+    }
+
+    /**
+     * Approximate number of bytes used by the bitmaps
+     *
+     * @return size in bytes
+     */
+    public long getSizeInBytes() {
+        long total = 0;
+        for (CompressedBitmap bucket : buckets) {
+            total += bucket.getSizeInBytes();
+        }
+        return total;
+    }
+
+    private static int toBucket(float rating) {
+        return Math.max(0, Math.min(NUM_OF_BUCKET - 1, Math.round(rating * 10)));
+    }
+
+    private static int lowerBucket(float rating) {
+        return Math.max(0, (int) Math.ceil(rating * 10 - 1e-3));
+    }
+
+    private static int upperBucket(float rating) {
+        return Math.min(NUM_OF_BUCKET - 1, (int) Math.floor(rating * 10 + 1e-3));
+    }
+}
@@ -1,4 +1,7 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.StringJoiner;
 
@@ -17,6 +20,17 @@ public class Block {
      */
     private int blockSize;
 
+    /**
+     * Layout of records in the serialized block
+     */
+    private BlockLayout layout;
+
+    /**
+     * View for reading big-endian ints from serialized blocks, as written by ByteBuffer
+     */
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class,
+            ByteOrder.BIG_ENDIAN);
+
     /**
      * Construct a block with list of records and block size
      * 
@@ -25,48 +39,205 @@ public class Block {
      */
 
     /**
-     * Construct an empty block
+     * Construct an empty block with the row layout
      * 
      * @param blockSize  size of one block
      * @param recordSize size of one record
      * @return empty block object
      */
     public Block(int blockSize, int recordSize) {
-        Record[] records = new Record[blockSize / recordSize];
+        this(blockSize, new BlockLayout(BlockLayout.Type.ROW, blockSize, recordSize));
+    }
+
+    /**
+     * Construct an empty block
+     * 
+     * @param blockSize size of one block
+     * @param layout    layout of records in the serialized block
+     * @return empty block object
+     */
+    public Block(int blockSize, BlockLayout layout) {
+        Record[] records = new Record[layout.getNumOfRecord()];
         for (int i = 0; i < records.length; ++i) {
             records[i] = new Record();
         }
         this.records = records;
         this.blockSize = blockSize;
-        // return new Block(records, blockSize);
+        this.layout = layout;
     }
 
     /**
-     * Construct a block from byte array
+     * Construct a block from byte array with the row layout
      * 
      * @param byteArr    byte array containing serialized data of block
      * @param recordSize size of one record
      * @return deserialized block
      */
     public static Block fromByteArray(byte[] byteArr, int recordSize) {
-        ByteBuffer buf = ByteBuffer.wrap(byteArr);
-        Block block = new Block(byteArr.length, recordSize);
+        return fromByteArray(byteArr, new BlockLayout(BlockLayout.Type.ROW, byteArr.length, recordSize));
+    }
 
+    /**
+     * Construct a block from byte array
+     * 
+     * @param byteArr byte array containing serialized data of block
+     * @param layout  layout of records in the serialized block
+     * @return deserialized block
+     */
+    public static Block fromByteArray(byte[] byteArr, BlockLayout layout) {
+        Block block = new Block(byteArr.length, layout);
         for (int i = 0; i < block.records.length; ++i) {
-            boolean empty = buf.get() == 1;
+            block.records[i] = readRecord(byteArr, 0, i, layout);
+        }
+        return block;
+    }
+
+    /**
+     * Check the empty flag of a record directly in serialized block data
+     * 
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @return empty flag
+     */
+    public static boolean isEmpty(byte[] data, int base, int recordId, BlockLayout layout) {
+        return data[base + layout.emptyOffset(recordId)] == 1;
+    }
+
+    /**
+     * Read the averageRating of a record directly from serialized block data
+     * 
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @return averageRating attribute
+     */
+    public static float getAverageRating(byte[] data, int base, int recordId, BlockLayout layout) {
+        return Float.intBitsToFloat((int) INT_VIEW.get(data, base + layout.ratingOffset(recordId)));
+    }
+
+    /**
+     * Read the numVotes of a record directly from serialized block data
+     * 
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @return numVotes attribute
+     */
+    public static int getNumVotes(byte[] data, int base, int recordId, BlockLayout layout) {
+        return (int) INT_VIEW.get(data, base + layout.votesOffset(recordId));
+    }
 
-            char[] tconst = new char[10];
-            for (int j = 0; j < tconst.length; ++j) {
-                tconst[j] = (char) buf.get();
+    /**
+     * Check whether the tconst of a record starts with a prefix, directly on serialized
+     * block data
+     * 
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @param prefix   ASCII bytes of the prefix
+     * @return true if the tconst starts with the prefix, false if the prefix is longer
+     *         than the tconst attribute
+     */
+    public static boolean tconstStartsWith(byte[] data, int base, int recordId, BlockLayout layout, byte[] prefix) {
+        if (prefix.length > BlockLayout.TCONST_SIZE) {
+            return false;
+        }
+        int offset = base + layout.tconstOffset(recordId);
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
             }
+        }
+        return true;
+    }
+
+    /**
+     * Deserialize a single record directly from serialized block data
+     * 
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @return deserialized record
+     */
+    public static Record readRecord(byte[] data, int base, int recordId, BlockLayout layout) {
+        int offset = base + layout.tconstOffset(recordId);
+        char[] tconst = new char[10];
+        for (int j = 0; j < tconst.length; ++j) {
+            tconst[j] = (char) data[offset + j];
+        }
+        Record record = new Record();
+        record.setEmpty(isEmpty(data, base, recordId, layout));
+        record.setTconst(tconst);
+        record.setaverageRating(getAverageRating(data, base, recordId, layout));
+        record.setNumVotes(getNumVotes(data, base, recordId, layout));
+        return record;
+    }
 
-            float avgRating = buf.getFloat();
-            int numVotes = buf.getInt();
+    /**
+     * Clear the bits of records that are empty in a block, scanning the empty flags
+     * 
+     * @param data   byte array containing serialized blocks
+     * @param base   offset of the block within the byte array
+     * @param layout layout of records in the serialized block
+     * @param mask   bitmask of records, one bit per record id
+     */
+    public static void filterNonEmpty(byte[] data, int base, BlockLayout layout, long[] mask) {
+        int offset = base + layout.emptyOffset(0), stride = layout.stride(1);
+        for (int i = 0; i < layout.getNumOfRecord(); i++, offset += stride) {
+            if (data[offset] == 1) {
+                mask[i >>> 6] &= ~(1L << i);
+            }
+        }
+    }
 
-            block.updateRecord(i, tconst, avgRating, numVotes, empty);
+    /**
+     * Clear the bits of records whose numVotes is outside the bounds, scanning the
+     * numVotes of all records in a block
+     * 
+     * @param data   byte array containing serialized blocks
+     * @param base   offset of the block within the byte array
+     * @param layout layout of records in the serialized block
+     * @param lower  lower bound of numVotes, inclusive
+     * @param upper  upper bound of numVotes, inclusive
+     * @param mask   bitmask of records, one bit per record id
+     */
+    public static void filterNumVotes(byte[] data, int base, BlockLayout layout, int lower, int upper,
+            long[] mask) {
+        int offset = base + layout.votesOffset(0), stride = layout.stride(4);
+        for (int i = 0; i < layout.getNumOfRecord(); i++, offset += stride) {
+            int numVotes = (int) INT_VIEW.get(data, offset);
+            if (numVotes < lower || numVotes > upper) {
+                mask[i >>> 6] &= ~(1L << i);
+            }
         }
+    }
 
-        return block;
+    /**
+     * Clear the bits of records whose averageRating is outside the bounds, scanning
+     * the averageRating of all records in a block
+     * 
+     * @param data   byte array containing serialized blocks
+     * @param base   offset of the block within the byte array
+     * @param layout layout of records in the serialized block
+     * @param lower  lower bound of averageRating, inclusive
+     * @param upper  upper bound of averageRating, inclusive
+     * @param mask   bitmask of records, one bit per record id
+     */
+    public static void filterAverageRating(byte[] data, int base, BlockLayout layout, float lower, float upper,
+            long[] mask) {
+        int offset = base + layout.ratingOffset(0), stride = layout.stride(4);
+        for (int i = 0; i < layout.getNumOfRecord(); i++, offset += stride) {
+            float rating = Float.intBitsToFloat((int) INT_VIEW.get(data, offset));
+            if (rating < lower || rating > upper) {
+                mask[i >>> 6] &= ~(1L << i);
+            }
+        }
     }
 
     /**
@@ -76,11 +247,13 @@ public class Block {
      */
     public byte[] toByteArray() {
         ByteBuffer buf = ByteBuffer.allocate(blockSize);
-        for (Record record : records) {
-            buf.put(record.isEmpty() ? (byte) 1 : (byte) 0);
+        for (int i = 0; i < records.length; ++i) {
+            Record record = records[i];
+            buf.put(layout.emptyOffset(i), record.isEmpty() ? (byte) 1 : (byte) 0);
+            buf.position(layout.tconstOffset(i));
             buf.put(new String(record.getTconst()).getBytes(StandardCharsets.US_ASCII));
-            buf.putFloat(record.getaverageRating());
-            buf.putInt(record.getNumVotes());
+            buf.putFloat(layout.ratingOffset(i), record.getaverageRating());
+            buf.putInt(layout.votesOffset(i), record.getNumVotes());
         }
         return buf.array();
     }
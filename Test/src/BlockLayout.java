@@ -0,0 +1,115 @@
+/**
+ * Class representing how records are laid out inside a serialized block.
+ * ROW stores each record contiguously (empty flag, tconst, averageRating, numVotes).
+ * PAX groups each attribute of all records of the block into its own contiguous minipage,
+ * so that scanning one attribute reads a sequential run of bytes
+ */
+public class BlockLayout {
+
+    /**
+     * Supported layouts
+     */
+    public enum Type {
+        ROW, PAX
+    }
+
+    /**
+     * Sizes of the attributes in bytes
+     */
+    private static final int EMPTY_SIZE = 1;
+    public static final int TCONST_SIZE = 10;
+    private static final int RATING_SIZE = 4;
+
+    /**
+     * Layout type
+     */
+    private final Type type;
+
+    /**
+     * Size of one record in bytes
+     */
+    private final int recordSize;
+
+    /**
+     * Number of records in one block
+     */
+    private final int numOfRecord;
+
+    /**
+     * Construct a layout for the given block and record sizes
+     *
+     * @param type       layout type
+     * @param blockSize  size of one block
+     * @param recordSize size of one record
+     */
+    public BlockLayout(Type type, int blockSize, int recordSize) {
+        this.type = type;
+        this.recordSize = recordSize;
+        this.numOfRecord = blockSize / recordSize;
+    }
+
+    /**
+     * Offset of the empty flag of a record relative to the start of the block
+     *
+     * @param recordId record id
+     * @return byte offset
+     */
+    public int emptyOffset(int recordId) {
+        return type == Type.ROW ? recordId * recordSize : recordId;
+    }
+
+    /**
+     * Offset of the tconst of a record relative to the start of the block
+     *
+     * @param recordId record id
+     * @return byte offset
+     */
+    public int tconstOffset(int recordId) {
+        return type == Type.ROW ? recordId * recordSize + EMPTY_SIZE
+                : numOfRecord * EMPTY_SIZE + recordId * TCONST_SIZE;
+    }
+
+    /**
+     * Offset of the averageRating of a record relative to the start of the block
+     *
+     * @param recordId record id
+     * @return byte offset
+     */
+    public int ratingOffset(int recordId) {
+        return type == Type.ROW ? recordId * recordSize + EMPTY_SIZE + TCONST_SIZE
+                : numOfRecord * (EMPTY_SIZE + TCONST_SIZE) + recordId * RATING_SIZE;
+    }
+
+    /**
+     * Offset of the numVotes of a record relative to the start of the block
+     *
+     * @param recordId record id
+     * @return byte offset
+     */
+    public int votesOffset(int recordId) {
+        return type == Type.ROW ? recordId * recordSize + EMPTY_SIZE + TCONST_SIZE + RATING_SIZE
+                : numOfRecord * (EMPTY_SIZE + TCONST_SIZE + RATING_SIZE) + recordId * 4;
+    }
+
+    /**
+     * Distance in bytes between the same attribute of two consecutive records
+     *
+     * @param attributeSize size of the attribute in bytes
+     * @return stride in bytes
+     */
+    public int stride(int attributeSize) {
+        return type == Type.ROW ? recordSize : attributeSize;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public int getNumOfRecord() {
+        return numOfRecord;
+    }
+}
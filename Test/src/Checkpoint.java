@@ -0,0 +1,452 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Class representing a checkpoint of the storage in a directory on local disk. The
+ * blocks file holds a header and the used part of the block array as is, so it can be
+ * mapped and copied back in one pass. The index file holds every B+ tree in pre-order,
+ * with keys and posting lists delta-encoded as varints, so trees are rebuilt node by
+ * node without any insertion. Each checkpoint is written to its own generation
+ * directory, and the current file naming the generation is replaced in a single
+ * atomic rename, so a crash never leaves blocks and index files of different
+ * checkpoints in use
+ */
+public class Checkpoint {
+
+    /**
+     * Names of the files in the checkpoint directory
+     */
+    public static final String CURRENT_FILE = "CURRENT";
+    public static final String BLOCKS_FILE = "blocks.dat";
+    public static final String INDEX_FILE = "index.dat";
+
+    /**
+     * Prefix of the generation directories, followed by the checkpoint identifier
+     */
+    private static final String GENERATION_PREFIX = "checkpoint-";
+
+    private static final int MAGIC = 0x43504B54;
+    private static final int BLOCKS_HEADER_SIZE = 40;
+
+    /**
+     * Node types in the index file
+     */
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+
+    /**
+     * Identifier shared by the two files of one checkpoint
+     */
+    private final long id;
+
+    /**
+     * Configuration of the checkpointed storage
+     */
+    private final int blockSize;
+    private final int recordSize;
+    private final int memorySize;
+    private final BlockLayout.Type layoutType;
+
+    /**
+     * Number of blocks in use
+     */
+    private final int numBlocks;
+
+    /**
+     * Directory of the checkpoint
+     */
+    private final Path dir;
+
+    /**
+     * Generation directory holding the files of the checkpoint
+     */
+    private final Path generation;
+
+    /**
+     * Construct a checkpoint description
+     *
+     * @param dir        directory of the checkpoint
+     * @param id         identifier shared by the two files of the checkpoint, unique
+     *                   within the directory
+     * @param blockSize  size of one block in bytes
+     * @param recordSize size of one record in bytes
+     * @param memorySize size of the block array in bytes
+     * @param layoutType layout of records in the blocks
+     * @param numBlocks  number of blocks in use
+     */
+    public Checkpoint(Path dir, long id, int blockSize, int recordSize, int memorySize, BlockLayout.Type layoutType,
+            int numBlocks) {
+        this.dir = dir;
+        this.generation = dir.resolve(GENERATION_PREFIX + id);
+        this.id = id;
+        this.blockSize = blockSize;
+        this.recordSize = recordSize;
+        this.memorySize = memorySize;
+        this.layoutType = layoutType;
+        this.numBlocks = numBlocks;
+    }
+
+    /**
+     * Identifier for a new checkpoint in a directory, greater than that of the
+     * current checkpoint so that the new generation never replaces the one in use
+     *
+     * @param dir directory of the checkpoint
+     * @return identifier for the next checkpoint
+     * @throws IOException if the current file cannot be read
+     */
+    public static long nextId(Path dir) throws IOException {
+        long id = System.currentTimeMillis();
+        Path current = dir.resolve(CURRENT_FILE);
+        return Files.exists(current) ? Math.max(id, readCurrent(current) + 1) : id;
+    }
+
+    /**
+     * Write the blocks and the B+ trees to a new generation directory, then make it
+     * the current checkpoint and delete the previous generations. The files are synced
+     * before the current file is renamed over, so the switch happens only once both
+     * files of the new checkpoint are complete
+     *
+     * @param blocks block array
+     * @param trees  root node of each B+ tree
+     * @throws IOException if a file cannot be written
+     */
+    public void write(byte[] blocks, Map<KeyType, Node> trees) throws IOException {
+        Path current = dir.resolve(CURRENT_FILE);
+        if (Files.exists(current) && readCurrent(current) >= id) {
+            throw new IOException("Checkpoint " + id + " is not newer than the current checkpoint in " + dir);
+        }
+        // Leftovers of a checkpoint interrupted before its switch are never in use
+        deleteRecursively(generation);
+        Files.createDirectories(generation);
+
+        try (FileChannel channel = FileChannel.open(generation.resolve(BLOCKS_FILE), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(BLOCKS_HEADER_SIZE);
+            header.putInt(MAGIC).putLong(id).putInt(blockSize).putInt(recordSize).putInt(memorySize)
+                    .putInt(layoutType.ordinal()).putInt(numBlocks);
+            header.rewind();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(blocks, 0, numBlocks * blockSize));
+            channel.force(true);
+        }
+
+        try (FileChannel channel = FileChannel.open(generation.resolve(INDEX_FILE), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeLong(id);
+            out.writeInt(Node.getN());
+            out.writeInt(trees.size());
+            for (Map.Entry<KeyType, Node> tree : trees.entrySet()) {
+                out.writeByte(tree.getKey().ordinal());
+                writeNode(out, tree.getValue());
+            }
+            out.flush();
+            channel.force(true);
+        }
+
+        Path currentTemp = dir.resolve(CURRENT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(currentTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.wrap(Long.toString(id).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(currentTemp, current, StandardCopyOption.ATOMIC_MOVE);
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, GENERATION_PREFIX + "*")) {
+            for (Path entry : entries) {
+                if (!entry.equals(generation)) {
+                    deleteRecursively(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the header of the current checkpoint in a directory
+     *
+     * @param dir directory of the checkpoint
+     * @return checkpoint description
+     * @throws IOException if the current checkpoint cannot be read or its blocks file
+     *                     belongs to another checkpoint
+     */
+    public static Checkpoint open(Path dir) throws IOException {
+        long id = readCurrent(dir.resolve(CURRENT_FILE));
+        Path path = dir.resolve(GENERATION_PREFIX + id).resolve(BLOCKS_FILE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(BLOCKS_HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.remaining() < BLOCKS_HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+            if (header.getLong() != id) {
+                throw new IOException("Blocks file does not match the current checkpoint: " + path);
+            }
+            return new Checkpoint(dir, id, header.getInt(), header.getInt(), header.getInt(),
+                    BlockLayout.Type.values()[header.getInt()], header.getInt());
+        }
+    }
+
+    /**
+     * Read the identifier of the current checkpoint
+     *
+     * @param current current file of the checkpoint directory
+     * @return identifier of the current checkpoint
+     * @throws IOException if the current file cannot be read
+     */
+    private static long readCurrent(Path current) throws IOException {
+        String content = new String(Files.readAllBytes(current), StandardCharsets.US_ASCII).trim();
+        try {
+            return Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid current checkpoint in " + current + ": " + content);
+        }
+    }
+
+    /**
+     * Delete a file, or a directory and everything in it, if it exists
+     *
+     * @param path file or directory to be deleted
+     * @throws IOException if an entry cannot be deleted
+     */
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) {
+                    deleteRecursively(entry);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Copy the checkpointed blocks into a block array by mapping the blocks file
+     *
+     * @param blocks block array of at least numBlocks * blockSize bytes
+     * @throws IOException if the blocks file cannot be read
+     */
+    public void readBlocks(byte[] blocks) throws IOException {
+        try (FileChannel channel = FileChannel.open(generation.resolve(BLOCKS_FILE), StandardOpenOption.READ)) {
+            long length = (long) numBlocks * blockSize;
+            if (channel.size() < BLOCKS_HEADER_SIZE + length) {
+                throw new EOFException("Truncated checkpoint: " + generation.resolve(BLOCKS_FILE));
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, BLOCKS_HEADER_SIZE, length);
+            mapped.get(blocks, 0, (int) length);
+        }
+    }
+
+    /**
+     * Rebuild the checkpointed B+ trees. Node.n and RecordNode.maxSize must already be
+     * set for the block size of the checkpoint
+     *
+     * @return root node of each B+ tree
+     * @throws IOException if the index file cannot be read or belongs to another checkpoint
+     */
+    public Map<KeyType, Node> readTrees() throws IOException {
+        Map<KeyType, Node> trees = new EnumMap<>(KeyType.class);
+        Path path = generation.resolve(INDEX_FILE);
+        try (InputStream file = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+            if (in.readInt() != MAGIC || in.readLong() != id) {
+                throw new IOException("Index file does not match the blocks file: " + path);
+            }
+            int n = in.readInt();
+            if (n != Node.getN()) {
+                throw new IOException("Index file was written with n=" + n + ", current n=" + Node.getN());
+            }
+            int numTrees = in.readInt();
+            for (int t = 0; t < numTrees; t++) {
+                KeyType keyType = KeyType.values()[in.readByte()];
+                LeafNode[] lastLeaf = { null };
+                Node root = readNode(in, lastLeaf);
+                root.setRoot(true);
+                trees.put(keyType, root);
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Write a node and its subtree in pre-order
+     *
+     * @param out  output stream
+     * @param node node to be written
+     */
+    private static void writeNode(DataOutputStream out, Node node) throws IOException {
+        long[] keys = node.getKeys();
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            out.writeByte(LEAF);
+            writeKeys(out, keys, leaf.getDegree());
+            for (int i = 0; i < leaf.getDegree(); i++) {
+                RecordNode postings = leaf.getPointers()[i];
+                writeVarLong(out, postings.getSize());
+                out.writeDouble(postings.getRatingSum());
+                int prev = 0;
+                for (int slot : postings.getSlots()) {
+                    writeVarLong(out, slot - prev);
+                    prev = slot;
+                }
+            }
+        } else {
+            InternalNode internal = (InternalNode) node;
+            out.writeByte(INTERNAL);
+            writeVarLong(out, internal.getHeight());
+            writeKeys(out, keys, internal.getDegree() - 1);
+            for (int i = 0; i < internal.getDegree(); i++) {
+                writeNode(out, internal.getPointers()[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a node and its subtree written in pre-order, linking leaves to their right
+     * sibling in the order they are read
+     *
+     * @param in       input stream
+     * @param lastLeaf last leaf read so far
+     * @return node read
+     */
+    private static Node readNode(DataInputStream in, LeafNode[] lastLeaf) throws IOException {
+        byte type = in.readByte();
+        if (type == LEAF) {
+            long[] keys = new long[Node.getN()];
+            int degree = readKeys(in, keys);
+            RecordNode[] pointers = new RecordNode[Node.getN()];
+            for (int i = 0; i < degree; i++) {
+                int size = (int) readVarLong(in);
+                double ratingSum = in.readDouble();
+                int[] slots = new int[size];
+                for (int j = 0, slot = 0; j < size; j++) {
+                    slot += (int) readVarLong(in);
+                    slots[j] = slot;
+                }
+                pointers[i] = new RecordNode(slots, size, ratingSum);
+            }
+            LeafNode leaf = new LeafNode(degree, false, keys, pointers);
+            if (lastLeaf[0] != null) {
+                lastLeaf[0].setRightSibling(leaf);
+            }
+            lastLeaf[0] = leaf;
+            return leaf;
+        } else if (type == INTERNAL) {
+            int height = (int) readVarLong(in);
+            long[] keys = new long[Node.getN()];
+            int degree = readKeys(in, keys) + 1;
+            Node[] pointers = new Node[Node.getN() + 1];
+            for (int i = 0; i < degree; i++) {
+                pointers[i] = readNode(in, lastLeaf);
+            }
+            // Counts of the children are summed by the constructor
+            InternalNode internal = new InternalNode(height, degree, false, keys, pointers);
+            for (int i = 0; i < degree; i++) {
+                pointers[i].setParent(internal);
+            }
+            return internal;
+        }
+        throw new IOException("Unknown node type " + type);
+    }
+
+    /**
+     * Write sorted keys as a count, the first key and varint deltas
+     */
+    private static void writeKeys(DataOutputStream out, long[] keys, int count) throws IOException {
+        writeVarLong(out, count);
+        if (count > 0) {
+            out.writeLong(keys[0]);
+            for (int i = 1; i < count; i++) {
+                writeVarLong(out, keys[i] - keys[i - 1]);
+            }
+        }
+    }
+
+    /**
+     * Read keys written by writeKeys into an array
+     *
+     * @return number of keys read
+     */
+    private static int readKeys(DataInputStream in, long[] keys) throws IOException {
+        int count = (int) readVarLong(in);
+        if (count > 0) {
+            keys[0] = in.readLong();
+            for (int i = 1; i < count; i++) {
+                keys[i] = keys[i - 1] + readVarLong(in);
+            }
+        }
+        return count;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    public BlockLayout.Type getLayoutType() {
+        return layoutType;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class representing a background thread compacting a storage after deletion.
+ * Underfull nodes left by lazy deletion are rebalanced and tail blocks are vacuumed in
+ * small batches, so that each pause of foreground operations stays bounded
+ */
+public class Compactor {
+
+    /**
+     * Storage whose B+ tree is compacted
+     */
+    private final Storage storage;
+
+    /**
+     * Maximum number of underfull nodes rebalanced and blocks vacuumed per batch
+     */
+    private final int batchSize;
+
+    /**
+     * Delay between two batches in milliseconds
+     */
+    private final long intervalMillis;
+
+    /**
+     * Executor running the batches, null until started
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Construct a compactor for a storage
+     *
+     * @param storage        storage whose B+ tree is compacted
+     * @param batchSize      maximum number of underfull nodes rebalanced and blocks
+     *                       vacuumed per batch
+     * @param intervalMillis delay between two batches in milliseconds
+     */
+    public Compactor(Storage storage, int batchSize, long intervalMillis) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Start compacting in the background
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bplustree-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runBatch, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run one batch with the storage bound to the compactor thread. A failed batch is
+     * reported rather than thrown, since an exception would cancel the scheduled task
+     */
+    private void runBatch() {
+        try {
+            Node.withStorage(storage, () -> {
+                storage.compact(batchSize);
+                storage.vacuum(batchSize);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            System.out.println("Compaction batch failed. " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop compacting, waiting for the running batch to finish
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    public boolean isRunning() {
+        return executor != null;
+    }
+}
@@ -0,0 +1,404 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Class representing a compressed bitmap over record slots.
+ * Slots are split into chunks of 65536 by their upper 16 bits, and each chunk is stored
+ * either as a sorted array of the lower 16 bits (sparse chunks) or as a plain 65536-bit
+ * bitmap (dense chunks)
+ */
+public class CompressedBitmap {
+
+    /**
+     * Maximum number of values held in a sparse chunk before it is converted to a bitmap
+     */
+    private static final int MAX_SPARSE = 4096;
+
+    /**
+     * Number of 64-bit words in a dense chunk
+     */
+    private static final int WORDS = 1 << 10;
+
+    /**
+     * Sorted upper 16 bits of the chunks
+     */
+    private int[] keys;
+
+    /**
+     * Chunks, parallel to keys
+     */
+    private Chunk[] chunks;
+
+    /**
+     * Number of chunks in use
+     */
+    private int size;
+
+    /**
+     * Construct an empty bitmap
+     */
+    public CompressedBitmap() {
+        keys = new int[4];
+        chunks = new Chunk[4];
+        size = 0;
+    }
+
+    /**
+     * Add a slot to the bitmap
+     *
+     * @param slot record slot
+     */
+    public void add(int slot) {
+        int index = findChunk(slot >>> 16);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, slot >>> 16, new Chunk());
+        }
+        chunks[index].add(slot & 0xFFFF);
+    }
+
+    /**
+     * Remove a slot from the bitmap
+     *
+     * @param slot record slot
+     * @return true if the slot was present
+     */
+    public boolean remove(int slot) {
+        int index = findChunk(slot >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        boolean removed = chunks[index].remove(slot & 0xFFFF);
+        if (chunks[index].cardinality == 0) {
+            removeChunk(index);
+        }
+        return removed;
+    }
+
+    /**
+     * Check whether a slot is in the bitmap
+     *
+     * @param slot record slot
+     * @return true if the slot is present
+     */
+    public boolean contains(int slot) {
+        int index = findChunk(slot >>> 16);
+        return index >= 0 && chunks[index].contains(slot & 0xFFFF);
+    }
+
+    /**
+     * Get the number of slots in the bitmap
+     *
+     * @return number of slots
+     */
+    public int getCardinality() {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += chunks[i].cardinality;
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Intersect this bitmap with another bitmap
+     *
+     * @param other other bitmap
+     * @return new bitmap containing slots present in both bitmaps
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Chunk chunk = chunks[i].and(other.chunks[j]);
+                if (chunk.cardinality > 0) {
+                    result.insertChunk(result.size, keys[i], chunk);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Union this bitmap with another bitmap
+     *
+     * @param other other bitmap
+     * @return new bitmap containing slots present in either bitmap
+     */
+    public CompressedBitmap or(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j >= other.size || (i < size && keys[i] < other.keys[j])) {
+                result.insertChunk(result.size, keys[i], chunks[i].copy());
+                i++;
+            } else if (i >= size || keys[i] > other.keys[j]) {
+                result.insertChunk(result.size, other.keys[j], other.chunks[j].copy());
+                j++;
+            } else {
+                result.insertChunk(result.size, keys[i], chunks[i].or(other.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visit all slots in ascending order
+     *
+     * @param action action to run on each slot
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) {
+            chunks[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * Retrieve all slots in ascending order
+     *
+     * @return array of slots
+     */
+    public int[] toArray() {
+        int[] slots = new int[getCardinality()];
+        int[] index = new int[1];
+        forEach(slot -> slots[index[0]++] = slot);
+        return slots;
+    }
+
+    /**
+     * Approximate number of bytes used by the bitmap payload
+     *
+     * @return size in bytes
+     */
+    public long getSizeInBytes() {
+        long total = keys.length * 4L;
+        for (int i = 0; i < size; i++) {
+            total += chunks[i].bits != null ? WORDS * 8L : chunks[i].values.length * 2L;
+        }
+        return total;
+    }
+
+    private int findChunk(int key) {
+        // Slots are mostly added in ascending order, check the last chunk first
+        if (size > 0 && keys[size - 1] == key) {
+            return size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertChunk(int index, int key, Chunk chunk) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            chunks = Arrays.copyOf(chunks, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        size++;
+    }
+
+    private void removeChunk(int index) {
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(chunks, index + 1, chunks, index, size - index - 1);
+        size--;
+        chunks[size] = null;
+    }
+
+    /**
+     * Chunk of 65536 slots sharing the same upper 16 bits
+     */
+    private static class Chunk {
+
+        /**
+         * Sorted lower 16 bits when the chunk is sparse, otherwise null
+         */
+        private char[] values;
+
+        /**
+         * Bitmap of lower 16 bits when the chunk is dense, otherwise null
+         */
+        private long[] bits;
+
+        /**
+         * Number of slots in the chunk
+         */
+        private int cardinality;
+
+        Chunk() {
+            values = new char[4];
+        }
+
+        void add(int low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) {
+                    bits[low >>> 6] |= mask;
+                    cardinality++;
+                }
+                return;
+            }
+            int index = cardinality > 0 && values[cardinality - 1] < low ? -cardinality - 1
+                    : Arrays.binarySearch(values, 0, cardinality, (char) low);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (cardinality == MAX_SPARSE) {
+                toBitmap();
+                add(low);
+                return;
+            }
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_SPARSE));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = (char) low;
+            cardinality++;
+        }
+
+        boolean remove(int low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) {
+                    return false;
+                }
+                bits[low >>> 6] &= ~mask;
+                cardinality--;
+                if (cardinality <= MAX_SPARSE / 2) {
+                    toSparse();
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, cardinality, (char) low);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            return true;
+        }
+
+        boolean contains(int low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, (char) low) >= 0;
+        }
+
+        Chunk and(Chunk other) {
+            Chunk result = new Chunk();
+            if (bits != null && other.bits != null) {
+                result.bits = new long[WORDS];
+                result.values = null;
+                for (int i = 0; i < WORDS; i++) {
+                    result.bits[i] = bits[i] & other.bits[i];
+                    result.cardinality += Long.bitCount(result.bits[i]);
+                }
+                if (result.cardinality <= MAX_SPARSE) {
+                    result.toSparse();
+                }
+            } else if (bits != null || other.bits != null) {
+                Chunk sparse = bits != null ? other : this;
+                Chunk dense = bits != null ? this : other;
+                for (int i = 0; i < sparse.cardinality; i++) {
+                    if (dense.contains(sparse.values[i])) {
+                        result.add(sparse.values[i]);
+                    }
+                }
+            } else {
+                int i = 0, j = 0;
+                while (i < cardinality && j < other.cardinality) {
+                    if (values[i] < other.values[j]) {
+                        i++;
+                    } else if (values[i] > other.values[j]) {
+                        j++;
+                    } else {
+                        result.add(values[i]);
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        Chunk or(Chunk other) {
+            Chunk result = copy();
+            if (other.bits != null) {
+                result.toBitmap();
+                result.cardinality = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    result.bits[i] |= other.bits[i];
+                    result.cardinality += Long.bitCount(result.bits[i]);
+                }
+            } else {
+                for (int i = 0; i < other.cardinality; i++) {
+                    result.add(other.values[i]);
+                }
+            }
+            return result;
+        }
+
+        Chunk copy() {
+            Chunk result = new Chunk();
+            result.values = values == null ? null : Arrays.copyOf(values, Math.max(cardinality, 4));
+            result.bits = bits == null ? null : bits.clone();
+            result.cardinality = cardinality;
+            return result;
+        }
+
+        void forEach(int high, IntConsumer action) {
+            if (bits != null) {
+                for (int i = 0; i < WORDS; i++) {
+                    long word = bits[i];
+                    while (word != 0) {
+                        action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    action.accept(high | values[i]);
+                }
+            }
+        }
+
+        private void toBitmap() {
+            if (bits != null) {
+                return;
+            }
+            bits = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+
+        private void toSparse() {
+            char[] sparse = new char[Math.max(cardinality, 4)];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = bits[i];
+                while (word != 0) {
+                    sparse[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            values = sparse;
+            bits = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.BitSet;
+
+/**
+ * Class representing the free space of the storage as bitmaps.
+ * One bit per record slot tells whether the slot is free, and one bit per block tells
+ * whether the block has any free slot, so allocating and freeing a slot are bit
+ * operations that allocate no objects
+ */
+public class FreeSpaceMap {
+
+    /**
+     * Number of records in one block
+     */
+    private final int recordsPerBlock;
+
+    /**
+     * Free record slots, indexed by slot (see {@link RecordPointer#toSlot(int)})
+     */
+    private final BitSet freeSlots;
+
+    /**
+     * Blocks having at least one free slot, indexed by block ID
+     */
+    private final BitSet blocksWithSpace;
+
+    /**
+     * Number of free slots
+     */
+    private int numFree;
+
+    /**
+     * Construct an empty free space map
+     *
+     * @param recordsPerBlock number of records in one block
+     */
+    public FreeSpaceMap(int recordsPerBlock) {
+        this.recordsPerBlock = recordsPerBlock;
+        this.freeSlots = new BitSet();
+        this.blocksWithSpace = new BitSet();
+    }
+
+    /**
+     * Mark every slot of a new block as free
+     *
+     * @param blockID ID of the new block
+     */
+    public void addBlock(int blockID) {
+        int from = blockID * recordsPerBlock;
+        numFree += recordsPerBlock - freeSlots.get(from, from + recordsPerBlock).cardinality();
+        freeSlots.set(from, from + recordsPerBlock);
+        blocksWithSpace.set(blockID);
+    }
+
+    /**
+     * Allocate a free slot, preferring the block with the smallest ID so that partially
+     * empty blocks are filled before newer ones
+     *
+     * @return allocated slot, or -1 if there is no free slot
+     */
+    public int allocate() {
+        int blockID = blocksWithSpace.nextSetBit(0);
+        if (blockID < 0) {
+            return -1;
+        }
+        int slot = freeSlots.nextSetBit(blockID * recordsPerBlock);
+        freeSlots.clear(slot);
+        numFree--;
+        if (!hasFreeSlot(blockID)) {
+            blocksWithSpace.clear(blockID);
+        }
+        return slot;
+    }
+
+    /**
+     * Mark a slot as free
+     *
+     * @param slot slot to be freed
+     */
+    public void free(int slot) {
+        if (!freeSlots.get(slot)) {
+            freeSlots.set(slot);
+            numFree++;
+            blocksWithSpace.set(slot / recordsPerBlock);
+        }
+    }
+
+    /**
+     * Mark a free slot as used
+     *
+     * @param slot slot to be used
+     */
+    public void use(int slot) {
+        if (freeSlots.get(slot)) {
+            freeSlots.clear(slot);
+            numFree--;
+            if (!hasFreeSlot(slot / recordsPerBlock)) {
+                blocksWithSpace.clear(slot / recordsPerBlock);
+            }
+        }
+    }
+
+    /**
+     * Forget every block from the given block onwards
+     *
+     * @param blockID ID of the first block to forget
+     */
+    public void truncate(int blockID) {
+        int from = blockID * recordsPerBlock;
+        numFree -= freeSlots.get(from, Math.max(from, freeSlots.length())).cardinality();
+        freeSlots.clear(from, Math.max(from, freeSlots.length()));
+        blocksWithSpace.clear(blockID, Math.max(blockID, blocksWithSpace.length()));
+    }
+
+    public boolean isFree(int slot) {
+        return freeSlots.get(slot);
+    }
+
+    /**
+     * Number of free slots in a block
+     *
+     * @param blockID block ID
+     * @return number of free slots
+     */
+    public int getNumFree(int blockID) {
+        int from = blockID * recordsPerBlock;
+        return freeSlots.get(from, from + recordsPerBlock).cardinality();
+    }
+
+    public int getNumFree() {
+        return numFree;
+    }
+
+    /**
+     * Approximate number of bytes used by the bitmaps
+     *
+     * @return size in bytes
+     */
+    public long getSizeInBytes() {
+        return (freeSlots.size() + blocksWithSpace.size()) / 8;
+    }
+
+    private boolean hasFreeSlot(int blockID) {
+        int next = freeSlots.nextSetBit(blockID * recordsPerBlock);
+        return next >= 0 && next < (blockID + 1) * recordsPerBlock;
+    }
+}
@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Class representing an immutable, pointer-free image of a B+ tree for read-mostly
+ * periods. The keys are stored in one sorted array split into leaf blocks of
+ * LEAF_SIZE keys, and the posting lists are concatenated into one slot array indexed
+ * by key position. The first key of every leaf block is a separator, and the
+ * separators are laid out in Eytzinger (breadth-first) order so that a descent reads
+ * consecutive array elements near the top and computes the next position instead of
+ * following a pointer. Prefix sums of the record counts and ratings answer range
+ * aggregates with two lookups.
+ *
+ * A frozen index never changes. After a batch of writes, freeze the tree again, or
+ * thaw the image back into a mutable tree
+ */
+public class FrozenIndex {
+
+    /**
+     * Number of keys in a leaf block, two cache lines of keys
+     */
+    private static final int LEAF_SIZE = 16;
+
+    /**
+     * Distinct keys in ascending order
+     */
+    private final long[] keys;
+
+    /**
+     * Position of the first slot of each key in the slot array, with one extra entry
+     * holding the total number of slots
+     */
+    private final int[] offsets;
+
+    /**
+     * Record slots of all posting lists, ascending within each key
+     */
+    private final int[] slots;
+
+    /**
+     * Sum of averageRating of the records of all keys before each key position, with
+     * one extra entry holding the total sum
+     */
+    private final double[] ratingPrefix;
+
+    /**
+     * First key of every leaf block in Eytzinger order, starting at index 1
+     */
+    private final long[] separators;
+
+    /**
+     * Leaf block of every separator, indexed like the separators
+     */
+    private final int[] separatorBlocks;
+
+    /**
+     * Number of records stored in one block of the storage, to unpack record slots
+     */
+    private final int recordsPerBlock;
+
+    private FrozenIndex(long[] keys, int[] offsets, int[] slots, double[] ratingPrefix, int recordsPerBlock) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.slots = slots;
+        this.ratingPrefix = ratingPrefix;
+        this.recordsPerBlock = recordsPerBlock;
+
+        int numBlocks = (keys.length + LEAF_SIZE - 1) / LEAF_SIZE;
+        this.separators = new long[numBlocks + 1];
+        this.separatorBlocks = new int[numBlocks + 1];
+        layout(1, new int[1]);
+    }
+
+    /**
+     * Place the separators of the subtree rooted at an Eytzinger index by visiting it
+     * in order, so that the separators are assigned in ascending order
+     *
+     * @param index Eytzinger index of the subtree root
+     * @param next  next leaf block to be placed
+     */
+    private void layout(int index, int[] next) {
+        if (index < separators.length) {
+            layout(2 * index, next);
+            separatorBlocks[index] = next[0];
+            separators[index] = keys[next[0] * LEAF_SIZE];
+            next[0]++;
+            layout(2 * index + 1, next);
+        }
+    }
+
+    /**
+     * Freeze a B+ tree by copying its leaves, from left to right, into a new image.
+     * Empty leaves left by lazy deletion are skipped
+     *
+     * @param root            root node of the B+ tree, or null
+     * @param recordsPerBlock number of records stored in one block of the storage
+     * @return frozen image of the tree
+     */
+    public static FrozenIndex freeze(Node root, int recordsPerBlock) {
+        // Collect the leaf nodes by descending, since trees of a VersionedIndex keep no sibling links
+        List<LeafNode> leaves = new ArrayList<>();
+        if (root != null) {
+            collectLeaves(root, leaves);
+        }
+        int numKeys = 0, numSlots = 0;
+        for (LeafNode node : leaves) {
+            numKeys += node.getDegree();
+            numSlots += (int) node.getRecordCount();
+        }
+
+        long[] keys = new long[numKeys];
+        int[] offsets = new int[numKeys + 1];
+        int[] slots = new int[numSlots];
+        double[] ratingPrefix = new double[numKeys + 1];
+        int[] pos = new int[1];
+        int k = 0;
+        for (LeafNode node : leaves) {
+            for (int i = 0; i < node.getDegree(); i++, k++) {
+                RecordNode postings = node.getPointers()[i];
+                keys[k] = node.getKeys()[i];
+                offsets[k] = pos[0];
+                postings.forEachSlot(slot -> slots[pos[0]++] = slot);
+                ratingPrefix[k + 1] = ratingPrefix[k] + postings.getRatingSum();
+            }
+        }
+        offsets[numKeys] = pos[0];
+        return new FrozenIndex(keys, offsets, slots, ratingPrefix, recordsPerBlock);
+    }
+
+    /**
+     * Collect the leaf nodes of a subtree in key order
+     *
+     * @param node   root node of the subtree
+     * @param leaves list to append the leaf nodes to
+     */
+    private static void collectLeaves(Node node, List<LeafNode> leaves) {
+        if (node instanceof LeafNode) {
+            leaves.add((LeafNode) node);
+            return;
+        }
+        InternalNode internal = (InternalNode) node;
+        for (int i = 0; i < internal.getDegree(); i++) {
+            collectLeaves(internal.getPointers()[i], leaves);
+        }
+    }
+
+    /**
+     * Find the position of the first key greater than or equal to the given key. The
+     * Eytzinger descent finds the first leaf block whose separator is greater than the
+     * key, then the previous leaf block is scanned
+     *
+     * @param key search key
+     * @return position of the first key not below the search key, or the number of
+     *         keys if there is none
+     */
+    private int lowerBound(long key) {
+        int index = 1;
+        while (index < separators.length) {
+            index = 2 * index + (separators[index] <= key ? 1 : 0);
+        }
+        // Undo the right turns taken after the last left turn
+        index >>= Integer.numberOfTrailingZeros(~index) + 1;
+        int block = (index == 0 ? separators.length - 1 : separatorBlocks[index]) - 1;
+        if (block < 0) {
+            return 0;
+        }
+        int from = block * LEAF_SIZE, to = Math.min(from + LEAF_SIZE, keys.length);
+        while (from < to && keys[from] < key) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Find the position after the last key smaller than or equal to the given key
+     *
+     * @param key search key
+     * @return number of keys not above the search key
+     */
+    private int upperBound(long key) {
+        return key == Long.MAX_VALUE ? keys.length : lowerBound(key + 1);
+    }
+
+    /**
+     * Search for records with the specified value
+     *
+     * @param key search key
+     * @return a list of record addresses with a key value equal to the search key
+     */
+    public ArrayList<RecordPointer> search(long key) {
+        return search(key, key);
+    }
+
+    /**
+     * Search for records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return a list of record addresses in key order
+     */
+    public ArrayList<RecordPointer> search(long lower, long upper) {
+        ArrayList<RecordPointer> results = new ArrayList<>();
+        forEachSlot(lower, upper, slot -> results.add(RecordPointer.fromSlot(slot, recordsPerBlock)));
+        return results;
+    }
+
+    /**
+     * Search for records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return bitmap of the record slots
+     */
+    public CompressedBitmap searchBitmap(long lower, long upper) {
+        CompressedBitmap result = new CompressedBitmap();
+        forEachSlot(lower, upper, result::add);
+        return result;
+    }
+
+    /**
+     * Visit the record slots of the keys within the given bounds, in key order
+     *
+     * @param lower  lower bound of the search key, inclusive
+     * @param upper  upper bound of the search key, inclusive
+     * @param action action to run on each slot
+     */
+    public void forEachSlot(long lower, long upper, IntConsumer action) {
+        if (upper < lower) {
+            return;
+        }
+        // The posting lists of consecutive keys are contiguous
+        for (int i = offsets[lowerBound(lower)], end = offsets[upperBound(upper)]; i < end; i++) {
+            action.accept(slots[i]);
+        }
+    }
+
+    /**
+     * Count records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return number of records within the bounds
+     */
+    public long countRange(long lower, long upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        return offsets[upperBound(upper)] - offsets[lowerBound(lower)];
+    }
+
+    /**
+     * Sum averageRating of records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return sum of averageRating of records within the bounds
+     */
+    public double sumRatingRange(long lower, long upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        return ratingPrefix[upperBound(upper)] - ratingPrefix[lowerBound(lower)];
+    }
+
+    /**
+     * Thaw the image back into a mutable B+ tree, built bottom-up with every level
+     * spread evenly over the fewest nodes so that no node is underfull
+     *
+     * @return root node of the new B+ tree, or null if the image is empty
+     */
+    public Node thaw() {
+        RecordNode[] postings = new RecordNode[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int[] keySlots = Arrays.copyOfRange(slots, offsets[i], offsets[i + 1]);
+            postings[i] = new RecordNode(keySlots, keySlots.length, ratingPrefix[i + 1] - ratingPrefix[i]);
+        }
+        return Node.bulkLoad(keys, postings, keys.length, 1);
+    }
+
+    public int getNumKeys() {
+        return keys.length;
+    }
+
+    public int getNumRecords() {
+        return slots.length;
+    }
+
+    /**
+     * Approximate number of bytes used by the arrays of the image
+     *
+     * @return size of the image in bytes
+     */
+    public long getSizeInBytes() {
+        return 8L * keys.length + 4L * offsets.length + 4L * slots.length + 8L * ratingPrefix.length
+                + 8L * separators.length + 4L * separatorBlocks.length;
+    }
+}
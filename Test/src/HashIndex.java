@@ -0,0 +1,245 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Class representing a hash index on tconst.
+ * Uses open addressing with linear probing over an off-heap buffer of fixed size entries,
+ * so that no object is allocated per indexed record.
+ * Each entry holds the 10 tconst bytes, a state byte and the record slot
+ */
+public class HashIndex {
+
+    /**
+     * Number of bytes in a tconst key
+     */
+    private static final int KEY_SIZE = 10;
+
+    /**
+     * Size of one entry in bytes: key, state, padding, record slot
+     */
+    private static final int ENTRY_SIZE = 16;
+
+    /**
+     * Offsets of the fields within an entry
+     */
+    private static final int STATE_OFFSET = KEY_SIZE;
+    private static final int SLOT_OFFSET = 12;
+
+    /**
+     * Entry states
+     */
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    /**
+     * Maximum fraction of used and deleted entries before the table is resized
+     */
+    private static final double LOAD_FACTOR = 0.7;
+
+    /**
+     * Off-heap table of entries
+     */
+    private ByteBuffer table;
+
+    /**
+     * Number of entries in the table, always a power of two
+     */
+    private int capacity;
+
+    /**
+     * Number of used entries
+     */
+    private int size;
+
+    /**
+     * Number of deleted entries (tombstones)
+     */
+    private int deleted;
+
+    /**
+     * Construct an empty hash index with a default capacity
+     */
+    public HashIndex() {
+        this(1 << 16);
+    }
+
+    /**
+     * Construct an empty hash index able to hold the given number of entries without resizing
+     *
+     * @param expectedSize expected number of entries
+     */
+    public HashIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Add or replace the record slot of a tconst
+     *
+     * @param tconst tconst attribute
+     * @param slot   record slot
+     */
+    public void put(String tconst, int slot) {
+        put(tconst.toCharArray(), slot);
+    }
+
+    /**
+     * Add or replace the record slot of a tconst
+     *
+     * @param tconst tconst attribute
+     * @param slot   record slot
+     */
+    public void put(char[] tconst, int slot) {
+        if (size + deleted + 1 > capacity * LOAD_FACTOR) {
+            // Grow only if the table is really full, otherwise just clear tombstones
+            rehash(size + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+        }
+        int mask = capacity - 1;
+        int tombstone = -1;
+        for (int i = hash(tconst) & mask;; i = (i + 1) & mask) {
+            int base = i * ENTRY_SIZE;
+            byte state = table.get(base + STATE_OFFSET);
+            if (state == EMPTY) {
+                if (tombstone >= 0) {
+                    base = tombstone;
+                    deleted--;
+                }
+                writeKey(base, tconst);
+                table.put(base + STATE_OFFSET, USED);
+                table.putInt(base + SLOT_OFFSET, slot);
+                size++;
+                return;
+            } else if (state == DELETED) {
+                if (tombstone < 0) {
+                    tombstone = base;
+                }
+            } else if (keyEquals(base, tconst)) {
+                table.putInt(base + SLOT_OFFSET, slot);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the record slot of a tconst
+     *
+     * @param tconst tconst attribute
+     * @return record slot, or -1 if the tconst is not indexed
+     */
+    public int get(String tconst) {
+        return get(tconst.toCharArray());
+    }
+
+    /**
+     * Get the record slot of a tconst
+     *
+     * @param tconst tconst attribute
+     * @return record slot, or -1 if the tconst is not indexed
+     */
+    public int get(char[] tconst) {
+        int base = find(tconst);
+        return base < 0 ? -1 : table.getInt(base + SLOT_OFFSET);
+    }
+
+    /**
+     * Remove a tconst if it is indexed with the given record slot
+     *
+     * @param tconst tconst attribute
+     * @param slot   record slot
+     * @return true if the entry was removed
+     */
+    public boolean remove(char[] tconst, int slot) {
+        int base = find(tconst);
+        if (base < 0 || table.getInt(base + SLOT_OFFSET) != slot) {
+            return false;
+        }
+        table.put(base + STATE_OFFSET, DELETED);
+        size--;
+        deleted++;
+        return true;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of off-heap bytes used by the table
+     *
+     * @return size in bytes
+     */
+    public long getSizeInBytes() {
+        return (long) capacity * ENTRY_SIZE;
+    }
+
+    /**
+     * Find the entry of a tconst
+     *
+     * @param tconst tconst attribute
+     * @return byte offset of the entry, or -1 if not found
+     */
+    private int find(char[] tconst) {
+        int mask = capacity - 1;
+        for (int i = hash(tconst) & mask;; i = (i + 1) & mask) {
+            int base = i * ENTRY_SIZE;
+            byte state = table.get(base + STATE_OFFSET);
+            if (state == EMPTY) {
+                return -1;
+            } else if (state == USED && keyEquals(base, tconst)) {
+                return base;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE);
+        this.size = 0;
+        this.deleted = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        char[] key = new char[KEY_SIZE];
+        for (int i = 0; i < oldCapacity; i++) {
+            int base = i * ENTRY_SIZE;
+            if (old.get(base + STATE_OFFSET) == USED) {
+                for (int j = 0; j < KEY_SIZE; j++) {
+                    key[j] = (char) old.get(base + j);
+                }
+                put(key, old.getInt(base + SLOT_OFFSET));
+            }
+        }
+    }
+
+    private void writeKey(int base, char[] tconst) {
+        for (int j = 0; j < KEY_SIZE; j++) {
+            table.put(base + j, j < tconst.length ? (byte) tconst[j] : 0);
+        }
+    }
+
+    private boolean keyEquals(int base, char[] tconst) {
+        for (int j = 0; j < KEY_SIZE; j++) {
+            byte b = j < tconst.length ? (byte) tconst[j] : 0;
+            if (table.get(base + j) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a hash over the tconst bytes, with a final mix so that the low bits
+     * used for probing depend on every byte
+     */
+    private static int hash(char[] tconst) {
+        int h = 0x811C9DC5;
+        for (int j = 0; j < KEY_SIZE; j++) {
+            h ^= j < tconst.length ? (byte) tconst[j] & 0xFF : 0;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.Arrays;
+
+/**
+ * Class representing an equi-depth histogram over an attribute, used to estimate the number
+ * of records within a range. Bucket bounds are fixed when the histogram is built, while
+ * bucket counts are maintained incrementally as records are inserted and deleted
+ */
+public class Histogram {
+
+    /**
+     * Lower bound of each bucket, inclusive
+     */
+    private double[] lowerBounds;
+
+    /**
+     * Upper bound of each bucket, inclusive
+     */
+    private double[] upperBounds;
+
+    /**
+     * Number of values in each bucket
+     */
+    private long[] counts;
+
+    /**
+     * Number of distinct values in each bucket when the histogram was built
+     */
+    private long[] distincts;
+
+    /**
+     * Smallest difference between two distinct values of the attribute (1 for numVotes,
+     * 0.1 for averageRating)
+     */
+    private double step;
+
+    /**
+     * Total number of values
+     */
+    private long total;
+
+    /**
+     * Build an equi-depth histogram from values
+     *
+     * @param values     values of the attribute, sorted in place
+     * @param numBuckets maximum number of buckets
+     * @param step       smallest difference between two distinct values
+     */
+    public Histogram(double[] values, int numBuckets, double step) {
+        Arrays.sort(values);
+        this.step = step;
+        this.total = values.length;
+        int buckets = Math.max(1, Math.min(numBuckets, values.length));
+        lowerBounds = new double[buckets];
+        upperBounds = new double[buckets];
+        counts = new long[buckets];
+        distincts = new long[buckets];
+
+        int used = 0, start = 0;
+        for (int b = 0; b < buckets && start < values.length; b++) {
+            int end = (int) ((long) values.length * (b + 1) / buckets);
+            // Never split a run of equal values across two buckets
+            while (end < values.length && end > start && values[end] == values[end - 1]) {
+                end++;
+            }
+            if (end <= start) {
+                continue;
+            }
+            lowerBounds[used] = values[start];
+            upperBounds[used] = values[end - 1];
+            counts[used] = end - start;
+            long distinct = 1;
+            for (int i = start + 1; i < end; i++) {
+                if (values[i] != values[i - 1]) {
+                    distinct++;
+                }
+            }
+            distincts[used] = distinct;
+            used++;
+            start = end;
+        }
+        lowerBounds = Arrays.copyOf(lowerBounds, used);
+        upperBounds = Arrays.copyOf(upperBounds, used);
+        counts = Arrays.copyOf(counts, used);
+        distincts = Arrays.copyOf(distincts, used);
+    }
+
+    /**
+     * Estimate the number of values within the given bounds, assuming values are spread
+     * uniformly over the distinct values of each bucket
+     *
+     * @param lower lower bound, inclusive
+     * @param upper upper bound, inclusive
+     * @return estimated number of values
+     */
+    public double estimate(double lower, double upper) {
+        double estimate = 0;
+        for (int b = 0; b < counts.length; b++) {
+            double lo = lowerBounds[b], hi = upperBounds[b];
+            if (hi < lower || lo > upper) {
+                continue;
+            }
+            if (lower <= lo && hi <= upper) {
+                estimate += counts[b];
+            } else {
+                double overlap = Math.min(upper, hi) - Math.max(lower, lo) + step;
+                double width = hi - lo + step;
+                // Cannot match fewer values than one distinct value holds on average
+                estimate += counts[b] * Math.max(overlap / width, 1.0 / distincts[b]);
+            }
+        }
+        return Math.min(estimate, total);
+    }
+
+    /**
+     * Add a value to the histogram
+     *
+     * @param value value of the inserted record
+     */
+    public void add(double value) {
+        if (counts.length == 0) {
+            return;
+        }
+        int b = findBucket(value);
+        lowerBounds[b] = Math.min(lowerBounds[b], value);
+        upperBounds[b] = Math.max(upperBounds[b], value);
+        counts[b]++;
+        total++;
+    }
+
+    /**
+     * Remove a value from the histogram
+     *
+     * @param value value of the deleted record
+     */
+    public void remove(double value) {
+        if (counts.length == 0) {
+            return;
+        }
+        int b = findBucket(value);
+        if (counts[b] > 0) {
+            counts[b]--;
+            total--;
+        }
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int getNumBuckets() {
+        return counts.length;
+    }
+
+    /**
+     * Find the bucket holding a value, or the nearest bucket if it is outside every bucket
+     */
+    private int findBucket(double value) {
+        int index = Arrays.binarySearch(upperBounds, value);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Equal upper bounds can only come from one bucket, take the first
+            while (index > 0 && upperBounds[index - 1] == value) {
+                index--;
+            }
+        }
+        return Math.min(index, counts.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < counts.length; b++) {
+            sb.append(String.format("[%s, %s]: %d%n", lowerBounds[b], upperBounds[b], counts[b]));
+        }
+        return sb.toString();
+    }
+}
@@ -11,6 +11,17 @@ public class InternalNode extends Node {
      */
     private Node[] pointers;
 
+    /**
+     * Number of records in the subtree of each child node, indexed like the pointers
+     */
+    private long[] counts;
+
+    /**
+     * Sum of averageRating of the records in the subtree of each child node, indexed
+     * like the pointers
+     */
+    private double[] ratingSums;
+
     /**
      * Construct an empty internal node of height 0 specified with whether it is a
      * root node
@@ -18,7 +29,7 @@ public class InternalNode extends Node {
      * @param isRoot whether the node is a root node
      */
     public InternalNode(boolean isRoot) {
-        this(0, 0, isRoot, new int[getN()], new Node[getN() + 1], null);
+        this(0, 0, isRoot, new long[getN()], new Node[getN() + 1], null);
     }
 
     /**
@@ -30,7 +41,7 @@ public class InternalNode extends Node {
      * @param keys     array of keys
      * @param pointers array of pointers
      */
-    public InternalNode(int height, int degree, boolean isRoot, int[] keys, Node[] pointers) {
+    public InternalNode(int height, int degree, boolean isRoot, long[] keys, Node[] pointers) {
         this(height, degree, isRoot, keys, pointers, null);
     }
 
@@ -44,9 +55,12 @@ public class InternalNode extends Node {
      * @param pointers array of pointers
      * @param parent   parent node
      */
-    public InternalNode(int height, int degree, boolean isRoot, int[] keys, Node[] pointers, InternalNode parent) {
+    public InternalNode(int height, int degree, boolean isRoot, long[] keys, Node[] pointers, InternalNode parent) {
         super(height, degree, isRoot, keys, parent);
         this.pointers = pointers;
+        this.counts = new long[pointers.length];
+        this.ratingSums = new double[pointers.length];
+        refreshCounts();
     }
 
     /**
@@ -65,6 +79,8 @@ public class InternalNode extends Node {
         // node
         System.arraycopy(src.getKeys(), 0, getKeys(), getDegree(), src.getDegree() - 1);
         System.arraycopy(src.getPointers(), 0, getPointers(), getDegree(), src.getDegree());
+        System.arraycopy(src.counts, 0, counts, getDegree(), src.getDegree());
+        System.arraycopy(src.ratingSums, 0, ratingSums, getDegree(), src.getDegree());
         setDegree(src.getDegree() + getDegree());
 
         // Delete source node
@@ -81,7 +97,7 @@ public class InternalNode extends Node {
      */
     public void moveEntryFromRightInternalNode(InternalNode right) {
         // Delete the first key and pointer of the node on the right
-        int key = right.deleteKey(0);
+        long key = right.deleteKey(0);
         Node pointer = right.deletePointer(0);
 
         // Add the key and pointer to the back of the node on the left
@@ -98,7 +114,7 @@ public class InternalNode extends Node {
      */
     public void moveEntryFromLeftInternalNode(InternalNode left) {
         // Delete the last key and pointer of the node on the left
-        int key = left.deleteKey(left.getDegree() - 2);
+        long key = left.deleteKey(left.getDegree() - 2);
         Node pointer = left.deletePointer(left.getDegree() - 1);
 
         // Add the key and pointer to the start of the node on the right
@@ -114,12 +130,14 @@ public class InternalNode extends Node {
      * @return the smallest key in the split off node and pointer to that node
      */
     public KeyNode splitNode(KeyNode newKeyPointer) {
-        int[] keys = getKeys();
+        long[] keys = getKeys();
         Node[] pointers = getPointers();
 
         // Temporarily update arrays to store existing and to be added keys and pointers
         setKeys(Arrays.copyOf(keys, keys.length + 1));
         setPointers(Arrays.copyOf(pointers, pointers.length + 1));
+        counts = Arrays.copyOf(counts, pointers.length + 1);
+        ratingSums = Arrays.copyOf(ratingSums, pointers.length + 1);
 
         // Find on which index the key and pointer can be inserted in order to keep it
         // sorted
@@ -132,17 +150,21 @@ public class InternalNode extends Node {
         // Find midpoint to split node, with first half having the extra pointer if
         // relevant
         int mid = (int) Math.ceil(getN() / 2.0);
+        long midKey = getKeys()[mid];
 
         // Split key and pointer arrays in half
-        int[] firstHalfKeys = Arrays.copyOfRange(getKeys(), 0, mid);
+        long[] firstHalfKeys = Arrays.copyOfRange(getKeys(), 0, mid);
         Node[] firstHalfPointers = Arrays.copyOfRange(getPointers(), 0, mid + 1);
-        int[] secondHalfKeys = Arrays.copyOfRange(getKeys(), mid + 1, getKeys().length);
+        long[] secondHalfKeys = Arrays.copyOfRange(getKeys(), mid + 1, getKeys().length);
         Node[] secondHalfPointers = Arrays.copyOfRange(getPointers(), mid + 1, getPointers().length);
 
         // Set keys and pointers to nodes
         setKeys(Arrays.copyOf(firstHalfKeys, keys.length));
         setPointers(Arrays.copyOf(firstHalfPointers, pointers.length));
         setDegree(firstHalfPointers.length);
+        counts = Arrays.copyOf(counts, pointers.length);
+        ratingSums = Arrays.copyOf(ratingSums, pointers.length);
+        refreshCounts();
 
         // Create a new node to store the split keys and pointers
         InternalNode newNode = new InternalNode(getHeight(), secondHalfPointers.length, false,
@@ -154,8 +176,10 @@ public class InternalNode extends Node {
             newNode.getPointers()[i].setParent(newNode);
         }
 
-        // Return pair of the smallest key in second node and pointer to second node
-        return new KeyNode(keys[mid], newNode);
+        StorageEvents.split(false, getHeight(), midKey);
+
+        // Return pair of the key pushed up to the parent and pointer to second node
+        return new KeyNode(midKey, newNode);
     }
 
     /**
@@ -164,8 +188,8 @@ public class InternalNode extends Node {
      * @param key value of key
      * @return index of child node
      */
-    public int findIndexOfNode(int key) {
-        for (int i = 0; i < getDegree() - 2; i++) {
+    public int findIndexOfNode(long key) {
+        for (int i = 0; i < getDegree() - 1; i++) {
             if (key < getKeys()[i]) {
                 return i;
             }
@@ -184,8 +208,12 @@ public class InternalNode extends Node {
     public void insertAndShift(Node pointer, int pos) {
         for (int i = pointers.length - 1; i > pos; i--) {
             pointers[i] = pointers[i - 1];
+            counts[i] = counts[i - 1];
+            ratingSums[i] = ratingSums[i - 1];
         }
         pointers[pos] = pointer;
+        counts[pos] = pointer.getRecordCount();
+        ratingSums[pos] = pointer.getRatingSum();
     }
 
     /**
@@ -197,8 +225,12 @@ public class InternalNode extends Node {
     public void deleteAndShift(int pos) {
         for (int i = pos; i < pointers.length - 1; ++i) {
             pointers[i] = pointers[i + 1];
+            counts[i] = counts[i + 1];
+            ratingSums[i] = ratingSums[i + 1];
         }
         pointers[pointers.length - 1] = null;
+        counts[pointers.length - 1] = 0;
+        ratingSums[pointers.length - 1] = 0;
     }
 
     /**
@@ -208,7 +240,7 @@ public class InternalNode extends Node {
      * @param key     key to be inserted
      * @param pointer node pointer to be inserted
      */
-    public void addSorted(int key, Node pointer) {
+    public void addSorted(long key, Node pointer) {
         int index = findIndexToInsert(key);
         insertAndShift(key, index);
         insertAndShift(pointer, index + 1);
@@ -221,7 +253,7 @@ public class InternalNode extends Node {
      * @param key key to be added
      * @param pos position to add the key
      */
-    public void addKey(int key, int pos) {
+    public void addKey(long key, int pos) {
         insertAndShift(key, pos);
     }
 
@@ -242,8 +274,8 @@ public class InternalNode extends Node {
      * @param pos position of key to be deleted
      * @return deleted key
      */
-    public int deleteKey(int pos) {
-        int key = getKeys()[pos];
+    public long deleteKey(int pos) {
+        long key = getKeys()[pos];
         super.deleteAndShift(pos);
         return key;
     }
@@ -267,9 +299,67 @@ public class InternalNode extends Node {
     public void deleteAll() {
         Arrays.fill(pointers, null);
         Arrays.fill(getKeys(), 0);
+        Arrays.fill(counts, 0);
+        Arrays.fill(ratingSums, 0);
         setDegree(0);
     }
 
+    /**
+     * Add an inserted record to the aggregates of a child node
+     * 
+     * @param pos    position of the child node
+     * @param rating averageRating of the inserted record
+     */
+    public void addToCount(int pos, float rating) {
+        counts[pos]++;
+        ratingSums[pos] += rating;
+    }
+
+    /**
+     * Recompute the aggregates of a child node from the child node
+     * 
+     * @param pos position of the child node
+     */
+    public void refreshCount(int pos) {
+        counts[pos] = pointers[pos].getRecordCount();
+        ratingSums[pos] = pointers[pos].getRatingSum();
+    }
+
+    /**
+     * Recompute the aggregates of every child node
+     */
+    public void refreshCounts() {
+        for (int i = 0; i < getDegree(); i++) {
+            refreshCount(i);
+        }
+    }
+
+    @Override
+    public long getRecordCount() {
+        long total = 0;
+        for (int i = 0; i < getDegree(); i++) {
+            total += counts[i];
+        }
+        return total;
+    }
+
+    @Override
+    public double getRatingSum() {
+        double total = 0;
+        for (int i = 0; i < getDegree(); i++) {
+            total += ratingSums[i];
+        }
+        return total;
+    }
+
+    public long[] getCounts() {
+        return counts;
+    }
+
+    public double[] getRatingSums() {
+        return ratingSums;
+    }
+
     public Node[] getPointers() {
         return pointers;
     }
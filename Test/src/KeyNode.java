@@ -6,7 +6,7 @@ public class KeyNode {
     /**
      * Key
      */
-    private int key;
+    private long key;
 
     /**
      * Pointer to node
@@ -18,16 +18,16 @@ public class KeyNode {
      * @param key key
      * @param node pointer to node
      */
-    public KeyNode(int key, Node node) {
+    public KeyNode(long key, Node node) {
         this.key = key;
         this.node = node;
     }
 
-    public int getKey() {
+    public long getKey() {
         return key;
     }
 
-    public void setKey(int key) {
+    public void setKey(long key) {
         this.key = key;
     }
 
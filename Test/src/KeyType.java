@@ -0,0 +1,160 @@
+/**
+ * Enum representing the attribute(s) a B+ tree can be built on.
+ * Every key type is encoded into a primitive long whose natural order matches the
+ * order of the attribute, so the same tree code serves all key types without boxing
+ */
+public enum KeyType {
+
+    /**
+     * numVotes attribute
+     */
+    NUM_VOTES {
+        @Override
+        public long keyOf(Record record) {
+            return record.getNumVotes();
+        }
+
+        @Override
+        public String format(long key) {
+            return Long.toString(key);
+        }
+    },
+
+    /**
+     * averageRating attribute
+     */
+    AVERAGE_RATING {
+        @Override
+        public long keyOf(Record record) {
+            return encodeRating(record.getaverageRating());
+        }
+
+        @Override
+        public String format(long key) {
+            return Float.toString(decodeRating(key));
+        }
+    },
+
+    /**
+     * Long surrogate of the tconst attribute
+     */
+    TCONST {
+        @Override
+        public long keyOf(Record record) {
+            return encodeTconst(record.getTconst());
+        }
+
+        @Override
+        public String format(long key) {
+            return decodeTconst(key);
+        }
+    },
+
+    /**
+     * Composite of averageRating and numVotes, ordered by averageRating first
+     */
+    RATING_VOTES {
+        @Override
+        public long keyOf(Record record) {
+            return encodeRatingVotes(record.getaverageRating(), record.getNumVotes());
+        }
+
+        @Override
+        public String format(long key) {
+            return String.format("(%s, %d)", decodeRating(key >> 32), (int) key ^ Integer.MIN_VALUE);
+        }
+    };
+
+    /**
+     * Extract the encoded key of a record
+     *
+     * @param record record
+     * @return encoded key
+     */
+    public abstract long keyOf(Record record);
+
+    /**
+     * Convert an encoded key back to a readable value
+     *
+     * @param key encoded key
+     * @return readable key value
+     */
+    public abstract String format(long key);
+
+    /**
+     * Encode a rating so that the order of encoded values matches the order of ratings
+     *
+     * @param rating averageRating
+     * @return encoded key
+     */
+    public static long encodeRating(float rating) {
+        int bits = Float.floatToIntBits(rating);
+        // Flip the magnitude bits of negative values so that they sort in reverse
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    /**
+     * Decode a rating encoded by {@link #encodeRating(float)}
+     *
+     * @param key encoded key
+     * @return averageRating
+     */
+    public static float decodeRating(long key) {
+        int bits = (int) key;
+        return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7FFFFFFF));
+    }
+
+    /**
+     * Encode a (averageRating, numVotes) pair, ordered by rating then numVotes
+     *
+     * @param rating   averageRating
+     * @param numVotes numVotes
+     * @return encoded key
+     */
+    public static long encodeRatingVotes(float rating, int numVotes) {
+        return (encodeRating(rating) << 32) | ((numVotes ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Encode a tconst into a long surrogate: the two-letter prefix, the number of digits
+     * and the numeric part, so that tconsts with the same prefix and width keep their order
+     *
+     * @param tconst tconst attribute, e.g. tt0000001
+     * @return encoded key
+     */
+    public static long encodeTconst(char[] tconst) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 2; i < tconst.length && tconst[i] >= '0' && tconst[i] <= '9'; i++) {
+            value = value * 10 + (tconst[i] - '0');
+            digits++;
+        }
+        long prefix = ((long) (tconst[0] & 0x7F) << 8) | (tconst[1] & 0x7F);
+        return (prefix << 48) | ((long) digits << 40) | value;
+    }
+
+    /**
+     * Encode a tconst into a long surrogate
+     *
+     * @param tconst tconst attribute, e.g. tt0000001
+     * @return encoded key
+     */
+    public static long encodeTconst(String tconst) {
+        return encodeTconst(tconst.toCharArray());
+    }
+
+    /**
+     * Decode a tconst surrogate encoded by {@link #encodeTconst(char[])}
+     *
+     * @param key encoded key
+     * @return tconst attribute
+     */
+    public static String decodeTconst(long key) {
+        char first = (char) ((key >>> 56) & 0x7F);
+        char second = (char) ((key >>> 48) & 0x7F);
+        int digits = (int) ((key >>> 40) & 0xFF);
+        long value = key & 0xFFFFFFFFFFL;
+        String number = digits == 0 ? "" : String.format("%0" + digits + "d", value);
+        return "" + first + second + number;
+    }
+}
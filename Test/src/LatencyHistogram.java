@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class representing a histogram of latencies in nanoseconds, with log-linear buckets
+ * in the manner of HdrHistogram. Values are grouped by their highest set bit, and the
+ * range of each group is split into SUB_BUCKETS linear buckets, so every recorded value
+ * is reported within a relative error of 1 / SUB_BUCKETS. Recording is lock-free, so many
+ * threads can record into one histogram
+ */
+public class LatencyHistogram {
+
+    /**
+     * Number of linear buckets per power of two, as a power of two
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets covering every non-negative long value
+     */
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Number of recorded values in each bucket
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency
+     *
+     * @param nanos latency in nanoseconds, clamped to 0 if negative
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Find the bucket of a value. Values below 2 * SUB_BUCKETS have a bucket each, and
+     * a larger value is placed by its highest set bit and the SUB_BUCKET_BITS bits below
+     *
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Find the largest value placed in a bucket
+     *
+     * @param bucket index of the bucket
+     * @return largest value of the bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Estimate the latency below which the given percentage of recorded latencies lie
+     *
+     * @param percentile percentage from 0 to 100
+     * @return latency in nanoseconds, or 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                // The bucket bound may exceed the largest recorded value
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Average of the recorded latencies
+     *
+     * @return mean latency in nanoseconds, or 0 if nothing is recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Discard every recorded latency. Latencies recorded concurrently with the reset
+     * may be partly kept
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0fns p50=%dns p99=%dns p99.9=%dns max=%dns", getCount(), getMean(),
+                getPercentile(50), getPercentile(99), getPercentile(99.9), getMax());
+    }
+}
@@ -7,7 +7,7 @@ import java.util.Arrays;
 public class LeafNode extends Node {
 
     /**
-     * Array of pointers to linked lists containing record pointers
+     * Array of pointers to posting lists containing record pointers
      */
     private RecordNode[] pointers;
 
@@ -16,13 +16,19 @@ public class LeafNode extends Node {
      */
     private LeafNode rightSibling;
 
+    /**
+     * Number of records and sum of their averageRating over all posting lists of the node
+     */
+    private long recordCount;
+    private double ratingSum;
+
     /**
      * Construct an empty leaf node specified with whether it is a root node
      * 
      * @param isRoot whether the node is a root node
      */
     public LeafNode(boolean isRoot) {
-        this(0, isRoot, new int[getN()], new RecordNode[getN()], null, null);
+        this(0, isRoot, new long[getN()], new RecordNode[getN()], null, null);
     }
 
     /**
@@ -35,7 +41,7 @@ public class LeafNode extends Node {
      * @param keys     array of keys
      * @param pointers array of pointers to records
      */
-    public LeafNode(int degree, boolean isRoot, int[] keys, RecordNode[] pointers) {
+    public LeafNode(int degree, boolean isRoot, long[] keys, RecordNode[] pointers) {
         this(degree, isRoot, keys, pointers, null, null);
     }
 
@@ -50,11 +56,12 @@ public class LeafNode extends Node {
      * @param parent       parent node
      * @param rightSibling right sibling node
      */
-    public LeafNode(int degree, boolean isRoot, int[] keys, RecordNode[] pointers, InternalNode parent,
+    public LeafNode(int degree, boolean isRoot, long[] keys, RecordNode[] pointers, InternalNode parent,
             LeafNode rightSibling) {
         super(0, degree, isRoot, keys, parent);
         this.pointers = pointers;
         this.rightSibling = rightSibling;
+        recount();
     }
 
     /**
@@ -69,6 +76,8 @@ public class LeafNode extends Node {
         System.arraycopy(src.getKeys(), 0, getKeys(), getDegree(), src.getDegree());
         System.arraycopy(src.getPointers(), 0, getPointers(), getDegree(), src.getDegree());
         setDegree(getDegree() + src.getDegree());
+        recordCount += src.getRecordCount();
+        ratingSum += src.getRatingSum();
 
         // Delete source node
         src.deleteAll();
@@ -80,12 +89,13 @@ public class LeafNode extends Node {
      * node)
      * 
      * @param key split key
-     * @param entry entry to be added
+     * @param slot record slot of the entry to be added
+     * @param rating averageRating of the record of the entry
      * @return pair of the smallest key in second node and pointer to second node,
      *         or null if an overflow leaf node was created
      */
-    public KeyNode splitLeaf(int key, RecordPointer entry) {
-        int[] keys = getKeys();
+    public KeyNode splitLeaf(long key, int slot, float rating) {
+        long[] keys = getKeys();
         RecordNode[] pointers = getPointers();
 
         // Temporarily update arrays to store the existing and to be added entry
@@ -98,21 +108,22 @@ public class LeafNode extends Node {
 
         // Insert key and pointer
         insertAndShift(key, indexToInsert);
-        insertAndShift(entry, indexToInsert);
+        insertAndShift(slot, rating, indexToInsert);
 
         // Find point to split node
         int mid = (int) Math.floor((getN() + 1) / 2.0);
 
         // Split key and pointer arrays into half
-        int[] firstHalfKeys = Arrays.copyOfRange(getKeys(), 0, mid);
+        long[] firstHalfKeys = Arrays.copyOfRange(getKeys(), 0, mid);
         RecordNode[] firstHalfPointers = Arrays.copyOfRange(getPointers(), 0, mid);
-        int[] secondHalfKeys = Arrays.copyOfRange(getKeys(), mid, getKeys().length);
+        long[] secondHalfKeys = Arrays.copyOfRange(getKeys(), mid, getKeys().length);
         RecordNode[] secondHalfPointers = Arrays.copyOfRange(getPointers(), mid, getPointers().length);
 
         // Set key-value pairs to nodes
         setKeys(Arrays.copyOf(firstHalfKeys, keys.length));
         setPointers(Arrays.copyOf(firstHalfPointers, pointers.length));
         setDegree(firstHalfPointers.length);
+        recount();
 
         // Create a new node to store the split key-value pairs
         LeafNode newLeaf = new LeafNode(secondHalfPointers.length, false, Arrays.copyOf(secondHalfKeys, keys.length),
@@ -122,32 +133,31 @@ public class LeafNode extends Node {
         LeafNode rightSibling = getRightSibling();
         setRightSibling(newLeaf);
         newLeaf.setRightSibling(rightSibling);
+        StorageEvents.split(true, 0, newLeaf.getKeys()[0]);
 
         // Return pair of the smallest key in second node and pointer to second node
         return new KeyNode(newLeaf.getKeys()[0], newLeaf);
     }
 
     /**
-     * Insert a record pointer in a new linked list to a specific index in the array
-     * of linked lists, shift the linked lists affected by the insertion and delete
-     * last linked list in the array
+     * Insert a record slot in a new posting list to a specific index in the array
+     * of posting lists, shift the posting lists affected by the insertion and delete
+     * last posting list in the array
      * 
-     * @param pointer record pointer to be inserted
-     * @param pos     index to insert
+     * @param slot   record slot to be inserted
+     * @param rating averageRating of the record
+     * @param pos    index to insert
      */
-    public void insertAndShift(RecordPointer pointer, int pos) {
+    public void insertAndShift(int slot, float rating, int pos) {
         for (int i = pointers.length - 1; i > pos; i--) {
             pointers[i] = pointers[i - 1];
         }
-        RecordPointer[] newPointers = new RecordPointer[RecordNode.getMaxSize()];
-        newPointers[0] = pointer;
-        RecordNode newHead = new RecordNode(1, newPointers, null);
-        pointers[pos] = newHead;
+        pointers[pos] = new RecordNode(slot, rating);
     }
 
     /**
-     * Delete a linked list on the specified index in the array of linked lists,
-     * then shift the linked lists accordingly
+     * Delete a posting list on the specified index in the array of posting lists,
+     * then shift the posting lists accordingly
      * 
      * @param pos position of linked list to be deleted
      */
@@ -161,32 +171,35 @@ public class LeafNode extends Node {
     /**
      * Insert entry to leaf node while keeping the keys and record pointers sorted
      * 
-     * @param key     key to be inserted
-     * @param pointer record pointer to be inserted
+     * @param key    key to be inserted
+     * @param slot   record slot to be inserted
+     * @param rating averageRating of the record
      */
-    public void addSorted(int key, RecordPointer pointer) {
+    public void addSorted(long key, int slot, float rating) {
         int index = findIndexToInsert(key);
-        if (index < getN() && getKeys()[index] == key) {
-            // Insert into the already existing linked list
-            getPointers()[index] = getPointers()[index].addPointer(pointer);
+        if (index < getDegree() && getKeys()[index] == key) {
+            // Insert into the already existing posting list
+            getPointers()[index].addSlot(slot, rating);
         } else {
-            // Create a new linked list
+            // Create a new posting list
             insertAndShift(key, index);
-            insertAndShift(pointer, index);
+            insertAndShift(slot, rating, index);
             setDegree(getDegree() + 1);
         }
+        recordCount++;
+        ratingSum += rating;
     }
 
     /**
-     * Insert new linked list to leaf node while keeping the keys and linked lists
+     * Insert new posting list to leaf node while keeping the keys and posting lists
      * sorted
      * 
      * @param key     key to be inserted
-     * @param pointer linked list to be inserted
+     * @param pointer posting list to be inserted
      */
-    public void addKey(int key, RecordNode pointer) {
+    public void addKey(long key, RecordNode pointer) {
         int index = findIndexToInsert(key);
-        // Insert the new linked list
+        // Insert the new posting list
         insertAndShift(key, index);
         RecordNode[] pointers = this.getPointers();
         for (int i = pointers.length - 1; i > index; i--) {
@@ -194,27 +207,27 @@ public class LeafNode extends Node {
         }
         pointers[index] = pointer;
         setDegree(getDegree() + 1);
+        recordCount += pointer.getSize();
+        ratingSum += pointer.getRatingSum();
     }
 
     /**
      * Delete records that match the key value
      * 
      * @param key key to delete
-     * @return the deleted records' linked list if found, otherwise null
+     * @return the deleted records' posting list if found, otherwise null
      */
-    public RecordNode delete(int key) {
+    public RecordNode delete(long key) {
         for (int i = 0; i < getDegree(); i++) {
             if (getKeys()[i] == key) {
-                RecordNode temp, list = pointers[i];
+                RecordNode list = pointers[i];
                 super.deleteAndShift(i);
                 deleteAndShift(i);
                 setDegree(getDegree() - 1);
-                temp = list;
+                recordCount -= list.getSize();
+                ratingSum -= list.getRatingSum();
                 // Increase total number of deleted nodes
-                while (temp != null) {
-                    storage.logDeletedNodeCount();
-                    temp = temp.getNext();
-                }
+                storage().logDeletedNodeCount();
                 return list;
             }
         }
@@ -222,7 +235,7 @@ public class LeafNode extends Node {
     }
 
     /**
-     * Delete an entry's corresponding linked list by its index in the node
+     * Delete an entry's corresponding posting list by its index in the node
      * 
      * @param index index of entry to be deleted
      * @return deleted entry
@@ -232,6 +245,8 @@ public class LeafNode extends Node {
         super.deleteAndShift(index);
         deleteAndShift(index);
         setDegree(getDegree() - 1);
+        recordCount -= list.getSize();
+        ratingSum -= list.getRatingSum();
         return list;
     }
 
@@ -242,6 +257,30 @@ public class LeafNode extends Node {
         Arrays.fill(pointers, null);
         Arrays.fill(getKeys(), 0);
         setDegree(0);
+        recordCount = 0;
+        ratingSum = 0;
+    }
+
+    /**
+     * Recompute the number of records and sum of averageRating from the posting lists
+     */
+    private void recount() {
+        recordCount = 0;
+        ratingSum = 0;
+        for (int i = 0; i < getDegree(); i++) {
+            recordCount += pointers[i].getSize();
+            ratingSum += pointers[i].getRatingSum();
+        }
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public double getRatingSum() {
+        return ratingSum;
     }
 
     public RecordNode[] getPointers() {
@@ -0,0 +1,325 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Class representing a learned index (RadixSpline) on a static set of keys, as an
+ * alternative to the B+ tree. The distinct keys are stored sorted, and a linear spline
+ * through some of them maps a key to its position in the sorted array with an error of
+ * at most maxError positions. A radix table on the leading bits of the key narrows the
+ * search for the spline segment, so a lookup is a table read, a short binary search
+ * over spline points, an interpolation and a binary search within the error bound.
+ *
+ * The index is built once from the records and is not updated when records change
+ */
+public class LearnedIndex {
+
+    /**
+     * Number of leading key bits used by the radix table
+     */
+    private static final int RADIX_BITS = 12;
+
+    /**
+     * Distinct keys in ascending order
+     */
+    private final long[] keys;
+
+    /**
+     * Position of the first slot of each key in the slot array, with one extra entry
+     * holding the total number of slots
+     */
+    private final int[] offsets;
+
+    /**
+     * Record slots of all keys, ascending within each key
+     */
+    private final int[] slots;
+
+    /**
+     * Maximum distance between the predicted and actual position of a key
+     */
+    private final int maxError;
+
+    /**
+     * Keys and positions of the spline points, in ascending order
+     */
+    private final long[] splineKeys;
+    private final int[] splinePositions;
+
+    /**
+     * Index of the first spline point of every radix prefix, with one extra entry
+     */
+    private final int[] radixTable;
+
+    /**
+     * Number of low bits dropped from a key offset to get its radix prefix
+     */
+    private final int shift;
+
+    /**
+     * Number of records stored in one block of the storage, to unpack record slots
+     */
+    private final int recordsPerBlock;
+
+    /**
+     * Build a learned index on keys and the record slots having them
+     *
+     * @param recordKeys      key of each record
+     * @param recordSlots     slot of each record, indexed like the keys
+     * @param count           number of records
+     * @param maxError        maximum distance between the predicted and actual position
+     * @param recordsPerBlock number of records stored in one block of the storage
+     */
+    public LearnedIndex(long[] recordKeys, int[] recordSlots, int count, int maxError, int recordsPerBlock) {
+        this.maxError = Math.max(1, maxError);
+        this.recordsPerBlock = recordsPerBlock;
+
+        // Sort the records by key, then by slot, as key offset and slot packed in a long
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minKey = Math.min(minKey, recordKeys[i]);
+            maxKey = Math.max(maxKey, recordKeys[i]);
+        }
+        long[] sorted = new long[count];
+        int[] sortedSlots = new int[count];
+        if (count == 0 || maxKey - minKey >= 0 && maxKey - minKey <= Integer.MAX_VALUE) {
+            long[] packed = new long[count];
+            for (int i = 0; i < count; i++) {
+                packed[i] = (recordKeys[i] - minKey) << 32 | (recordSlots[i] & 0xFFFFFFFFL);
+            }
+            Arrays.sort(packed);
+            for (int i = 0; i < count; i++) {
+                sorted[i] = (packed[i] >>> 32) + minKey;
+                sortedSlots[i] = (int) packed[i];
+            }
+        } else {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> recordKeys[a] != recordKeys[b]
+                    ? Long.compare(recordKeys[a], recordKeys[b])
+                    : Integer.compare(recordSlots[a], recordSlots[b]));
+            for (int i = 0; i < count; i++) {
+                sorted[i] = recordKeys[order[i]];
+                sortedSlots[i] = recordSlots[order[i]];
+            }
+        }
+
+        int numKeys = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                numKeys++;
+            }
+        }
+        keys = new long[numKeys];
+        offsets = new int[numKeys + 1];
+        slots = sortedSlots;
+        for (int i = 0, k = -1; i < count; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                keys[++k] = sorted[i];
+                offsets[k] = i;
+            }
+        }
+        offsets[numKeys] = count;
+
+        // Fit the spline, then index its points by key prefix
+        int[] points = fitSpline();
+        splineKeys = new long[points.length];
+        splinePositions = points;
+        for (int i = 0; i < points.length; i++) {
+            splineKeys[i] = keys[points[i]];
+        }
+        long span = numKeys == 0 ? 0 : keys[numKeys - 1] - keys[0];
+        shift = Math.max(0, 64 - Long.numberOfLeadingZeros(span) - RADIX_BITS);
+        radixTable = new int[(int) (span >>> shift) + 2];
+        for (int prefix = 0, point = 0; prefix < radixTable.length; prefix++) {
+            while (point < splineKeys.length && prefixOf(splineKeys[point]) < prefix) {
+                point++;
+            }
+            radixTable[prefix] = point;
+        }
+    }
+
+    /**
+     * Choose the spline points with a greedy corridor: a segment is extended from its
+     * first point as long as every key on it stays within maxError positions of the
+     * line, which holds while the line stays between the tightest upper and lower
+     * bounds seen so far
+     *
+     * @return positions of the spline points in ascending order
+     */
+    private int[] fitSpline() {
+        if (keys.length <= 2) {
+            int[] points = new int[keys.length];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = i;
+            }
+            return points;
+        }
+        int[] points = new int[keys.length];
+        int numPoints = 0;
+        points[numPoints++] = 0;
+        int base = 0;
+        // Slopes of the corridor from the base point, as rise over run
+        double upper = Double.POSITIVE_INFINITY, lower = Double.NEGATIVE_INFINITY;
+        for (int i = 1; i < keys.length; i++) {
+            double run = (double) (keys[i] - keys[base]);
+            double slope = (i - base) / run;
+            if (slope > upper || slope < lower) {
+                // Point i is outside the corridor, so the previous point ends the segment
+                base = i - 1;
+                points[numPoints++] = base;
+                run = (double) (keys[i] - keys[base]);
+                upper = (i - base + maxError) / run;
+                lower = (i - base - maxError) / run;
+            } else {
+                upper = Math.min(upper, (i - base + maxError) / run);
+                lower = Math.max(lower, (i - base - maxError) / run);
+            }
+        }
+        if (points[numPoints - 1] != keys.length - 1) {
+            points[numPoints++] = keys.length - 1;
+        }
+        return Arrays.copyOf(points, numPoints);
+    }
+
+    private long prefixOf(long key) {
+        return (key - keys[0]) >>> shift;
+    }
+
+    /**
+     * Predict the position of a key from the spline
+     *
+     * @param key search key, within the key range
+     * @return predicted position of the key in the sorted array
+     */
+    private double predict(long key) {
+        int prefix = (int) prefixOf(key);
+        // Find the first spline point not below the key, among the points of the prefix
+        int lo = Math.max(1, radixTable[prefix]), hi = Math.min(radixTable[prefix + 1], splineKeys.length - 1);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (splineKeys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        long x0 = splineKeys[lo - 1], x1 = splineKeys[lo];
+        int y0 = splinePositions[lo - 1], y1 = splinePositions[lo];
+        return y0 + (double) (key - x0) * (y1 - y0) / (x1 - x0);
+    }
+
+    /**
+     * Find the position of the first key greater than or equal to the given key,
+     * searching only within the error bound around the predicted position
+     *
+     * @param key search key
+     * @return position of the first key not below the search key, or the number of
+     *         keys if there is none
+     */
+    private int lowerBound(long key) {
+        if (keys.length == 0 || key <= keys[0]) {
+            return 0;
+        } else if (key > keys[keys.length - 1]) {
+            return keys.length;
+        } else if (splineKeys.length < 2) {
+            return lowerBound(key, 0, keys.length);
+        }
+        double predicted = predict(key);
+        int lo = Math.max(0, (int) predicted - maxError - 1);
+        int hi = Math.min(keys.length, (int) predicted + maxError + 2);
+        int pos = lowerBound(key, lo, hi);
+        if ((pos == lo && lo > 0 && keys[lo - 1] >= key) || (pos == hi && hi < keys.length)) {
+            // Rounding moved the window off the key, so search the whole array
+            pos = lowerBound(key, 0, keys.length);
+        }
+        return pos;
+    }
+
+    private int lowerBound(long key, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Search for records with the specified value
+     *
+     * @param key search key
+     * @return a list of record addresses with a key value equal to the search key
+     */
+    public ArrayList<RecordPointer> search(long key) {
+        return search(key, key);
+    }
+
+    /**
+     * Search for records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return a list of record addresses in key order
+     */
+    public ArrayList<RecordPointer> search(long lower, long upper) {
+        ArrayList<RecordPointer> results = new ArrayList<>();
+        if (upper < lower) {
+            return results;
+        }
+        int from = offsets[lowerBound(lower)];
+        int to = offsets[upper == Long.MAX_VALUE ? keys.length : lowerBound(upper + 1)];
+        for (int i = from; i < to; i++) {
+            results.add(RecordPointer.fromSlot(slots[i], recordsPerBlock));
+        }
+        return results;
+    }
+
+    /**
+     * Count records with value within the given lower and upper bounds
+     *
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return number of records within the bounds
+     */
+    public long countRange(long lower, long upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        return offsets[upper == Long.MAX_VALUE ? keys.length : lowerBound(upper + 1)] - offsets[lowerBound(lower)];
+    }
+
+    public int getNumKeys() {
+        return keys.length;
+    }
+
+    public int getNumSplinePoints() {
+        return splineKeys.length;
+    }
+
+    public int getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Approximate number of bytes used by the spline and radix table
+     *
+     * @return size of the model in bytes
+     */
+    public long getModelSizeInBytes() {
+        return 12L * splineKeys.length + 4L * radixTable.length;
+    }
+
+    /**
+     * Approximate number of bytes used by the index, including keys and record slots
+     *
+     * @return size of the index in bytes
+     */
+    public long getSizeInBytes() {
+        return getModelSizeInBytes() + 8L * keys.length + 4L * offsets.length + 4L * slots.length;
+    }
+}
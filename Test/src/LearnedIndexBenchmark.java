@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmark of the learned index on numVotes against the B+ tree: build time,
+ * approximate memory and lookup latency of point and range searches, at both block
+ * sizes
+ */
+public class LearnedIndexBenchmark implements Constants {
+
+    private static final int MAX_ERROR = 32;
+    private static final int NUM_LOOKUPS = 200000;
+    private static final int RANGE_WIDTH = 100;
+    private static final long SEED = 4031;
+
+    public static void main(String[] args) {
+        System.out.println("Running Learned Index Benchmark");
+        System.out.printf("%9s %-8s %10s %12s %12s %12s%n", "blockSize", "index", "build ms", "bytes",
+                "point ns", "range ns");
+
+        for (int blockSize : new int[] { BLOCK_SIZE_1, BLOCK_SIZE_2 }) {
+            Storage st = new Storage(blockSize, RECORD_SIZE, MEMORY_SIZE);
+            st.initWithTSV("data.tsv");
+            Node.setStorage(st);
+            Node.setNFromBlockSize(blockSize);
+            RecordNode.setMaxSizeFromBlockSize(blockSize);
+
+            long start = System.nanoTime();
+            st.buildIndex();
+            double treeBuild = (System.nanoTime() - start) / 1e6;
+            Node tree = st.getBPT();
+
+            start = System.nanoTime();
+            LearnedIndex learned = st.buildLearnedIndex(MAX_ERROR);
+            double learnedBuild = (System.nanoTime() - start) / 1e6;
+
+            // Search keys drawn from the numVotes range, so that both hits and misses occur
+            long maxKey = tree.select(tree.getRecordCount() - 1);
+            long[] lookups = new long[NUM_LOOKUPS];
+            Random random = new Random(SEED);
+            for (int i = 0; i < NUM_LOOKUPS; i++) {
+                lookups[i] = i % 2 == 0 ? random.nextInt(10000) : (long) (random.nextDouble() * maxKey);
+            }
+
+            // Run each measurement twice, reporting the second run once the code is warm.
+            // The B+ tree is searched without the node access logging of Node.search,
+            // which the learned index does not do either
+            long treePoint = 0, treeRange = 0, learnedPoint = 0, learnedRange = 0, check = 0;
+            for (int run = 0; run < 2; run++) {
+                start = System.nanoTime();
+                for (long key : lookups) {
+                    check += searchLeaves(tree, key, key, st.getRecordsPerBlock()).size();
+                }
+                treePoint = (System.nanoTime() - start) / NUM_LOOKUPS;
+                start = System.nanoTime();
+                for (long key : lookups) {
+                    check += searchLeaves(tree, key, key + RANGE_WIDTH, st.getRecordsPerBlock()).size();
+                }
+                treeRange = (System.nanoTime() - start) / NUM_LOOKUPS;
+                start = System.nanoTime();
+                for (long key : lookups) {
+                    check -= learned.search(key).size();
+                }
+                learnedPoint = (System.nanoTime() - start) / NUM_LOOKUPS;
+                start = System.nanoTime();
+                for (long key : lookups) {
+                    check -= learned.search(key, key + RANGE_WIDTH).size();
+                }
+                learnedRange = (System.nanoTime() - start) / NUM_LOOKUPS;
+            }
+            if (check != 0) {
+                System.out.println("Learned index results differ from the B+ tree");
+            }
+
+            System.out.printf("%9d %-8s %10.1f %12d %12d %12d%n", blockSize, "B+ tree", treeBuild,
+                    getSizeInBytes(tree), treePoint, treeRange);
+            System.out.printf("%9d %-8s %10.1f %12d %12d %12d%n", blockSize, "learned", learnedBuild,
+                    learned.getSizeInBytes(), learnedPoint, learnedRange);
+            System.out.printf("Learned index: %d keys, %d spline points, model %d bytes, max error %d%n",
+                    learned.getNumKeys(), learned.getNumSplinePoints(), learned.getModelSizeInBytes(),
+                    learned.getMaxError());
+        }
+    }
+
+    /**
+     * Search a B+ tree like Node.search, descending to the leaf node of the lower bound
+     * and following the leaf node siblings, without logging node accesses
+     *
+     * @param root            root node of the B+ tree
+     * @param lower           lower bound of the search key, inclusive
+     * @param upper           upper bound of the search key, inclusive
+     * @param recordsPerBlock number of records stored in one block of the storage
+     * @return a list of record addresses in key order
+     */
+    private static ArrayList<RecordPointer> searchLeaves(Node root, long lower, long upper, int recordsPerBlock) {
+        Node node = root;
+        while (node instanceof InternalNode) {
+            InternalNode internalNode = (InternalNode) node;
+            node = internalNode.getPointers()[internalNode.findIndexOfNode(lower)];
+        }
+        ArrayList<RecordPointer> results = new ArrayList<>();
+        for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.getRightSibling()) {
+            long[] keys = leaf.getKeys();
+            for (int i = 0; i < leaf.getDegree(); i++) {
+                if (upper < keys[i]) {
+                    return results;
+                }
+                if (lower <= keys[i]) {
+                    leaf.getPointers()[i].retrievePointers(results, recordsPerBlock);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Approximate number of bytes used by a B+ tree, counting the arrays of every node
+     * and the payload of every posting list
+     *
+     * @param node root node of the subtree
+     * @return size of the subtree in bytes
+     */
+    private static long getSizeInBytes(Node node) {
+        long size = 8L * node.getKeys().length;
+        if (node instanceof LeafNode) {
+            RecordNode[] pointers = ((LeafNode) node).getPointers();
+            size += 8L * pointers.length;
+            for (int i = 0; i < node.getDegree(); i++) {
+                size += pointers[i].getSizeInBytes();
+            }
+        } else {
+            Node[] pointers = ((InternalNode) node).getPointers();
+            // Child pointers, subtree counts and subtree rating sums
+            size += 24L * pointers.length;
+            for (int i = 0; i < node.getDegree(); i++) {
+                size += getSizeInBytes(pointers[i]);
+            }
+        }
+        return size;
+    }
+}
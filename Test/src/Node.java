@@ -1,14 +1,24 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * Interface representing a node in a B+ tree
+ * Keys are held as longs, using the order-preserving encoding of the tree's {@link KeyType}
  */
 public abstract class Node {
     /**
      * Storage for logging purposes
      */
     protected static Storage storage;
+    /**
+     * Storage bound to the current thread, used instead of the shared storage while
+     * the thread works on the B+ tree of another storage, such as a shard
+     */
+    private static final ThreadLocal<Storage> boundStorage = new ThreadLocal<>();
     /**
      * Maximum number of keys that can be held
      */
@@ -28,7 +38,7 @@ public abstract class Node {
     /**
      * Array of keys
      */
-    private int[] keys;
+    private long[] keys;
     /**
      * Parent node
      */
@@ -42,7 +52,7 @@ public abstract class Node {
      * @param keys
      * @param parent
      */
-    public Node(int height, int degree, boolean isRoot, int[] keys, InternalNode parent) {
+    public Node(int height, int degree, boolean isRoot, long[] keys, InternalNode parent) {
         this.height = height;
         this.degree = degree;
         this.isRoot = isRoot;
@@ -53,45 +63,74 @@ public abstract class Node {
     /**
      * Search for records with the specified value
      * 
-     * @param key search key (numVotes)
+     * @param key             search key (numVotes)
+     * @param recordsPerBlock number of records stored in one block of the storage
      * @return a list of record addresses with a key value equal to the search key
      */
-    public ArrayList<RecordPointer> search(int key) {
+    public ArrayList<RecordPointer> search(long key, int recordsPerBlock) {
         // Reset logs for experiment
-        storage.resetLog();
+        storage().resetLog();
 
         // Since there could be more than one result for a search key, searching for a
         // single key can be done
         // by using range search, with the search key as both the lower and upper bound
-        return bPlusSearch(null, key, key);
+        StorageEvents.LeafScan event = new StorageEvents.LeafScan();
+        event.begin();
+        ArrayList<RecordPointer> results = bPlusSearch(null, key, key, recordsPerBlock);
+        commitScan(event, key, key, results.size());
+        return results;
     }
 
     /**
      * Search for records with value within the given lower and upper bounds
      * 
-     * @param lower lower bound of the search key, inclusive (numVotes)
-     * @param upper upper bound of the search key, inclusive (numVotes)
+     * @param lower           lower bound of the search key, inclusive (numVotes)
+     * @param upper           upper bound of the search key, inclusive (numVotes)
+     * @param recordsPerBlock number of records stored in one block of the storage
      * @return a list of record addresses with a key value ranging from the lower to
      *         upper bounds
      */
-    public ArrayList<RecordPointer> search(int lower, int upper) {
+    public ArrayList<RecordPointer> search(long lower, long upper, int recordsPerBlock) {
         // Reset logs for experiment
-        storage.resetLog();
+        storage().resetLog();
 
-        return bPlusSearch(null, lower, upper);
+        StorageEvents.LeafScan event = new StorageEvents.LeafScan();
+        event.begin();
+        ArrayList<RecordPointer> results = bPlusSearch(null, lower, upper, recordsPerBlock);
+        commitScan(event, lower, upper, results.size());
+        return results;
+    }
+
+    /**
+     * Commit a leaf scan event if it is enabled
+     * 
+     * @param event   begun event
+     * @param lower   lower bound of the scan
+     * @param upper   upper bound of the scan
+     * @param records number of records found
+     */
+    private static void commitScan(StorageEvents.LeafScan event, long lower, long upper, long records) {
+        if (event.shouldCommit()) {
+            event.lower = lower;
+            event.upper = upper;
+            event.records = records;
+            event.commit();
+        }
     }
 
     /**
      * Search for records with value within the given lower and upper bounds
      * within the B+ Tree
      * 
-     * @param results list for storing results
-     * @param lower   lower bound of search
-     * @param upper   upper bound of search
+     * @param results         list for storing results
+     * @param lower           lower bound of search
+     * @param upper           upper bound of search
+     * @param recordsPerBlock number of records stored in one block of the storage
      * @return a list of record addresses with a key value ranging from the lower to
      *         the upper bounds
      */
-    public ArrayList<RecordPointer> bPlusSearch(ArrayList<RecordPointer> results, int lower, int upper) {
+    public ArrayList<RecordPointer> bPlusSearch(ArrayList<RecordPointer> results, long lower, long upper,
+            int recordsPerBlock) {
         if (results == null) {
             results = new ArrayList<RecordPointer>();
         }
@@ -99,65 +138,374 @@ public abstract class Node {
             // Iterate through leaf node to find all occurrences of search key
             LeafNode node = (LeafNode) this;
             // Record node access here, since leaf nodes can be traversed through siblings
-            storage.logNodeAccess(node);
+            storage().logNodeAccess(node);
 
-            int[] keys = node.getKeys();
+            long[] keys = node.getKeys();
 
             for (int i = 0; i < node.getDegree(); i++) {
                 // Add to result if current key value is within lower and upper bounds
                 // Finish search if it is higher than the upper bound
                 if (lower <= keys[i] && keys[i] <= upper) {
-                    // Record node access of the linked list node
-                    storage.logNodeAccess(node.getPointers()[i]);
-                    results.addAll(node.getPointers()[i].retrievePointers());
+                    // Record node access of the posting list
+                    storage().logNodeAccess(node.getPointers()[i]);
+                    node.getPointers()[i].retrievePointers(results, recordsPerBlock);
                 } else if (upper < keys[i]) {
                     return results;
                 }
             }
             // Iterate to right sibling of leaf node
-            node.getRightSibling().bPlusSearch(results, lower, upper);
+            if (node.getRightSibling() != null) {
+                node.getRightSibling().bPlusSearch(results, lower, upper, recordsPerBlock);
+            }
 
         } else if (this instanceof InternalNode) {
             InternalNode node = (InternalNode) this;
             // Record node access
-            storage.logNodeAccess(node);
+            storage().logNodeAccess(node);
 
             // Traverse to the leftmost subtree possibly containing the lower bound
             int child = node.findIndexOfNode(lower);
-            node.getPointers()[child].bPlusSearch(results, lower, upper);
+            node.getPointers()[child].bPlusSearch(results, lower, upper, recordsPerBlock);
+        }
+        return results;
+    }
+
+    /**
+     * Search for record slots with value within the given lower and upper bounds,
+     * collecting them into a bitmap without materialising record pointers
+     * 
+     * @param lower lower bound of the search key, inclusive (numVotes)
+     * @param upper upper bound of the search key, inclusive (numVotes)
+     * @return bitmap of record slots with a key value ranging from the lower to
+     *         upper bounds
+     */
+    public CompressedBitmap searchBitmap(long lower, long upper) {
+        // Reset logs for experiment
+        storage().resetLog();
+
+        StorageEvents.LeafScan event = new StorageEvents.LeafScan();
+        event.begin();
+        CompressedBitmap results = new CompressedBitmap();
+        LeafNode node = findLeaf(lower);
+        scan: while (node != null) {
+            // Record node access here, since leaf nodes can be traversed through siblings
+            storage().logNodeAccess(node);
+            long[] keys = node.getKeys();
+            for (int i = 0; i < node.getDegree(); i++) {
+                if (upper < keys[i]) {
+                    break scan;
+                } else if (lower <= keys[i]) {
+                    storage().logNodeAccess(node.getPointers()[i]);
+                    node.getPointers()[i].forEachSlot(results::add);
+                }
+            }
+            node = node.getRightSibling();
+        }
+        commitScan(event, lower, upper, results.getCardinality());
+        return results;
+    }
+
+    /**
+     * Search for record slots with any of the given keys. The tree is descended once to
+     * the leaf node of the first key, and later keys are found by following the right
+     * siblings, descending again only when a key lies beyond the next leaf node
+     * 
+     * @param keys search keys in ascending order, without duplicates
+     * @return bitmap of record slots with a key value equal to one of the search keys
+     */
+    public CompressedBitmap searchBitmap(long[] keys) {
+        // Reset logs for experiment
+        storage().resetLog();
+
+        CompressedBitmap results = new CompressedBitmap();
+        if (keys.length == 0) {
+            return results;
+        }
+        LeafNode node = findLeaf(keys[0]);
+        storage().logNodeAccess(node);
+        int i = 0;
+        for (long key : keys) {
+            // Move to the leaf node possibly containing the key
+            boolean descended = false;
+            while (node.getDegree() == 0 || key > node.getKeys()[node.getDegree() - 1]) {
+                LeafNode next = node.getRightSibling();
+                if (next == null) {
+                    return results;
+                }
+                if (!descended && next.getDegree() > 0 && key > next.getKeys()[next.getDegree() - 1]) {
+                    // Skipping more than one leaf node costs more than a descent
+                    node = findLeaf(key);
+                    descended = true;
+                } else {
+                    node = next;
+                }
+                storage().logNodeAccess(node);
+                i = 0;
+            }
+            long[] nodeKeys = node.getKeys();
+            while (i < node.getDegree() && nodeKeys[i] < key) {
+                i++;
+            }
+            if (i < node.getDegree() && nodeKeys[i] == key) {
+                storage().logNodeAccess(node.getPointers()[i]);
+                node.getPointers()[i].forEachSlot(results::add);
+            }
         }
         return results;
     }
 
+    /**
+     * Visit the entries with a key within the given bounds in key order, recording
+     * node accesses. Every child node overlapping the range is descended into rather
+     * than following the right siblings of leaf nodes, so the scan also works on trees
+     * of a {@link VersionedIndex}, whose nodes keep no sibling links
+     * 
+     * @param lower   lower bound of the search key, inclusive
+     * @param upper   upper bound of the search key, inclusive
+     * @param visitor visitor of the entries
+     * @return false if the scan was stopped by the visitor or by a key beyond the
+     *         upper bound
+     */
+    public boolean descendRange(long lower, long upper, EntryVisitor visitor) {
+        storage().logNodeAccess(this);
+        if (this instanceof LeafNode) {
+            LeafNode node = (LeafNode) this;
+            long[] keys = node.getKeys();
+            for (int i = 0; i < node.getDegree(); i++) {
+                if (upper < keys[i]) {
+                    return false;
+                } else if (lower <= keys[i]) {
+                    storage().logNodeAccess(node.getPointers()[i]);
+                    if (!visitor.visit(keys[i], node.getPointers()[i])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        InternalNode node = (InternalNode) this;
+        for (int i = node.findIndexOfNode(lower); i < node.getDegree(); i++) {
+            if (i > 0 && upper < node.getKeys()[i - 1]) {
+                return false;
+            }
+            if (!node.getPointers()[i].descendRange(lower, upper, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count records with value within the given lower and upper bounds from the
+     * subtree counts, without reading any record. Only the nodes on the paths to the
+     * two bounds are accessed, regardless of the width of the range
+     * 
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return number of records with a key value ranging from the lower to upper
+     *         bounds
+     */
+    public long countRange(long lower, long upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        return (long) prefix(upper, true, false) - (long) prefix(lower, false, false);
+    }
+
+    /**
+     * Sum averageRating of records with value within the given lower and upper bounds
+     * from the subtree sums, without reading any record
+     * 
+     * @param lower lower bound of the search key, inclusive
+     * @param upper upper bound of the search key, inclusive
+     * @return sum of averageRating of records with a key value ranging from the lower
+     *         to upper bounds
+     */
+    public double sumRatingRange(long lower, long upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        return prefix(upper, true, true) - prefix(lower, false, true);
+    }
+
+    /**
+     * Find the rank of a key, which is the number of records with a smaller key
+     * 
+     * @param key search key
+     * @return number of records with a key value smaller than the search key
+     */
+    public long rank(long key) {
+        return (long) prefix(key, false, false);
+    }
+
+    /**
+     * Find the key of the record at the given rank in key order
+     * 
+     * @param rank rank of the record, starting from 0
+     * @return key of the record, or -1 if the rank is out of range
+     */
+    public long select(long rank) {
+        if (rank < 0) {
+            return -1;
+        }
+        Node node = this;
+        while (node instanceof InternalNode) {
+            InternalNode internalNode = (InternalNode) node;
+            storage().logNodeAccess(internalNode);
+            long[] counts = internalNode.getCounts();
+            int i = 0;
+            // Skip the children holding only records of smaller rank
+            while (i < internalNode.getDegree() - 1 && rank >= counts[i]) {
+                rank -= counts[i++];
+            }
+            node = internalNode.getPointers()[i];
+        }
+        LeafNode leaf = (LeafNode) node;
+        storage().logNodeAccess(leaf);
+        for (int i = 0; i < leaf.getDegree(); i++) {
+            int size = leaf.getPointers()[i].getSize();
+            if (rank < size) {
+                return leaf.getKeys()[i];
+            }
+            rank -= size;
+        }
+        return -1;
+    }
+
+    /**
+     * Aggregate the records with a key value smaller than (or equal to) the search
+     * key by descending to one leaf, adding up the aggregates of every child node
+     * left of the path
+     * 
+     * @param key       search key
+     * @param inclusive whether records with a key value equal to the search key are
+     *                  included
+     * @param ratingSum whether to sum averageRating instead of counting records
+     * @return number of records or sum of their averageRating
+     */
+    private double prefix(long key, boolean inclusive, boolean ratingSum) {
+        double total = 0;
+        Node node = this;
+        while (node instanceof InternalNode) {
+            InternalNode internalNode = (InternalNode) node;
+            storage().logNodeAccess(internalNode);
+            // Child nodes left of the one possibly containing the key only hold smaller keys
+            int child = internalNode.findIndexOfNode(key);
+            for (int i = 0; i < child; i++) {
+                total += ratingSum ? internalNode.getRatingSums()[i] : internalNode.getCounts()[i];
+            }
+            node = internalNode.getPointers()[child];
+        }
+        LeafNode leaf = (LeafNode) node;
+        storage().logNodeAccess(leaf);
+        for (int i = 0; i < leaf.getDegree(); i++) {
+            long k = leaf.getKeys()[i];
+            if (k > key || (k == key && !inclusive)) {
+                break;
+            }
+            RecordNode list = leaf.getPointers()[i];
+            total += ratingSum ? list.getRatingSum() : list.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Replace the slots of records in the posting list of their key after the records
+     * were moved to other slots, without rebalancing or recording node accesses
+     * 
+     * @param key      key of the records
+     * @param oldSlots slots the records were moved from
+     * @param newSlots slots the records were moved to, in the same order
+     * @return number of slots found and replaced
+     */
+    public int relocate(long key, int[] oldSlots, int[] newSlots) {
+        Node cur = this;
+        while (cur instanceof InternalNode) {
+            InternalNode internalNode = (InternalNode) cur;
+            cur = internalNode.getPointers()[internalNode.findIndexOfNode(key)];
+        }
+        for (LeafNode node = (LeafNode) cur; node != null; node = node.getRightSibling()) {
+            for (int i = 0; i < node.getDegree(); i++) {
+                if (key < node.getKeys()[i]) {
+                    return 0;
+                } else if (key == node.getKeys()[i]) {
+                    return node.getPointers()[i].replaceSlots(oldSlots, newSlots);
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Traverse from the current node to the leftmost leaf node possibly containing
+     * the key, recording accesses of internal nodes
+     * 
+     * @param key search key
+     * @return leaf node
+     */
+    public LeafNode findLeaf(long key) {
+        StorageEvents.TreeDescent event = new StorageEvents.TreeDescent();
+        event.begin();
+        Node node = this;
+        int nodes = 0;
+        while (node instanceof InternalNode) {
+            InternalNode internalNode = (InternalNode) node;
+            storage().logNodeAccess(internalNode);
+            node = internalNode.getPointers()[internalNode.findIndexOfNode(key)];
+            nodes++;
+        }
+        if (event.shouldCommit()) {
+            event.key = key;
+            event.nodes = nodes;
+            event.commit();
+        }
+        return (LeafNode) node;
+    }
+
     /**
      * Insert to B+ tree with numVotes as key
-     * Value of the entry is the logical address of the record (Block ID, Record ID)
+     * Value of the entry is the slot of the record (see {@link RecordPointer#toSlot(int)})
+     * 
+     * @param root   root node of the B+ Tree
+     * @param record record to be inserted
+     * @param slot   slot of record to be inserted
+     * @return root root node of the B+ tree
+     */
+    public static Node insert(Node root, Record record, int slot) {
+        return insert(root, KeyType.NUM_VOTES, record, slot);
+    }
+
+    /**
+     * Insert to B+ tree with the key of the record given by the key type
+     * Value of the entry is the slot of the record (see {@link RecordPointer#toSlot(int)})
      * 
      * @param root    root node of the B+ Tree
+     * @param keyType attribute(s) the tree is built on
      * @param record  record to be inserted
-     * @param pointer address of record to be inserted
+     * @param slot    slot of record to be inserted
      * @return root root node of the B+ tree
      */
-    public static Node insert(Node root, Record record, RecordPointer pointer) {
+    public static Node insert(Node root, KeyType keyType, Record record, int slot) {
         // Create new tree if root is null
         if (root == null) {
             root = new LeafNode(true);
         }
 
-        int key = record.getNumVotes();
+        long key = keyType.keyOf(record);
         // Insert by traversing the tree from the root node
-        KeyNode newRoot = root.bPlusInsert(key, pointer);
+        KeyNode newRoot = root.bPlusInsert(key, slot, record.getaverageRating());
         return newRoot.getNode();
     }
 
     /**
      * Recursive insertion in B+ tree
      * @param key
-     * @param pointer
+     * @param slot
+     * @param rating averageRating of the record, added to the subtree sums
      * @return a KeyNode of either the new root or the split child if current node
      * was split, otherwise null
      */
-    public KeyNode bPlusInsert(int key, RecordPointer pointer) {
+    public KeyNode bPlusInsert(long key, int slot, float rating) {
         KeyNode splitChild = null;
         boolean split = false;
         if (this instanceof InternalNode) {
@@ -167,9 +515,13 @@ public abstract class Node {
             int child = curNode.findIndexOfNode(key);
 
             // Insert entry to subtree
-            splitChild = curNode.getPointers()[child].bPlusInsert(key, pointer);
+            splitChild = curNode.getPointers()[child].bPlusInsert(key, slot, rating);
 
-            if (splitChild != null) {
+            if (splitChild == null) {
+                curNode.addToCount(child, rating);
+            } else {
+                // Part of the child node was moved to the split off node
+                curNode.refreshCount(child);
                 splitChild.getNode().setParent(curNode);
                 if (curNode.getDegree() < getN() + 1) {
                     // Insert entry to node if it is not full
@@ -183,14 +535,14 @@ public abstract class Node {
             }
         } else if (this instanceof LeafNode) {
             LeafNode curNode = (LeafNode) this;
-            if (curNode.getDegree() < getN() || Arrays.stream(curNode.getKeys()).anyMatch(i -> i == key)) {
+            if (curNode.getDegree() < getN() || Arrays.stream(curNode.getKeys(), 0, curNode.getDegree()).anyMatch(i -> i == key)) {
                 // Add entry to leaf node if it is not full or if key is already present
-                curNode.addSorted(key, pointer);
+                curNode.addSorted(key, slot, rating);
                 // No nodes were split after insertion
                 splitChild = null;
             } else {
                 // Split leaf if it is full
-                splitChild = curNode.splitLeaf(key, pointer);
+                splitChild = curNode.splitLeaf(key, slot, rating);
                 if (splitChild != null) {
                     split = true;
                 }
@@ -224,7 +576,7 @@ public abstract class Node {
      * @param deleteKey key to delete
      * @return root node of the tree
      */
-    public static Node delete(Node root, int deleteKey) {
+    public static Node delete(Node root, long deleteKey) {
         // Initialize total number of nodes deleted for experiment
         if (root == null) {
             return null;
@@ -236,6 +588,348 @@ public abstract class Node {
         return result.getParentNode();
     }
 
+    /**
+     * Delete all entries with a key within the given bounds. Child nodes fully
+     * covered by the range are detached in one pass, and only the nodes along the
+     * paths to the two bounds are rebalanced
+     * 
+     * @param root  root node of the B+ tree
+     * @param lower lower bound of keys to delete, inclusive
+     * @param upper upper bound of keys to delete, inclusive
+     * @param slots bitmap collecting the record slots of the deleted entries
+     * @return root node of the tree
+     */
+    public static Node deleteRange(Node root, long lower, long upper, CompressedBitmap slots) {
+        if (root == null || upper < lower) {
+            return root;
+        }
+
+        // Relink the leaf nodes left between the two bounds before rebalancing, merges
+        // then keep the sibling links of the leaf nodes they remove
+        root.removeRange(lower, upper, slots);
+        relinkLeaves(root, lower, upper);
+        root.rebalanceRange(lower, upper);
+
+        // If root only has 1 child, make child node the new root
+        while (root instanceof InternalNode && root.getDegree() == 1) {
+            InternalNode node = (InternalNode) root;
+            root = node.getPointers()[0];
+            root.setParent(null);
+            root.setRoot(true);
+            node.deleteAll();
+            storage().logDeletedNodeCount();
+        }
+        if (root.getDegree() == 0) {
+            storage().logDeletedNodeCount();
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Link every leaf node from the one holding the lower bound to the one holding
+     * the upper bound to the next one. The leaf node holding the upper bound keeps
+     * its link, since the leaf node after it is never detached
+     * 
+     * @param root  root node of the tree
+     * @param lower lower bound of deleted keys
+     * @param upper upper bound of deleted keys
+     */
+    private static void relinkLeaves(Node root, long lower, long upper) {
+        ArrayList<LeafNode> leaves = new ArrayList<>();
+        collectLeaves(root, lower, upper, leaves);
+        for (int i = 0; i < leaves.size() - 1; i++) {
+            leaves.get(i).setRightSibling(leaves.get(i + 1));
+        }
+    }
+
+    private static void collectLeaves(Node node, long from, long to, List<LeafNode> leaves) {
+        if (node instanceof LeafNode) {
+            leaves.add((LeafNode) node);
+            return;
+        }
+        InternalNode internalNode = (InternalNode) node;
+        for (int i = internalNode.findIndexOfNode(from); i <= internalNode.findIndexOfNode(to); i++) {
+            collectLeaves(internalNode.getPointers()[i], from, to, leaves);
+        }
+    }
+
+    /**
+     * Delete all entries having the specified key without rebalancing the tree.
+     * Nodes left underfull are recorded so that they can be compacted later
+     * 
+     * @param root      root node of the B+ tree
+     * @param deleteKey key to delete
+     * @param underfull set recording nodes left underfull
+     * @return root node of the tree
+     */
+    public static Node deleteLazy(Node root, long deleteKey, Set<Node> underfull) {
+        if (root == null) {
+            return null;
+        }
+        LeafNode node = root.findLeaf(deleteKey);
+        storage().logNodeAccess(node);
+        RecordNode deletedEntry = node.delete(deleteKey);
+        if (deletedEntry == null) {
+            return root;
+        }
+        Storage storage = storage();
+        int recordsPerBlock = storage.getRecordsPerBlock();
+        deletedEntry.forEachSlot(slot -> storage.deleteRecord(RecordPointer.fromSlot(slot, recordsPerBlock)));
+
+        // Update the aggregates along the path, separator keys stay valid bounds
+        for (Node child = node; !child.isRoot(); child = child.getParent()) {
+            child.getParent().refreshCount(child.findIndexInParent());
+        }
+
+        if (node.isRoot()) {
+            if (node.getDegree() == 0) {
+                storage().logDeletedNodeCount();
+                return null;
+            }
+        } else if (node.isUnderfull()) {
+            underfull.add(node);
+        }
+        return root;
+    }
+
+    /**
+     * Rebalance the parents of underfull nodes recorded by lazy deletion, merging or
+     * redistributing the underfull nodes with their siblings. Parents left underfull
+     * are recorded in turn
+     * 
+     * @param root      root node of the B+ tree
+     * @param underfull set of recorded underfull nodes
+     * @param maxNodes  maximum number of recorded nodes to process
+     * @return root node of the tree
+     */
+    public static Node compact(Node root, Set<Node> underfull, int maxNodes) {
+        Iterator<Node> iterator = underfull.iterator();
+        for (int processed = 0; processed < maxNodes && iterator.hasNext(); processed++) {
+            Node node = iterator.next();
+            iterator.remove();
+
+            // Skip nodes already merged away or fixed together with a sibling
+            InternalNode parent = node.getParent();
+            if (node.isRoot() || parent == null || node.findIndexInParent() == parent.getPointers().length
+                    || !node.isUnderfull()) {
+                continue;
+            }
+            rebalance(parent);
+            if (parent.isUnderfull() && !parent.isRoot()) {
+                underfull.add(parent);
+            }
+            iterator = underfull.iterator();
+        }
+
+        // If root only has 1 child, make child node the new root
+        while (root instanceof InternalNode && root.getDegree() == 1) {
+            InternalNode node = (InternalNode) root;
+            root = node.getPointers()[0];
+            root.setParent(null);
+            root.setRoot(true);
+            node.deleteAll();
+            storage().logDeletedNodeCount();
+        }
+        if (root != null && root.getDegree() == 0) {
+            storage().logDeletedNodeCount();
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Remove the entries with a key within the given bounds from the subtree rooted
+     * at the node, without rebalancing it
+     * 
+     * @param lower lower bound of keys to delete, inclusive
+     * @param upper upper bound of keys to delete, inclusive
+     * @param slots bitmap collecting the record slots of the deleted entries
+     */
+    private void removeRange(long lower, long upper, CompressedBitmap slots) {
+        if (this instanceof LeafNode) {
+            LeafNode node = (LeafNode) this;
+            storage().logNodeAccess(node);
+            int from = 0;
+            while (from < node.getDegree() && node.getKeys()[from] < lower) {
+                from++;
+            }
+            int to = from;
+            while (to < node.getDegree() && node.getKeys()[to] <= upper) {
+                to++;
+            }
+            for (int i = to - 1; i >= from; i--) {
+                node.deleteByIndex(i).forEachSlot(slots::add);
+                storage().logDeletedNodeCount();
+            }
+            return;
+        }
+
+        InternalNode node = (InternalNode) this;
+        storage().logNodeAccess(node);
+        int lo = node.findIndexOfNode(lower);
+        int hi = node.findIndexOfNode(upper);
+
+        // Detach the child nodes between the two boundaries, the key separating the
+        // lower and upper boundary child nodes is kept
+        for (int i = hi - 1; i > lo; i--) {
+            node.deleteKey(i - 1);
+            node.deletePointer(i).detach(slots);
+        }
+
+        node.getPointers()[lo].removeRange(lower, upper, slots);
+        if (hi != lo) {
+            node.getPointers()[lo + 1].removeRange(lower, upper, slots);
+        }
+    }
+
+    /**
+     * Rebalance the nodes along the paths to the two bounds of a removed range,
+     * from the leaf nodes up to the node
+     * 
+     * @param lower lower bound of removed keys
+     * @param upper upper bound of removed keys
+     */
+    private void rebalanceRange(long lower, long upper) {
+        if (this instanceof LeafNode) {
+            return;
+        }
+        InternalNode node = (InternalNode) this;
+        int lo = node.findIndexOfNode(lower);
+        int hi = node.findIndexOfNode(upper);
+        node.getPointers()[lo].rebalanceRange(lower, upper);
+        if (hi != lo) {
+            node.getPointers()[hi].rebalanceRange(lower, upper);
+        }
+        rebalance(node);
+    }
+
+    /**
+     * Collect the record slots of every entry in the detached subtree rooted at the
+     * node
+     * 
+     * @param slots bitmap collecting the record slots
+     */
+    private void detach(CompressedBitmap slots) {
+        if (this instanceof LeafNode) {
+            LeafNode node = (LeafNode) this;
+            for (int i = 0; i < node.getDegree(); i++) {
+                node.getPointers()[i].forEachSlot(slots::add);
+                storage().logDeletedNodeCount();
+            }
+            node.deleteAll();
+        } else {
+            InternalNode node = (InternalNode) this;
+            for (int i = 0; i < node.getDegree(); i++) {
+                node.getPointers()[i].detach(slots);
+            }
+            node.deleteAll();
+        }
+        setParent(null);
+        storage().logDeletedNodeCount();
+    }
+
+    /**
+     * Merge or redistribute underfull child nodes of an internal node with their
+     * siblings, until no child node is underfull or only one child node is left
+     * 
+     * @param node internal node
+     */
+    private static void rebalance(InternalNode node) {
+        int i = 0;
+        while (i < node.getDegree() && node.getDegree() > 1) {
+            if (node.getPointers()[i].isUnderfull()) {
+                // Pair the child node with its left sibling, or its right sibling if it
+                // is the first child node
+                mergeOrRedistribute(node, i > 0 ? i - 1 : i);
+                i = 0;
+            } else {
+                i++;
+            }
+        }
+        node.refreshCounts();
+    }
+
+    /**
+     * Merge two adjacent child nodes of an internal node if their entries fit in one
+     * node, otherwise redistribute the entries evenly between them
+     * 
+     * @param parent internal node
+     * @param pos    position of the left child node
+     */
+    private static void mergeOrRedistribute(InternalNode parent, int pos) {
+        Node leftNode = parent.getPointers()[pos];
+        Node rightNode = parent.getPointers()[pos + 1];
+
+        if (leftNode instanceof LeafNode) {
+            LeafNode left = (LeafNode) leftNode, right = (LeafNode) rightNode;
+            if (left.getDegree() + right.getDegree() <= getN()) {
+                left.merge(right);
+                left.setRightSibling(right.getRightSibling());
+                parent.deleteKey(pos);
+                parent.deletePointer(pos + 1);
+                storage().logDeletedNodeCount();
+                StorageEvents.merge(true, 0, left.getDegree());
+                return;
+            }
+            int moved = left.getDegree();
+            while (left.getDegree() < right.getDegree() - 1) {
+                long borrowedKey = right.getKeys()[0];
+                left.addKey(borrowedKey, right.deleteByIndex(0));
+            }
+            while (right.getDegree() < left.getDegree() - 1) {
+                long borrowedKey = left.getKeys()[left.getDegree() - 1];
+                right.addKey(borrowedKey, left.deleteByIndex(left.getDegree() - 1));
+            }
+            parent.getKeys()[pos] = right.getKeys()[0];
+            StorageEvents.borrow(true, 0, Math.abs(left.getDegree() - moved));
+        } else {
+            InternalNode left = (InternalNode) leftNode, right = (InternalNode) rightNode;
+            if (left.getDegree() + right.getDegree() <= getN() + 1) {
+                // Pull down key from parent to left node
+                left.addKey(parent.getKeys()[pos], left.getDegree() - 1);
+                left.merge(right);
+                parent.deleteKey(pos);
+                parent.deletePointer(pos + 1);
+                storage().logDeletedNodeCount();
+                StorageEvents.merge(false, left.getHeight(), left.getDegree());
+                // Child nodes meeting at the merge point may still be underfull
+                rebalance(left);
+                return;
+            }
+            int moved = left.getDegree();
+            while (left.getDegree() < right.getDegree() - 1) {
+                // Rotate the first key and pointer of the right node through the parent
+                left.moveEntryFromRightInternalNode(right);
+                long temp = left.getKeys()[left.getDegree() - 2];
+                left.getKeys()[left.getDegree() - 2] = parent.getKeys()[pos];
+                parent.getKeys()[pos] = temp;
+            }
+            while (right.getDegree() < left.getDegree() - 1) {
+                // Rotate the last key and pointer of the left node through the parent
+                right.moveEntryFromLeftInternalNode(left);
+                long temp = right.getKeys()[0];
+                right.getKeys()[0] = parent.getKeys()[pos];
+                parent.getKeys()[pos] = temp;
+            }
+            StorageEvents.borrow(false, left.getHeight(), Math.abs(left.getDegree() - moved));
+            rebalance(left);
+            rebalance(right);
+        }
+    }
+
+    /**
+     * Whether the node holds fewer entries than the minimum of a non-root node
+     * 
+     * @return true if the node is underfull
+     */
+    public boolean isUnderfull() {
+        if (this instanceof LeafNode) {
+            return getDegree() < (int) Math.floor((getN() + 1) / 2.0);
+        }
+        return getDegree() < (int) Math.floor(getN() / 2.0) + 1;
+    }
+
     /**
      * Internal implementation of deletion in B+ tree
      * 
@@ -245,7 +939,7 @@ public abstract class Node {
      *         traversed node,
      *         and boolean indicating if an entry is deleted
      */
-    public DeleteResult bPlusDelete(int key, Integer oldChildIndex) {
+    public DeleteResult bPlusDelete(long key, Integer oldChildIndex) {
         DeleteResult result;
         InternalNode parentNode = this.getParent();
         boolean found = false;
@@ -267,6 +961,11 @@ public abstract class Node {
             node = (InternalNode) result.getParentNode();
             found = result.isFound();
 
+            // Update the aggregates of the child nodes before any of them is moved
+            if (found) {
+                node.refreshCounts();
+            }
+
             parentNode = node.getParent();
 
             if (found && oldChildIndex != null) {
@@ -293,10 +992,11 @@ public abstract class Node {
                         // If right sibling has extra entries, borrow from right sibling
                         // Move first key and pointer of right sibling to current node
                         node.moveEntryFromRightInternalNode(rightSibling);
+                        StorageEvents.borrow(false, node.getHeight(), 1);
 
                         // Swap moved key value with parent key value (first key of right sibling is
                         // larger than any value currently in node)
-                        int temp = node.getKeys()[node.getDegree() - 2];
+                        long temp = node.getKeys()[node.getDegree() - 2];
                         node.getKeys()[node.getDegree() - 2] = parentNode.getKeys()[curNodeIndex];
                         parentNode.getKeys()[curNodeIndex] = temp;
                         oldChildIndex = null;
@@ -304,10 +1004,11 @@ public abstract class Node {
                         // If left sibling has extra entries, borrow from left sibling
                         // Move last key and pointer of left sibling to current node
                         node.moveEntryFromLeftInternalNode(leftSibling);
+                        StorageEvents.borrow(false, node.getHeight(), 1);
 
                         // Swap moved key value with parent key value (last key of left sibling is the
                         // smallest value currently in node)
-                        int temp = node.getKeys()[0];
+                        long temp = node.getKeys()[0];
                         node.getKeys()[0] = parentNode.getKeys()[curNodeIndex - 1];
                         parentNode.getKeys()[curNodeIndex - 1] = temp;
                         oldChildIndex = null;
@@ -321,8 +1022,9 @@ public abstract class Node {
 
                         // Merge right sibling node to current node
                         node.merge(rightSibling);
+                        StorageEvents.merge(false, node.getHeight(), node.getDegree());
                         // Increase total number of deleted nodes
-                        storage.logDeletedNodeCount();
+                        storage().logDeletedNodeCount();
                     } else if (leftSibling != null) {
                         // If left sibling does not have extra entries, merge with left sibling
                         // Set current node to be removed
@@ -333,8 +1035,9 @@ public abstract class Node {
 
                         // Merge current node to left sibling node
                         leftSibling.merge(node);
+                        StorageEvents.merge(false, leftSibling.getHeight(), leftSibling.getDegree());
                         // Increase total number of deleted nodes
-                        storage.logDeletedNodeCount();
+                        storage().logDeletedNodeCount();
                     }
                 }
             }
@@ -348,12 +1051,13 @@ public abstract class Node {
             if (node.isRoot()) {
                 // If root only has 1 child, make child node the new root
                 if (node.getDegree() == 1) {
-                    InternalNode temp = (InternalNode) node.getPointers()[0];
+                    Node temp = node.getPointers()[0];
                     temp.setParent(null);
+                    temp.setRoot(true);
                     node.deleteAll();
 
                     // Increase total number of deleted nodes
-                    storage.logDeletedNodeCount();
+                    storage().logDeletedNodeCount();
                     return new DeleteResult(null, temp, found);
                 }
                 return new DeleteResult(null, node, found);
@@ -366,23 +1070,18 @@ public abstract class Node {
             // the current node
             // does not contain the key
             RecordNode deletedEntry = node.delete(key);
-            while (deletedEntry == null && node != null && node.getDegree() > 0
+            while (deletedEntry == null && node.getRightSibling() != null && node.getDegree() > 0
                     && key >= node.getKeys()[node.getDegree() - 1]) {
                 node = node.getRightSibling();
-                if (node != null)
-                    deletedEntry = node.delete(key);
+                deletedEntry = node.delete(key);
             }
 
             // Delete entry in storage
             if (deletedEntry != null) {
                 found = true;
-                while (deletedEntry != null) {
-                    for (int i = 0; i < deletedEntry.getSize(); i++) {
-                        storage.deleteRecord(deletedEntry.getPointers()[i]);
-                    }
-                    deletedEntry = deletedEntry.getNext();
-                }
-
+                Storage storage = storage();
+                int recordsPerBlock = storage.getRecordsPerBlock();
+                deletedEntry.forEachSlot(slot -> storage.deleteRecord(RecordPointer.fromSlot(slot, recordsPerBlock)));
             }
 
             if (found && node.getDegree() < (int) Math.floor((getN() + 1) / 2.0) && !node.isRoot()) {
@@ -404,38 +1103,42 @@ public abstract class Node {
 
                 if (rightSibling != null && rightSibling.getDegree() > (int) Math.floor((getN() + 1) / 2.0)) {
                     // Borrow from right sibling
-                    int borrowedKey = rightSibling.getKeys()[0];
+                    long borrowedKey = rightSibling.getKeys()[0];
                     RecordNode entry = rightSibling.deleteByIndex(0);
                     node.addKey(borrowedKey, entry);
 
                     // Set leftmost key of right sibling to be key value of parent
                     parentNode.getKeys()[curNodeIndex] = rightSibling.getKeys()[0];
+                    StorageEvents.borrow(true, 0, 1);
                 } else if (leftSibling != null && leftSibling.getDegree() > (int) Math.floor((getN() + 1) / 2.0)) {
                     // Borrow from left sibling
-                    int borrowedKey = leftSibling.getKeys()[0];
+                    long borrowedKey = leftSibling.getKeys()[leftSibling.getDegree() - 1];
                     RecordNode entry = leftSibling.deleteByIndex(leftSibling.getDegree() - 1);
                     node.addKey(borrowedKey, entry);
 
                     // Set rightmost key of current node to be key value of parent
                     parentNode.getKeys()[curNodeIndex - 1] = node.getKeys()[0];
+                    StorageEvents.borrow(true, 0, 1);
                 } else if (rightSibling != null) {
                     // Merge with right sibling
                     oldChildIndex = curNodeIndex + 1;
                     node.merge(rightSibling);
+                    StorageEvents.merge(true, 0, node.getDegree());
 
                     // Modify siblings of nodes
                     node.setRightSibling(rightSibling.getRightSibling());
                     // Increase total number of deleted nodes
-                    storage.logDeletedNodeCount();
+                    storage().logDeletedNodeCount();
                 } else if (leftSibling != null) {
                     // Merge with left sibling
                     oldChildIndex = curNodeIndex;
                     leftSibling.merge(node);
+                    StorageEvents.merge(true, 0, leftSibling.getDegree());
 
                     // Modify siblings of nodes
                     leftSibling.setRightSibling(node.getRightSibling());
                     // Increase total number of deleted nodes
-                    storage.logDeletedNodeCount();
+                    storage().logDeletedNodeCount();
                 }
             }
 
@@ -444,7 +1147,7 @@ public abstract class Node {
                 // If root only has no children, return null
                 if (node.getDegree() == 0) {
                     // Increase total number of deleted nodes
-                    storage.logDeletedNodeCount();
+                    storage().logDeletedNodeCount();
                     return new DeleteResult(oldChildIndex, null, found);
                 }
                 return new DeleteResult(oldChildIndex, node, found);
@@ -478,16 +1181,14 @@ public abstract class Node {
      * @param k key to be inserted
      * @return index to insert
      */
-    public int findIndexToInsert(int k) {
-        int low = 0, high, mid;
-        if (this.getDegree() == 0) {
+    public int findIndexToInsert(long k) {
+        int low = 0, mid;
+        // An internal node holds one key less than pointers, and compaction of lazily
+        // deleted entries may leave it with a single pointer and no keys
+        int high = this instanceof InternalNode ? this.getDegree() - 2 : this.getDegree() - 1;
+        if (high < 0) {
             return 0;
         }
-        if (this instanceof InternalNode) {
-            high = this.getDegree() - 2;
-        } else {
-            high = this.getDegree() - 1;
-        }
 
         while (low < high) {
             mid = low + (high - low) / 2;
@@ -510,7 +1211,7 @@ public abstract class Node {
      * @param key key to be inserted
      * @param pos index to insert
      */
-    public void insertAndShift(int key, int pos) {
+    public void insertAndShift(long key, int pos) {
         for (int i = keys.length - 1; i > pos; i--) {
             keys[i] = keys[i - 1];
         }
@@ -530,6 +1231,91 @@ public abstract class Node {
         keys[keys.length - 1] = 0;
     }
 
+    /**
+     * Build a B+ tree bottom-up from sorted keys and their posting lists. Every level is
+     * spread evenly over as many nodes as the fill factor asks for, but never so many
+     * that a node would be underfull, and leaf nodes are linked from left to right
+     * 
+     * @param keys       distinct keys in ascending order
+     * @param postings   posting list of each key, indexed like the keys
+     * @param count      number of keys
+     * @param fillFactor fraction of each node to fill, from 0 to 1
+     * @return root node of the new B+ tree, or null if there is no key
+     */
+    public static Node bulkLoad(long[] keys, RecordNode[] postings, int count, double fillFactor) {
+        if (count == 0) {
+            return null;
+        }
+        double fill = Math.min(1, Math.max(0, fillFactor));
+        int n = getN();
+
+        // Build the leaves, linked from left to right
+        int numLeaves = numNodes(count, n, (int) Math.floor((n + 1) / 2.0), fill);
+        Node[] level = new Node[numLeaves];
+        long[] lowest = new long[numLeaves];
+        LeafNode previous = null;
+        for (int leaf = 0, from = 0; leaf < numLeaves; leaf++) {
+            int to = (int) ((long) count * (leaf + 1) / numLeaves);
+            long[] leafKeys = new long[n];
+            RecordNode[] pointers = new RecordNode[n];
+            System.arraycopy(keys, from, leafKeys, 0, to - from);
+            System.arraycopy(postings, from, pointers, 0, to - from);
+            LeafNode node = new LeafNode(to - from, false, leafKeys, pointers);
+            if (previous != null) {
+                previous.setRightSibling(node);
+            }
+            previous = node;
+            level[leaf] = node;
+            lowest[leaf] = keys[from];
+            from = to;
+        }
+
+        // Build the internal levels, separating children by the lowest key of the right one
+        for (int height = 1; level.length > 1; height++) {
+            int numNodes = numNodes(level.length, n + 1, n / 2 + 1, fill);
+            Node[] parents = new Node[numNodes];
+            long[] parentLowest = new long[numNodes];
+            for (int p = 0, from = 0; p < numNodes; p++) {
+                int to = (int) ((long) level.length * (p + 1) / numNodes);
+                long[] internalKeys = new long[n];
+                Node[] pointers = new Node[n + 1];
+                for (int i = from; i < to; i++) {
+                    pointers[i - from] = level[i];
+                    if (i > from) {
+                        internalKeys[i - from - 1] = lowest[i];
+                    }
+                }
+                InternalNode node = new InternalNode(height, to - from, false, internalKeys, pointers);
+                for (int i = from; i < to; i++) {
+                    level[i].setParent(node);
+                }
+                parents[p] = node;
+                parentLowest[p] = lowest[from];
+                from = to;
+            }
+            level = parents;
+            lowest = parentLowest;
+        }
+        level[0].setRoot(true);
+        return level[0];
+    }
+
+    /**
+     * Find the number of nodes a level of a bulk-loaded tree is spread over
+     * 
+     * @param entries    number of entries of the level
+     * @param capacity   maximum number of entries of a node
+     * @param minimum    minimum number of entries of a non-root node
+     * @param fillFactor fraction of each node to fill
+     * @return number of nodes
+     */
+    private static int numNodes(int entries, int capacity, int minimum, double fillFactor) {
+        int target = Math.max(minimum, Math.min(capacity, (int) Math.round(capacity * fillFactor)));
+        int nodes = (entries + target - 1) / target;
+        // Spreading evenly over more than entries / minimum nodes leaves some underfull
+        return Math.max(1, Math.min(nodes, entries / minimum));
+    }
+
     /**
      * Recursively find the total number of nodes in a B+ tree
      * 
@@ -541,15 +1327,8 @@ public abstract class Node {
         int total = 0;
         if (root instanceof LeafNode) {
             LeafNode root1 = (LeafNode) root;
-            // Find total number of linked list nodes
-            for (int i = 0; i < root1.getDegree(); i++) {
-                RecordNode cur = root1.getPointers()[i];
-                while (cur != null) {
-                    total++;
-                    cur = cur.getNext();
-                }
-            }
-            return total + 1;
+            // Each key has exactly one posting list
+            return root1.getDegree() + 1;
         }
         InternalNode root1 = (InternalNode) root;
         for (int i = 0; i < root1.getDegree(); i++) {
@@ -569,7 +1348,7 @@ public abstract class Node {
 
             for (int i = 1; i < internalNode.getDegree(); i++) { // Skip the first pointer
                 Node rightNode = internalNode.getPointers()[i];
-                replaceKey(internalNode.getKeys()[i - 1], rightNode.getLowestKey());
+                internalNode.getKeys()[i - 1] = rightNode.getLowestKey();
             }
         }
     }
@@ -579,7 +1358,7 @@ public abstract class Node {
      * 
      * @return smallest key in the subtree, or -1 if error occurs
      */
-    public int getLowestKey() {
+    public long getLowestKey() {
         if (this instanceof LeafNode) {
             LeafNode leafNode = (LeafNode) this;
             return leafNode.getKeys()[0];
@@ -598,17 +1377,52 @@ public abstract class Node {
         Node.storage = storage;
     }
 
+    /**
+     * Get the storage that B+ tree operations of the current thread log to and delete
+     * records from
+     * 
+     * @return storage bound to the current thread, otherwise the shared storage
+     */
+    protected static Storage storage() {
+        Storage bound = boundStorage.get();
+        return bound != null ? bound : storage;
+    }
+
+    /**
+     * Run an action with a storage bound to the current thread, so that B+ tree
+     * operations of the action use it instead of the shared storage. Threads working
+     * on trees of different storages then never share an access log
+     * 
+     * @param storage storage to bind
+     * @param action  action to run
+     * @return result of the action
+     */
+    public static <T> T withStorage(Storage storage, Supplier<T> action) {
+        Storage previous = boundStorage.get();
+        boundStorage.set(storage);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                boundStorage.remove();
+            } else {
+                boundStorage.set(previous);
+            }
+        }
+    }
+
     public static int getN() {
         return Node.n;
     }
 
     /**
-     * Set n parameter of B+ tree from block size
+     * Set n parameter of B+ tree from block size. Keys of every key type are stored
+     * as longs, so each entry takes an 8-byte key and a 4-byte pointer
      * 
      * @param blockSize size of block in bytes
      */
     public static void setNFromBlockSize(int blockSize) {
-        Node.n = (blockSize - 2 * 4 - 2 * 4) / (4 + 4);
+        Node.n = (blockSize - 2 * 4 - 2 * 4) / (8 + 4);
     }
 
     public int getHeight() {
@@ -635,11 +1449,11 @@ public abstract class Node {
         this.isRoot = isRoot;
     }
 
-    public int[] getKeys() {
+    public long[] getKeys() {
         return this.keys;
     }
 
-    public void replaceKey(int oldKey, int newKey) {
+    public void replaceKey(long oldKey, long newKey) {
         for (int i = 0; i < keys.length; i++) {
             if (keys[i] == oldKey) {
                 keys[i] = newKey;
@@ -648,7 +1462,7 @@ public abstract class Node {
         }
     }
 
-    public void setKeys(int[] keys) {
+    public void setKeys(long[] keys) {
         this.keys = keys;
     }
 
@@ -660,5 +1474,29 @@ public abstract class Node {
         this.parent = parent;
     }
 
+    /**
+     * Number of records in the subtree rooted at the node
+     */
+    public abstract long getRecordCount();
+
+    /**
+     * Sum of averageRating of the records in the subtree rooted at the node
+     */
+    public abstract double getRatingSum();
+
     public abstract String toString();
+
+    /**
+     * Visitor of the entries of a B+ tree in key order
+     */
+    public interface EntryVisitor {
+        /**
+         * Visit the posting list of a key
+         * 
+         * @param key      key of the entry
+         * @param postings posting list of the key
+         * @return false to stop the scan
+         */
+        boolean visit(long key, RecordNode postings);
+    }
 }
\ No newline at end of file
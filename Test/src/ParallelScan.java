@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Class representing a parallel sequential scan over a range of serialized blocks.
+ * The block range is split recursively across a ForkJoinPool, predicates are evaluated on
+ * the raw block bytes, and partial results are merged in block order
+ */
+public class ParallelScan {
+
+    /**
+     * Number of blocks below which a range is scanned by a single task
+     */
+    private static final int BLOCKS_PER_TASK = 512;
+
+    /**
+     * Byte array containing serialized blocks
+     */
+    private final byte[] blocks;
+
+    /**
+     * Size of one block in bytes
+     */
+    private final int blockSize;
+
+    /**
+     * Layout of records in the serialized blocks
+     */
+    private final BlockLayout layout;
+
+    /**
+     * Pool running the scan tasks
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Construct a scan over serialized blocks
+     *
+     * @param blocks    byte array containing serialized blocks
+     * @param blockSize size of one block in bytes
+     * @param layout    layout of records in the serialized blocks
+     * @param pool      pool running the scan tasks
+     */
+    public ParallelScan(byte[] blocks, int blockSize, BlockLayout layout, ForkJoinPool pool) {
+        this.blocks = blocks;
+        this.blockSize = blockSize;
+        this.layout = layout;
+        this.pool = pool;
+    }
+
+    /**
+     * Retrieve the records matching a query in a range of blocks
+     *
+     * @param query     conjunctive query
+     * @param fromBlock first block to scan, inclusive
+     * @param toBlock   last block to scan, exclusive
+     * @return list of matching records in slot order
+     */
+    public List<Record> collect(Query query, int fromBlock, int toBlock) {
+        return pool.invoke(new CollectTask(query, fromBlock, toBlock));
+    }
+
+    /**
+     * Aggregate the records matching a query in a range of blocks
+     *
+     * @param query     conjunctive query
+     * @param fromBlock first block to scan, inclusive
+     * @param toBlock   last block to scan, exclusive
+     * @return count and sums of the matching records
+     */
+    public Aggregate aggregate(Query query, int fromBlock, int toBlock) {
+        return pool.invoke(new AggregateTask(query, fromBlock, toBlock));
+    }
+
+    /**
+     * Task collecting matching records of a block range
+     */
+    @SuppressWarnings("serial")
+    private class CollectTask extends RecursiveTask<List<Record>> {
+
+        private final Query query;
+        private final int fromBlock;
+        private final int toBlock;
+
+        CollectTask(Query query, int fromBlock, int toBlock) {
+            this.query = query;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected List<Record> compute() {
+            if (toBlock - fromBlock <= BLOCKS_PER_TASK) {
+                List<Record> records = new ArrayList<>();
+                for (int blockID = fromBlock; blockID < toBlock; ++blockID) {
+                    int base = blockID * blockSize;
+                    long[] mask = query.matchBlock(blocks, base, layout);
+                    for (int w = 0; w < mask.length; w++) {
+                        for (long word = mask[w]; word != 0; word &= word - 1) {
+                            int recordID = (w << 6) + Long.numberOfTrailingZeros(word);
+                            records.add(Block.readRecord(blocks, base, recordID, layout));
+                        }
+                    }
+                }
+                return records;
+            }
+            int mid = (fromBlock + toBlock) >>> 1;
+            CollectTask right = new CollectTask(query, mid, toBlock);
+            right.fork();
+            List<Record> records = new CollectTask(query, fromBlock, mid).compute();
+            records.addAll(right.join());
+            return records;
+        }
+    }
+
+    /**
+     * Task aggregating matching records of a block range
+     */
+    @SuppressWarnings("serial")
+    private class AggregateTask extends RecursiveTask<Aggregate> {
+
+        private final Query query;
+        private final int fromBlock;
+        private final int toBlock;
+
+        AggregateTask(Query query, int fromBlock, int toBlock) {
+            this.query = query;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected Aggregate compute() {
+            if (toBlock - fromBlock <= BLOCKS_PER_TASK) {
+                Aggregate aggregate = new Aggregate();
+                for (int blockID = fromBlock; blockID < toBlock; ++blockID) {
+                    int base = blockID * blockSize;
+                    long[] mask = query.matchBlock(blocks, base, layout);
+                    for (int w = 0; w < mask.length; w++) {
+                        for (long word = mask[w]; word != 0; word &= word - 1) {
+                            int recordID = (w << 6) + Long.numberOfTrailingZeros(word);
+                            aggregate.add(Block.getAverageRating(blocks, base, recordID, layout),
+                                    Block.getNumVotes(blocks, base, recordID, layout));
+                        }
+                    }
+                }
+                return aggregate;
+            }
+            int mid = (fromBlock + toBlock) >>> 1;
+            AggregateTask right = new AggregateTask(query, mid, toBlock);
+            right.fork();
+            Aggregate aggregate = new AggregateTask(query, fromBlock, mid).compute();
+            aggregate.merge(right.join());
+            return aggregate;
+        }
+    }
+}
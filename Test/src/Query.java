@@ -0,0 +1,189 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class representing a conjunctive query over numVotes, averageRating and tconst prefix.
+ * Predicates are evaluated directly on serialized block data so that records are only
+ * materialised when they match
+ */
+public class Query {
+
+    /**
+     * Bounds of numVotes, inclusive
+     */
+    private int minVotes;
+    private int maxVotes;
+
+    /**
+     * Bounds of averageRating, inclusive
+     */
+    private float minRating;
+    private float maxRating;
+
+    /**
+     * Required tconst prefix, or null if tconst is not restricted
+     */
+    private String tconstPrefix;
+
+    /**
+     * ASCII bytes of the tconst prefix, used when evaluating on serialized data
+     */
+    private byte[] prefixBytes;
+
+    /**
+     * Construct a query matching every record
+     */
+    public Query() {
+        this(Integer.MIN_VALUE, Integer.MAX_VALUE, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, null);
+    }
+
+    /**
+     * Construct a query with all predicates
+     *
+     * @param minVotes     lower bound of numVotes, inclusive
+     * @param maxVotes     upper bound of numVotes, inclusive
+     * @param minRating    lower bound of averageRating, inclusive
+     * @param maxRating    upper bound of averageRating, inclusive
+     * @param tconstPrefix required tconst prefix, or null
+     */
+    public Query(int minVotes, int maxVotes, float minRating, float maxRating, String tconstPrefix) {
+        setNumVotes(minVotes, maxVotes);
+        setAverageRating(minRating, maxRating);
+        setTconstPrefix(tconstPrefix);
+    }
+
+    /**
+     * Evaluate all predicates on a record in serialized block data
+     *
+     * @param data     byte array containing serialized blocks
+     * @param base     offset of the block within the byte array
+     * @param recordId record id
+     * @param layout   layout of records in the serialized block
+     * @return true if the record exists and satisfies every predicate
+     */
+    public boolean matches(byte[] data, int base, int recordId, BlockLayout layout) {
+        if (Block.isEmpty(data, base, recordId, layout)) {
+            return false;
+        }
+        if (hasNumVotes()) {
+            int numVotes = Block.getNumVotes(data, base, recordId, layout);
+            if (numVotes < minVotes || numVotes > maxVotes) {
+                return false;
+            }
+        }
+        if (hasAverageRating()) {
+            float rating = Block.getAverageRating(data, base, recordId, layout);
+            if (rating < minRating || rating > maxRating) {
+                return false;
+            }
+        }
+        return prefixBytes == null || Block.tconstStartsWith(data, base, recordId, layout, prefixBytes);
+    }
+
+    /**
+     * Evaluate all predicates on every record of a serialized block, one attribute at a
+     * time, so that each predicate runs as a tight loop over one column
+     *
+     * @param data   byte array containing serialized blocks
+     * @param base   offset of the block within the byte array
+     * @param layout layout of records in the serialized block
+     * @return bitmask of matching record ids, one bit per record id
+     */
+    public long[] matchBlock(byte[] data, int base, BlockLayout layout) {
+        int numOfRecord = layout.getNumOfRecord();
+        long[] mask = new long[(numOfRecord + 63) >>> 6];
+        Arrays.fill(mask, -1L);
+        if ((numOfRecord & 63) != 0) {
+            mask[mask.length - 1] = (1L << (numOfRecord & 63)) - 1;
+        }
+        Block.filterNonEmpty(data, base, layout, mask);
+        if (hasNumVotes()) {
+            Block.filterNumVotes(data, base, layout, minVotes, maxVotes, mask);
+        }
+        if (hasAverageRating()) {
+            Block.filterAverageRating(data, base, layout, minRating, maxRating, mask);
+        }
+        if (prefixBytes != null) {
+            for (int i = 0; i < numOfRecord; i++) {
+                if ((mask[i >>> 6] & (1L << i)) != 0
+                        && !Block.tconstStartsWith(data, base, i, layout, prefixBytes)) {
+                    mask[i >>> 6] &= ~(1L << i);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Whether the query restricts numVotes
+     */
+    public boolean hasNumVotes() {
+        return minVotes != Integer.MIN_VALUE || maxVotes != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Whether the query restricts averageRating
+     */
+    public boolean hasAverageRating() {
+        return minRating != Float.NEGATIVE_INFINITY || maxRating != Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Whether the query restricts tconst
+     */
+    public boolean hasTconstPrefix() {
+        return tconstPrefix != null;
+    }
+
+    public void setNumVotes(int minVotes, int maxVotes) {
+        this.minVotes = minVotes;
+        this.maxVotes = maxVotes;
+    }
+
+    public void setAverageRating(float minRating, float maxRating) {
+        this.minRating = minRating;
+        this.maxRating = maxRating;
+    }
+
+    public void setTconstPrefix(String tconstPrefix) {
+        this.tconstPrefix = tconstPrefix;
+        this.prefixBytes = tconstPrefix == null ? null : tconstPrefix.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public int getMinVotes() {
+        return minVotes;
+    }
+
+    public int getMaxVotes() {
+        return maxVotes;
+    }
+
+    public float getMinRating() {
+        return minRating;
+    }
+
+    public float getMaxRating() {
+        return maxRating;
+    }
+
+    public String getTconstPrefix() {
+        return tconstPrefix;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (hasNumVotes()) {
+            sb.append(String.format("numVotes in [%d, %d]", minVotes, maxVotes));
+        }
+        if (hasAverageRating()) {
+            sb.append(sb.length() > 0 ? " AND " : "");
+            sb.append(String.format("averageRating in [%.1f, %.1f]", minRating, maxRating));
+        }
+        if (hasTconstPrefix()) {
+            sb.append(sb.length() > 0 ? " AND " : "");
+            sb.append(String.format("tconst LIKE '%s%%'", tconstPrefix));
+        }
+        return sb.length() > 0 ? sb.toString() : "TRUE";
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Class representing the plan chosen for a query, with its estimates and, once executed,
+ * the actual number of records and block accesses
+ */
+public class QueryPlan {
+
+    /**
+     * Ways of retrieving the records of a query
+     */
+    public enum Strategy {
+        /**
+         * Fetch candidates in index order, reading one block per candidate
+         */
+        INDEX_SCAN,
+        /**
+         * Fetch candidates from the index, sort them by block and read each block once
+         */
+        SORTED_INDEX_SCAN,
+        /**
+         * Read every block sequentially in parallel
+         */
+        FULL_SCAN
+    }
+
+    /**
+     * Index used to find candidates
+     */
+    public enum Index {
+        NUM_VOTES, AVERAGE_RATING, TCONST, NONE
+    }
+
+    /**
+     * Query being planned
+     */
+    private Query query;
+
+    /**
+     * Chosen strategy and index
+     */
+    private Strategy strategy;
+    private Index index;
+
+    /**
+     * Estimated number of candidates returned by the index
+     */
+    private double estimatedCandidates;
+
+    /**
+     * Estimated number of records matching the query
+     */
+    private double estimatedRecords;
+
+    /**
+     * Estimated number of block accesses of the chosen strategy
+     */
+    private double estimatedBlocks;
+
+    /**
+     * Estimated cost of each strategy, indexed by strategy ordinal
+     */
+    private double[] costs;
+
+    /**
+     * Actual number of matching records and block accesses, -1 until executed
+     */
+    private long actualRecords;
+    private long actualBlocks;
+
+    /**
+     * Construct a plan with its estimates
+     *
+     * @param query               query being planned
+     * @param strategy            chosen strategy
+     * @param index               index used to find candidates
+     * @param estimatedCandidates estimated number of candidates returned by the index
+     * @param estimatedRecords    estimated number of matching records
+     * @param estimatedBlocks     estimated number of block accesses
+     * @param costs               estimated cost of each strategy
+     */
+    public QueryPlan(Query query, Strategy strategy, Index index, double estimatedCandidates,
+            double estimatedRecords, double estimatedBlocks, double[] costs) {
+        this.query = query;
+        this.strategy = strategy;
+        this.index = index;
+        this.estimatedCandidates = estimatedCandidates;
+        this.estimatedRecords = estimatedRecords;
+        this.estimatedBlocks = estimatedBlocks;
+        this.costs = costs;
+        this.actualRecords = -1;
+        this.actualBlocks = -1;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    public double getEstimatedCandidates() {
+        return estimatedCandidates;
+    }
+
+    public double getEstimatedRecords() {
+        return estimatedRecords;
+    }
+
+    public double getEstimatedBlocks() {
+        return estimatedBlocks;
+    }
+
+    public double getCost(Strategy strategy) {
+        return costs[strategy.ordinal()];
+    }
+
+    public long getActualRecords() {
+        return actualRecords;
+    }
+
+    public long getActualBlocks() {
+        return actualBlocks;
+    }
+
+    /**
+     * Record the outcome of executing the plan
+     *
+     * @param actualRecords number of matching records
+     * @param actualBlocks  number of block accesses
+     */
+    public void setActual(long actualRecords, long actualBlocks) {
+        this.actualRecords = actualRecords;
+        this.actualBlocks = actualBlocks;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Query: %s%n", query));
+        sb.append(String.format("Plan: %s", strategy));
+        if (strategy != Strategy.FULL_SCAN) {
+            sb.append(String.format(" using %s index", index));
+        }
+        sb.append(String.format("%nCosts:"));
+        for (Strategy s : Strategy.values()) {
+            double cost = costs[s.ordinal()];
+            // Index strategies cannot be costed without a usable index
+            sb.append(Double.isInfinite(cost) ? String.format(" %s=n/a", s) : String.format(" %s=%.1f", s, cost));
+        }
+        sb.append(String.format("%nEstimated: candidates=%.0f, records=%.0f, blocks=%.0f%n", estimatedCandidates,
+                estimatedRecords, estimatedBlocks));
+        if (actualRecords >= 0) {
+            sb.append(String.format("Actual: records=%d, blocks=%d%n", actualRecords, actualBlocks));
+        }
+        return sb.toString();
+    }
+}
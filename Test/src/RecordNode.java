@@ -1,125 +1,342 @@
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
 
 /**
- * Class representing a linked list node pointed to by a leaf node of a B Plus Tree.
- * Contains record pointers.
+ * Class representing the posting list pointed to by a leaf node of a B Plus Tree.
+ * Contains the addresses of all records sharing the same key, stored as record slots
+ * (see {@link RecordPointer#toSlot(int)}) in one of three representations:
+ * a single inline slot, a small sorted int array, or a delta/varint compressed byte array
+ * once the list outgrows one block worth of pointers.
  */
 public class RecordNode {
 
 	/**
-	 * Maximum number of record pointers that can be stored inside a node
+	 * Maximum number of record slots kept in the packed int array before the list is compressed
 	 */
 	private static int maxSize;
 
 	/**
-	 * Number of record pointers currently stored inside the node
+	 * Initial capacity of the packed int array
+	 */
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * Number of record slots currently stored in the posting list
 	 */
 	private int size;
+
+	/**
+	 * Record slot, used when the posting list holds exactly one address
+	 */
+	private int single;
+
+	/**
+	 * Sorted record slots, used when the posting list holds more than one address
+	 * and at most maxSize addresses
+	 */
+	private int[] packed;
+
+	/**
+	 * Sorted record slots encoded as varint deltas, used for larger posting lists
+	 */
+	private byte[] compressed;
+
+	/**
+	 * Number of bytes in use in the compressed array
+	 */
+	private int compressedLength;
+
+	/**
+	 * Largest record slot in the posting list, used to append to the compressed array
+	 */
+	private int last;
+
+	/**
+	 * Sum of averageRating of the records in the posting list, used for range aggregates
+	 */
+	private double ratingSum;
+
+	/**
+	 * Create a posting list holding a single record slot
+	 * @param slot record slot
+	 */
+	public RecordNode(int slot) {
+		this.size = 1;
+		this.single = slot;
+		this.last = slot;
+	}
+
+	/**
+	 * Create a posting list holding a single record slot and its averageRating
+	 * @param slot record slot
+	 * @param rating averageRating of the record
+	 */
+	public RecordNode(int slot, float rating) {
+		this(slot);
+		this.ratingSum = rating;
+	}
+
+	/**
+	 * Create a posting list holding sorted record slots and the sum of their averageRating
+	 * @param slots sorted record slots
+	 * @param count number of slots in use
+	 * @param ratingSum sum of averageRating of the records
+	 */
+	public RecordNode(int[] slots, int count, double ratingSum) {
+		setSlots(slots, count);
+		this.ratingSum = ratingSum;
+	}
+
+	/**
+	 * Add a record slot and its averageRating to the posting list
+	 * @param slot record slot to be added
+	 * @param rating averageRating of the record
+	 */
+	public void addSlot(int slot, float rating) {
+		addSlot(slot);
+		ratingSum += rating;
+	}
+
+	/**
+	 * Add a record slot to the posting list, promoting the representation when it grows
+	 * @param slot record slot to be added
+	 */
+	public void addSlot(int slot) {
+		if (size == 0) {
+			single = slot;
+			last = slot;
+			size = 1;
+			return;
+		}
+		if (compressed != null) {
+			if (slot >= last) {
+				// Records are usually inserted in slot order, so append without decoding
+				appendVarint(slot - last);
+				last = slot;
+				size++;
+			} else {
+				int[] slots = getSlots();
+				encode(insertSorted(slots, slots.length, slot), size + 1);
+			}
+			return;
+		}
+
+		if (size == 1) {
+			packed = new int[INITIAL_CAPACITY];
+			packed[0] = single;
+		} else if (size == packed.length) {
+			packed = Arrays.copyOf(packed, Math.min(packed.length * 2, Math.max(maxSize, INITIAL_CAPACITY)));
+			StorageEvents.postingListGrowth(size, packed.length, false);
+		}
+
+		if (size == packed.length) {
+			// Packed array is full, switch to the compressed representation
+			encode(insertSorted(packed, size, slot), size + 1);
+			packed = null;
+			StorageEvents.postingListGrowth(size, compressed.length, true);
+			return;
+		}
+
+		int pos = size;
+		while (pos > 0 && packed[pos - 1] > slot) {
+			packed[pos] = packed[pos - 1];
+			pos--;
+		}
+		packed[pos] = slot;
+		last = packed[size];
+		size++;
+	}
+
+	/**
+	 * Replace record slots of the posting list, decoding and encoding it only once
+	 * @param oldSlots record slots to be replaced
+	 * @param newSlots record slots replacing them, in the same order
+	 * @return number of record slots found and replaced
+	 */
+	public int replaceSlots(int[] oldSlots, int[] newSlots) {
+		// Look up the old slots in ascending order, merging them with the posting list
+		long[] moves = new long[oldSlots.length];
+		for (int i = 0; i < oldSlots.length; i++) {
+			moves[i] = (long) oldSlots[i] << 32 | (newSlots[i] & 0xFFFFFFFFL);
+		}
+		Arrays.sort(moves);
+		int[] slots = getSlots();
+		int replaced = 0;
+		for (int i = 0, j = 0; i < size && j < moves.length;) {
+			int oldSlot = (int) (moves[j] >>> 32);
+			if (slots[i] < oldSlot) {
+				i++;
+			} else if (slots[i] > oldSlot) {
+				j++;
+			} else {
+				slots[i++] = (int) moves[j++];
+				replaced++;
+			}
+		}
+		Arrays.sort(slots);
+		setSlots(slots, size);
+		return replaced;
+	}
+
 	/**
-     * Array of pointers to records
-     */
-    private RecordPointer[] pointers;
-
-    /**
-     * Next node of the linked list
-     */
-    private RecordNode next;
-    
-    /**
-     * Create a linked list node using all the attributes
-     * @param size
-     * @param pointers
-     * @param next
-     */
-    public RecordNode(int size, RecordPointer[] pointers, RecordNode next) {
-    	this.size = size;
-    	this.pointers = pointers;
-    	this.next = next;
-    }
-    
-    /**
-     * Add a record pointer to the linked list node
-     * @param pointer record pointer to be added
-     * @return new head of linked list
-     */
-    public RecordNode addPointer(RecordPointer pointer) {
-    	if (this.size < maxSize) {
-    		// Insert into current linked list
-    		this.pointers[this.size] = pointer;
-        	this.size++;
-        	return this;
-    	} else {
-    		// Create a new linked list node as the head of the linked list
-    		RecordPointer[] newPointers = new RecordPointer[maxSize];
-    		newPointers[0] = pointer;
-    		RecordNode newHead = new RecordNode(1, newPointers, this);
-    		return newHead;
-    	}
-    }
-    
-    /**
-     * Retrieve all record pointers from the linked list
-     * @return record pointer
-     */
-    public ArrayList<RecordPointer> retrievePointers() {
-    	ArrayList<RecordPointer> pointers = new ArrayList<RecordPointer>();
-    	RecordNode cur = this;
-    	while (cur != null) {
-    		for(int i = 0; i < cur.getSize(); i++) {
-    			pointers.add(cur.getPointers()[i]);
-    		}
-    		cur = cur.getNext();
-    	}
-    	
-    	return pointers;
-    }
-
-    /**
-     * Delete the linked list node
-     * @return the next linked list node in the linked list (null if linked list is empty)
-     */
-    public RecordNode deleteNode() {
-    	Arrays.fill(pointers, null);
-    	return this.next;
-    }
-    
-    /**
-     * Get maximum number of record pointers that can be stored in linked list node
-     */
-    public static int getMaxSize() {
-    	return RecordNode.maxSize;
-    }
-
-    /**
-     * Set maximum number of record pointers that can be stored in linked list node from block size
-     * @param blockSize size of block in bytes
-     */
-    public static void setMaxSizeFromBlockSize(int blockSize) {
-    	RecordNode.maxSize = (blockSize-2*4)/4;
-    }
-    
-    public int getSize() {
-    	return this.size;
-    }
-
-    public void setSize(int size) {
-    	this.size = size;
-    }
-
-    public RecordPointer[] getPointers() {
-    	return this.pointers;
-    }
-    
-    public void setPointers(RecordPointer[] pointers) {
-    	this.pointers = pointers;
-    }
-    
-    public RecordNode getNext() {
-    	return this.next;
-    }
-    
-    public void setNext(RecordNode next) {
-    	this.next = next;
-    }
+	 * Append all record pointers from the posting list to an existing list
+	 * @param results list to append the record pointers to
+	 * @param recordsPerBlock number of records stored in one block of the storage
+	 */
+	public void retrievePointers(List<RecordPointer> results, int recordsPerBlock) {
+		forEachSlot(slot -> results.add(RecordPointer.fromSlot(slot, recordsPerBlock)));
+	}
+
+	/**
+	 * Visit all record slots in ascending order without materialising record pointers
+	 * @param action action to run on each slot
+	 */
+	public void forEachSlot(IntConsumer action) {
+		if (compressed != null) {
+			int pos = 0, slot = 0;
+			while (pos < compressedLength) {
+				int delta = 0, shift = 0;
+				byte b;
+				do {
+					b = compressed[pos++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				slot += delta;
+				action.accept(slot);
+			}
+		} else if (packed != null) {
+			for (int i = 0; i < size; i++) {
+				action.accept(packed[i]);
+			}
+		} else if (size == 1) {
+			action.accept(single);
+		}
+	}
+
+	/**
+	 * Retrieve all record slots in ascending order
+	 * @return newly allocated array of record slots
+	 */
+	public int[] getSlots() {
+		int[] slots = new int[size];
+		int[] index = new int[1];
+		forEachSlot(slot -> slots[index[0]++] = slot);
+		return slots;
+	}
+
+	/**
+	 * Replace the content of the posting list, choosing the representation by size
+	 * @param slots sorted record slots
+	 * @param count number of slots in use
+	 */
+	private void setSlots(int[] slots, int count) {
+		packed = null;
+		compressed = null;
+		compressedLength = 0;
+		if (count > maxSize) {
+			encode(slots, count);
+		} else if (count > 1) {
+			packed = Arrays.copyOf(slots, count);
+			size = count;
+			last = slots[count - 1];
+		} else {
+			size = count;
+			single = count == 1 ? slots[0] : 0;
+			last = single;
+		}
+	}
+
+	/**
+	 * Encode sorted record slots into the compressed representation
+	 * @param slots sorted record slots
+	 * @param count number of slots in use
+	 */
+	private void encode(int[] slots, int count) {
+		compressed = new byte[Math.max(16, count * 2)];
+		compressedLength = 0;
+		int prev = 0;
+		for (int i = 0; i < count; i++) {
+			appendVarint(slots[i] - prev);
+			prev = slots[i];
+		}
+		size = count;
+		last = prev;
+	}
+
+	/**
+	 * Append a non-negative delta to the compressed array as a varint
+	 * @param value delta to be appended
+	 */
+	private void appendVarint(int value) {
+		if (compressedLength + 5 > compressed.length) {
+			compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			StorageEvents.postingListGrowth(size, compressed.length, true);
+		}
+		while ((value & ~0x7F) != 0) {
+			compressed[compressedLength++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		compressed[compressedLength++] = (byte) value;
+	}
+
+	/**
+	 * Insert a slot into a sorted array, returning a new array
+	 * @param slots sorted record slots
+	 * @param count number of slots in use
+	 * @param slot slot to be inserted
+	 * @return sorted array of count + 1 slots
+	 */
+	private static int[] insertSorted(int[] slots, int count, int slot) {
+		int[] result = new int[count + 1];
+		int index = Arrays.binarySearch(slots, 0, count, slot);
+		if (index < 0) {
+			index = -index - 1;
+		}
+		System.arraycopy(slots, 0, result, 0, index);
+		result[index] = slot;
+		System.arraycopy(slots, index, result, index + 1, count - index);
+		return result;
+	}
+
+	/**
+	 * Approximate number of bytes used by the posting list payload
+	 * @return size of the posting list payload in bytes
+	 */
+	public int getSizeInBytes() {
+		if (compressed != null) {
+			return compressed.length;
+		} else if (packed != null) {
+			return packed.length * 4;
+		}
+		return 4;
+	}
+
+	/**
+	 * Get maximum number of record slots held in the packed array before the list is compressed
+	 */
+	public static int getMaxSize() {
+		return RecordNode.maxSize;
+	}
+
+	/**
+	 * Set maximum number of record slots held in the packed array from block size
+	 * @param blockSize size of block in bytes
+	 */
+	public static void setMaxSizeFromBlockSize(int blockSize) {
+		RecordNode.maxSize = (blockSize-2*4)/4;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public double getRatingSum() {
+		return this.ratingSum;
+	}
+
+	public boolean isCompressed() {
+		return this.compressed != null;
+	}
 }
@@ -30,4 +30,23 @@ public class RecordPointer {
     public int getRecordID() {
         return recordID;
     }
+
+    /**
+     * Pack the address into a record slot (blockID * records per block + recordID)
+     * @param recordsPerBlock number of records stored in one block of the storage
+     * @return record slot
+     */
+    public int toSlot(int recordsPerBlock) {
+        return blockID * recordsPerBlock + recordID;
+    }
+
+    /**
+     * Unpack a record slot into a record address
+     * @param slot            record slot
+     * @param recordsPerBlock number of records stored in one block of the storage
+     * @return record address
+     */
+    public static RecordPointer fromSlot(int slot, int recordsPerBlock) {
+        return new RecordPointer(slot / recordsPerBlock, slot % recordsPerBlock);
+    }
 }
\ No newline at end of file
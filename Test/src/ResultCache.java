@@ -0,0 +1,289 @@
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Class representing a bounded cache of numVotes query results, evicting the least
+ * recently used entry once the cached results exceed a size in bytes. Range results are
+ * cached as arrays of record slots and aggregates as a count and a rating sum. Entries
+ * are indexed by their lower bound, so a change to one key invalidates exactly the
+ * cached ranges containing that key, looking only at ranges starting at most the widest
+ * cached range below it
+ */
+public class ResultCache {
+
+    /**
+     * Approximate number of bytes used by an entry besides its slots
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Key of a cached result: the range and whether it holds slots or an aggregate
+     */
+    private static final class Key {
+        private final long lower;
+        private final long upper;
+        private final boolean aggregate;
+
+        Key(long lower, long upper, boolean aggregate) {
+            this.lower = lower;
+            this.upper = upper;
+            this.aggregate = aggregate;
+        }
+
+        /**
+         * Width of the range, saturating at Long.MAX_VALUE
+         */
+        long width() {
+            long width = upper - lower;
+            return width < 0 ? Long.MAX_VALUE : width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return lower == other.lower && upper == other.upper && aggregate == other.aggregate;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(lower) * 31 + Long.hashCode(upper) * 2 + (aggregate ? 1 : 0);
+        }
+    }
+
+    /**
+     * Cached result, either record slots or a count and a rating sum
+     */
+    private static final class Entry {
+        private final int[] slots;
+        private final long count;
+        private final double ratingSum;
+
+        Entry(int[] slots, long count, double ratingSum) {
+            this.slots = slots;
+            this.count = count;
+            this.ratingSum = ratingSum;
+        }
+
+        long getSizeInBytes() {
+            return ENTRY_OVERHEAD + (slots == null ? 0 : 4L * slots.length);
+        }
+    }
+
+    /**
+     * Maximum number of bytes of cached results
+     */
+    private final long maxBytes;
+
+    /**
+     * Cached results in access order, least recently used first
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Keys of cached results grouped by lower bound of their range
+     */
+    private final TreeMap<Long, Set<Key>> byLower = new TreeMap<>();
+
+    /**
+     * Number of cached results by width of their range, bounding how far below a
+     * changed key an overlapping range can start
+     */
+    private final TreeMap<Long, Integer> byWidth = new TreeMap<>();
+
+    /**
+     * Number of bytes of cached results
+     */
+    private long sizeInBytes;
+
+    /**
+     * Metrics
+     */
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Construct an empty cache
+     *
+     * @param maxBytes maximum number of bytes of cached results
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Look up the record slots of a range
+     *
+     * @param lower lower bound of the range, inclusive
+     * @param upper upper bound of the range, inclusive
+     * @return record slots in key order, or null if not cached
+     */
+    public synchronized int[] getSlots(long lower, long upper) {
+        Entry entry = lookup(new Key(lower, upper, false));
+        return entry == null ? null : entry.slots;
+    }
+
+    /**
+     * Cache the record slots of a range
+     *
+     * @param lower lower bound of the range, inclusive
+     * @param upper upper bound of the range, inclusive
+     * @param slots record slots in key order
+     */
+    public synchronized void putSlots(long lower, long upper, int[] slots) {
+        put(new Key(lower, upper, false), new Entry(slots, slots.length, 0));
+    }
+
+    /**
+     * Look up the count and rating sum of a range
+     *
+     * @param lower lower bound of the range, inclusive
+     * @param upper upper bound of the range, inclusive
+     * @return number of records and sum of their averageRating, or null if not cached
+     */
+    public synchronized double[] getAggregate(long lower, long upper) {
+        Entry entry = lookup(new Key(lower, upper, true));
+        return entry == null ? null : new double[] { entry.count, entry.ratingSum };
+    }
+
+    /**
+     * Cache the count and rating sum of a range
+     *
+     * @param lower     lower bound of the range, inclusive
+     * @param upper     upper bound of the range, inclusive
+     * @param count     number of records
+     * @param ratingSum sum of averageRating of the records
+     */
+    public synchronized void putAggregate(long lower, long upper, long count, double ratingSum) {
+        put(new Key(lower, upper, true), new Entry(null, count, ratingSum));
+    }
+
+    /**
+     * Invalidate every cached result whose range overlaps the given keys
+     *
+     * @param lower smallest changed key, inclusive
+     * @param upper largest changed key, inclusive
+     */
+    public synchronized void invalidate(long lower, long upper) {
+        if (byWidth.isEmpty() || upper < lower) {
+            return;
+        }
+        // Only ranges starting at or below the largest changed key, and at most the
+        // widest cached range below the smallest changed key, can overlap
+        long maxWidth = byWidth.lastKey();
+        long from = lower < Long.MIN_VALUE + maxWidth ? Long.MIN_VALUE : lower - maxWidth;
+        Iterator<Set<Key>> groups = byLower.subMap(from, true, upper, true).values().iterator();
+        while (groups.hasNext()) {
+            Set<Key> group = groups.next();
+            for (Iterator<Key> it = group.iterator(); it.hasNext();) {
+                Key key = it.next();
+                if (key.upper >= lower) {
+                    it.remove();
+                    removeWidth(key);
+                    sizeInBytes -= entries.remove(key).getSizeInBytes();
+                    invalidations++;
+                }
+            }
+            if (group.isEmpty()) {
+                groups.remove();
+            }
+        }
+    }
+
+    /**
+     * Invalidate every cached result
+     */
+    public synchronized void clear() {
+        invalidations += entries.size();
+        entries.clear();
+        byLower.clear();
+        byWidth.clear();
+        sizeInBytes = 0;
+    }
+
+    private Entry lookup(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    private void put(Key key, Entry entry) {
+        long size = entry.getSizeInBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            sizeInBytes -= old.getSizeInBytes();
+        } else {
+            byLower.computeIfAbsent(key.lower, k -> new HashSet<>()).add(key);
+            byWidth.merge(key.width(), 1, Integer::sum);
+        }
+        sizeInBytes += size;
+
+        // Evict least recently used entries until the cache fits
+        Iterator<Map.Entry<Key, Entry>> lru = entries.entrySet().iterator();
+        while (sizeInBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<Key, Entry> eldest = lru.next();
+            lru.remove();
+            sizeInBytes -= eldest.getValue().getSizeInBytes();
+            Set<Key> group = byLower.get(eldest.getKey().lower);
+            group.remove(eldest.getKey());
+            if (group.isEmpty()) {
+                byLower.remove(eldest.getKey().lower);
+            }
+            removeWidth(eldest.getKey());
+            evictions++;
+        }
+    }
+
+    private void removeWidth(Key key) {
+        byWidth.computeIfPresent(key.width(), (width, count) -> count == 1 ? null : count - 1);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized int getNumEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("entries=%d, size=%dB, hits=%d, misses=%d, hitRate=%.2f, evictions=%d, invalidations=%d",
+                entries.size(), sizeInBytes, hits, misses, getHitRate(), evictions, invalidations);
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+
+/**
+ * Class representing a storage split into range partitions (shards) of numVotes. Each
+ * shard is a storage with its own block area and B+ tree, so writes to different
+ * shards never contend. Inserts, deletions and point queries are routed to the shard
+ * owning the key, and range queries and aggregates run on every overlapping shard in
+ * parallel. Shards hold disjoint, ordered key ranges, so concatenating their results
+ * in shard order keeps range results in key order
+ */
+public class ShardedStorage {
+
+    /**
+     * Lowest key of every shard but the first, in ascending order. Shard i holds keys
+     * from splitPoints[i - 1], inclusive, to splitPoints[i], exclusive
+     */
+    private final int[] splitPoints;
+
+    /**
+     * Storage of every shard, in key order
+     */
+    private final Storage[] shards;
+
+    /**
+     * Pool running the shard tasks
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Construct a sharded storage running shard tasks on the common pool
+     *
+     * @param blockSize   size of block in bytes
+     * @param recordSize  size of record in bytes
+     * @param memorySize  total size of the block areas of all shards in bytes
+     * @param splitPoints lowest key of every shard but the first, in ascending order
+     */
+    public ShardedStorage(int blockSize, int recordSize, int memorySize, int[] splitPoints) {
+        this(blockSize, recordSize, memorySize, splitPoints, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct a sharded storage, dividing the memory evenly between the shards
+     *
+     * @param blockSize   size of block in bytes
+     * @param recordSize  size of record in bytes
+     * @param memorySize  total size of the block areas of all shards in bytes
+     * @param splitPoints lowest key of every shard but the first, in ascending order
+     * @param pool        pool running the shard tasks
+     */
+    public ShardedStorage(int blockSize, int recordSize, int memorySize, int[] splitPoints, ForkJoinPool pool) {
+        for (int i = 1; i < splitPoints.length; i++) {
+            if (splitPoints[i] <= splitPoints[i - 1]) {
+                throw new IllegalArgumentException("Split points must be strictly ascending");
+            }
+        }
+        this.splitPoints = splitPoints.clone();
+        this.shards = new Storage[splitPoints.length + 1];
+        int shardMemory = memorySize / shards.length / blockSize * blockSize;
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Storage(blockSize, recordSize, shardMemory);
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Choose split points giving every shard about the same number of keys
+     *
+     * @param keys      sample of keys (numVotes), in any order
+     * @param numShards number of shards
+     * @return lowest key of every shard but the first, in ascending order
+     */
+    public static int[] splitPoints(int[] keys, int numShards) {
+        int[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int[] points = new int[Math.max(0, numShards - 1)];
+        int count = 0;
+        for (int i = 1; i < numShards && sorted.length > 0; i++) {
+            int point = sorted[(int) ((long) sorted.length * i / numShards)];
+            // Keys equal to a split point all go to one shard, so skip repeated points
+            if (count == 0 || point > points[count - 1]) {
+                points[count++] = point;
+            }
+        }
+        return Arrays.copyOf(points, count);
+    }
+
+    /**
+     * Initialise the shards with the given input file in .tsv format, inserting the
+     * records of every shard in parallel
+     *
+     * @param path path of the input file
+     * @throws IOException if the file cannot be read
+     */
+    public void initWithTSV(String path) throws IOException {
+        List<List<String[]>> lines = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            lines.add(new ArrayList<>());
+        }
+        try (BufferedReader buf = new BufferedReader(new FileReader(path))) {
+            // Skip the header line
+            String line = buf.readLine();
+            while ((line = buf.readLine()) != null) {
+                String[] lineItems = line.split("\\s");
+                lines.get(shardOf(Integer.parseInt(lineItems[2]))).add(lineItems);
+            }
+        }
+        fanOut(0, shards.length - 1, shard -> {
+            for (String[] lineItems : lines.get(shard)) {
+                shards[shard].insertRecord(lineItems[0], Float.parseFloat(lineItems[1]),
+                        Integer.parseInt(lineItems[2]));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Build the B+ tree of every shard in parallel
+     */
+    public void buildIndex() {
+        fanOut(0, shards.length - 1, shard -> {
+            shards[shard].buildIndex();
+            return null;
+        });
+    }
+
+    /**
+     * Insert a new record into the shard owning its numVotes, adding it to the B+ tree
+     * of the shard if built
+     *
+     * @param tConst   data for the record
+     * @param rating   data for the record
+     * @param numVotes data for the record
+     */
+    public void insertRecord(String tConst, float rating, int numVotes) {
+        Storage shard = shards[shardOf(numVotes)];
+        Node.withStorage(shard, () -> shard.insertRecord(tConst, rating, numVotes));
+    }
+
+    /**
+     * Search for records given the key (numVotes) in the shard owning it
+     *
+     * @param searchKey search key value
+     * @return list of records matching the key value
+     */
+    public List<Record> searchBPT(int searchKey) {
+        Storage shard = shards[shardOf(searchKey)];
+        return Node.withStorage(shard, () -> shard.searchBPT(searchKey));
+    }
+
+    /**
+     * Search for records given the numVotes bounds in every overlapping shard in
+     * parallel
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return list of records within the bounds, in key order
+     */
+    public List<Record> searchBPT(int lower, int upper) {
+        List<Record> records = new ArrayList<>();
+        if (upper < lower) {
+            return records;
+        }
+        for (List<Record> shardRecords : fanOut(shardOf(lower), shardOf(upper),
+                shard -> shards[shard].searchBPT(lower, upper))) {
+            records.addAll(shardRecords);
+        }
+        return records;
+    }
+
+    /**
+     * Count records given the numVotes bounds in every overlapping shard in parallel
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return number of records within the bounds
+     */
+    public long countBPT(int lower, int upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        long count = 0;
+        for (long shardCount : fanOut(shardOf(lower), shardOf(upper),
+                shard -> shards[shard].countBPT(lower, upper))) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    /**
+     * Average the averageRating of records given the numVotes bounds from the count and
+     * rating sum of every overlapping shard, each taken in one call under its lock
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return average of averageRating within the bounds, or 0 if there is no record
+     */
+    public double averageRatingBPT(int lower, int upper) {
+        if (upper < lower) {
+            return 0;
+        }
+        long count = 0;
+        double sum = 0;
+        for (double[] shardAggregate : fanOut(shardOf(lower), shardOf(upper),
+                shard -> shards[shard].aggregateRatingBPT(lower, upper))) {
+            count += (long) shardAggregate[0];
+            sum += shardAggregate[1];
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Delete records that match the key value from the shard owning it
+     *
+     * @param deleteKey key value (numVotes)
+     */
+    public void deleteBPT(int deleteKey) {
+        Storage shard = shards[shardOf(deleteKey)];
+        Node.withStorage(shard, () -> {
+            shard.deleteBPT(deleteKey, deleteKey);
+            return null;
+        });
+    }
+
+    /**
+     * Delete all records with numVotes within the given bounds from every overlapping
+     * shard in parallel
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     */
+    public void deleteBPT(int lower, int upper) {
+        if (upper < lower) {
+            return;
+        }
+        fanOut(shardOf(lower), shardOf(upper), shard -> {
+            shards[shard].deleteBPT(lower, upper);
+            return null;
+        });
+    }
+
+    /**
+     * Find the shard owning a key
+     *
+     * @param key key value (numVotes)
+     * @return index of the shard
+     */
+    public int shardOf(int key) {
+        int index = Arrays.binarySearch(splitPoints, key);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Run a task on a range of shards, each with its storage bound to the running
+     * thread. The last shard runs on the calling thread while the others run on the
+     * pool
+     *
+     * @param from first shard, inclusive
+     * @param to   last shard, inclusive
+     * @param task task run with the index of a shard
+     * @return results of the task in shard order
+     */
+    private <T> List<T> fanOut(int from, int to, IntFunction<T> task) {
+        List<ForkJoinTask<T>> forked = new ArrayList<>();
+        for (int shard = from; shard < to; shard++) {
+            int index = shard;
+            forked.add(pool.submit(() -> Node.withStorage(shards[index], () -> task.apply(index))));
+        }
+        T last = Node.withStorage(shards[to], () -> task.apply(to));
+        List<T> results = new ArrayList<>(to - from + 1);
+        for (ForkJoinTask<T> result : forked) {
+            results.add(result.join());
+        }
+        results.add(last);
+        return results;
+    }
+
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    public Storage getShard(int index) {
+        return shards[index];
+    }
+
+    public int[] getSplitPoints() {
+        return splitPoints.clone();
+    }
+
+    public int getNumRecords() {
+        int count = 0;
+        for (Storage shard : shards) {
+            count += shard.getNumRecords();
+        }
+        return count;
+    }
+}
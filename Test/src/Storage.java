@@ -3,22 +3,57 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+import javax.management.JMException;
 
 public class Storage {
     private final int MEMORY_SIZE;
     private final int BLOCK_SIZE;
     private final int RECORD_SIZE;
     private final int NUM_OF_RECORD;
+    private final BlockLayout LAYOUT;
 
     private byte[] blocks;
     private int blockTail;
-    private LinkedList<RecordPointer> buffer; // Buffer to store the list of available
-                                              // spaces to be populated by KeyPointers
+    private FreeSpaceMap freeSpace; // Bitmaps of the available spaces to be populated by records
 
     private Node bPlusTree;
+    private Map<KeyType, Node> secondaryIndexes; // B+ trees on other attributes, built on request
+    private BitmapIndex ratingIndex; // Bitmap index on averageRating, maintained on every record change
+    private HashIndex tconstIndex; // Hash index on tconst, maintained on every record change
+    private int recordCount; // Number of records currently stored
+    private boolean lazyDeletion; // Whether deletion defers rebalancing to compaction
+    private Set<Node> underfullNodes; // Nodes left underfull by lazy deletion
+    private volatile VersionedIndex versions; // Copy-on-write versions of the B+ tree, null if modified in place
+    private WriteAheadLog wal; // Log of mutations, null if mutations are not logged
+    private int walBatchDepth; // Nesting depth of B+ tree deletions committing their record deletions together
+    private ResultCache resultCache; // Cache of numVotes query results, null if results are not cached
+    private FrozenIndex frozenIndex; // Read-only image of the B+ tree serving numVotes reads, null unless frozen
+    private volatile StorageMetrics metrics; // Latency histograms of operations, null if not recorded
+    private long indexGeneration; // Incremented whenever the B+ tree on numVotes is replaced wholesale
+    private List<long[]> rebuildJournal; // Key ranges changed during an online rebuild, null unless rebuilding
+
+    // Query Planning Components
+    private Histogram votesHistogram; // Built with the index, maintained on every record change
+    private Histogram ratingHistogram;
+    private final int NUM_OF_BUCKET = 64;
+    private final double RANDOM_BLOCK_COST = 1.0; // Cost of reading a block at a random address
+    private final double SEQUENTIAL_BLOCK_COST = 0.1; // Cost of reading a block in a parallel sequential scan
+    private final double SORT_COST = 0.001; // Cost of sorting one candidate address by block
+    private final int MIN_TCONST_LENGTH = 9; // Length of the shortest tconst, "tt" and 7 digits
 
     // Logging Components
     private List<RecordPointer> accessedBlocks;
@@ -29,14 +64,23 @@ public class Storage {
     private int deletedNodeCount;
 
     public Storage(int blockSize, int recordSize, int memorySize) {
+        this(blockSize, recordSize, memorySize, BlockLayout.Type.ROW);
+    }
+
+    public Storage(int blockSize, int recordSize, int memorySize, BlockLayout.Type layoutType) {
         MEMORY_SIZE = memorySize;
         BLOCK_SIZE = blockSize;
         RECORD_SIZE = recordSize;
         NUM_OF_RECORD = BLOCK_SIZE / RECORD_SIZE;
+        LAYOUT = new BlockLayout(layoutType, BLOCK_SIZE, RECORD_SIZE);
 
         blockTail = -1;
         blocks = new byte[MEMORY_SIZE];
-        buffer = new LinkedList<>();
+        freeSpace = new FreeSpaceMap(NUM_OF_RECORD);
+        ratingIndex = new BitmapIndex();
+        tconstIndex = new HashIndex();
+        secondaryIndexes = new EnumMap<>(KeyType.class);
+        underfullNodes = new LinkedHashSet<>();
 
         initLogger();
     }
@@ -72,19 +116,89 @@ public class Storage {
     /**
      * Build B+ tree on database by inserting the records from database sequentially
      */
-    public void buildIndex() {
+    public synchronized void buildIndex() {
+        // Attribute values for the histograms of the query planner
+        double[] votes = new double[recordCount];
+        double[] ratings = new double[recordCount];
+        int count = 0;
+
         // Iterates through data blocks
         for (int blockID = 0; blockID <= blockTail; ++blockID) {
-            Block block = Block.fromByteArray(readBlock(blockID), RECORD_SIZE);
+            Block block = Block.fromByteArray(readBlock(blockID), LAYOUT);
             // Iterates through all record spaces since non-clustered index is used
             for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
                 Record record = block.readRecord(recordID);
                 if (!record.isEmpty()) {
-                    RecordPointer recordPointer = new RecordPointer(blockID, recordID);
-                    bPlusTree = Node.insert(bPlusTree, record, recordPointer);
+                    int slot = new RecordPointer(blockID, recordID).toSlot(NUM_OF_RECORD);
+                    bPlusTree = Node.insert(bPlusTree, record, slot);
+                    votes[count] = record.getNumVotes();
+                    ratings[count] = record.getaverageRating();
+                    count++;
+                }
+            }
+        }
+
+        indexGeneration++;
+        votesHistogram = new Histogram(Arrays.copyOf(votes, count), NUM_OF_BUCKET, 1);
+        ratingHistogram = new Histogram(Arrays.copyOf(ratings, count), NUM_OF_BUCKET, 0.1);
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+        frozenIndex = null;
+    }
+
+    /**
+     * Build a secondary B+ tree on the given key type by inserting the records from
+     * database sequentially
+     * 
+     * @param keyType attribute(s) to build the index on
+     * @return root node of the built index
+     */
+    public synchronized Node buildIndex(KeyType keyType) {
+        if (keyType == KeyType.NUM_VOTES) {
+            bPlusTree = null;
+            buildIndex();
+            return bPlusTree;
+        }
+        Node root = null;
+        for (int blockID = 0; blockID <= blockTail; ++blockID) {
+            Block block = Block.fromByteArray(readBlock(blockID), LAYOUT);
+            for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
+                Record record = block.readRecord(recordID);
+                if (!record.isEmpty()) {
+                    root = Node.insert(root, keyType, record, new RecordPointer(blockID, recordID).toSlot(NUM_OF_RECORD));
+                }
+            }
+        }
+        secondaryIndexes.put(keyType, root);
+        return root;
+    }
+
+    /**
+     * Build a learned index on numVotes from the records of the database, as an
+     * alternative to the B+ tree for a static database. The index is not updated
+     * when records change
+     * 
+     * @param maxError maximum distance between the predicted and actual position of
+     *                 a key in the sorted keys
+     * @return learned index on numVotes
+     */
+    public synchronized LearnedIndex buildLearnedIndex(int maxError) {
+        long[] keys = new long[recordCount];
+        int[] slots = new int[recordCount];
+        int count = 0;
+        for (int blockID = 0; blockID <= blockTail; ++blockID) {
+            Block block = Block.fromByteArray(readBlock(blockID), LAYOUT);
+            for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
+                Record record = block.readRecord(recordID);
+                if (!record.isEmpty()) {
+                    keys[count] = record.getNumVotes();
+                    slots[count] = new RecordPointer(blockID, recordID).toSlot(NUM_OF_RECORD);
+                    count++;
                 }
             }
         }
+        return new LearnedIndex(keys, slots, count, maxError, NUM_OF_RECORD);
     }
 
     /**
@@ -95,21 +209,108 @@ public class Storage {
      * @param numVotes data for the record
      */
     public RecordPointer createRecord(String tConst, float rating, int numVotes) {
-        // If the linked list buffer storing the next available KeyPointer addresses is
-        // empty, then initialise the linked list buffer
-        if (buffer.isEmpty()) {
-            createBlock();
+        StorageMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        RecordPointer address;
+        long lsn = 0;
+        synchronized (this) {
+            // Retrieves the next available space, preparing a new block if every block is full
+            int slot = freeSpace.allocate();
+            if (slot < 0) {
+                createBlock();
+                slot = freeSpace.allocate();
+            }
+            address = RecordPointer.fromSlot(slot, NUM_OF_RECORD);
+            writeRecord(address, tConst, rating, numVotes);
+            if (wal != null) {
+                lsn = wal.logInsert(slot, tConst, rating, numVotes);
+            }
+        }
+
+        // Wait for the log outside the lock, so that concurrent writers share one sync
+        if (wal != null) {
+            wal.commit(lsn);
+        }
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.CREATE_RECORD, start);
+        }
+        return address;
+    }
+
+    /**
+     * Insert a new record into "disk storage" and add it to the B+ tree on numVotes,
+     * if the B+ tree has been built
+     * 
+     * @param tConst   data for the record
+     * @param rating   data for the record
+     * @param numVotes data for the record
+     * @return address of the record
+     */
+    public RecordPointer insertRecord(String tConst, float rating, int numVotes) {
+        StorageMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        RecordPointer address = createRecord(tConst, rating, numVotes);
+        long lsn = 0;
+        synchronized (this) {
+            if (insertBPT(address, numVotes, rating) && wal != null) {
+                lsn = wal.logIndexInsert(address.toSlot(NUM_OF_RECORD));
+            }
         }
+        if (lsn != 0) {
+            wal.commit(lsn);
+        }
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.INSERT, start);
+        }
+        return address;
+    }
 
-        // Retrieves the next available space from the buffer
-        RecordPointer address = buffer.remove();
+    /**
+     * Add a record to the B+ tree on numVotes, if the B+ tree has been built
+     * 
+     * @param address  address of the record
+     * @param numVotes numVotes of the record
+     * @param rating   averageRating of the record
+     * @return true if the record was added
+     */
+    private boolean insertBPT(RecordPointer address, int numVotes, float rating) {
+        // The histograms are only kept along with the index, so they tell whether it was built
+        if (votesHistogram == null) {
+            return false;
+        }
+        invalidate(numVotes, numVotes);
+        if (versions != null) {
+            versions.insert(numVotes, address.toSlot(NUM_OF_RECORD), rating);
+            bPlusTree = versions.getRoot();
+        } else {
+            if (bPlusTree == null) {
+                bPlusTree = new LeafNode(true);
+            }
+            bPlusTree = bPlusTree.bPlusInsert(numVotes, address.toSlot(NUM_OF_RECORD), rating).getNode();
+        }
+        return true;
+    }
 
+    /**
+     * Write a new record into an allocated slot and add it to the indexes on records
+     * 
+     * @param address  allocated address of the record
+     * @param tConst   data for the record
+     * @param rating   data for the record
+     * @param numVotes data for the record
+     */
+    private void writeRecord(RecordPointer address, String tConst, float rating, int numVotes) {
         // Retrieve the block storing the next available space
-        Block block = Block.fromByteArray(readBlock(address.getBlockID()), RECORD_SIZE);
+        Block block = Block.fromByteArray(readBlock(address.getBlockID()), LAYOUT);
         block.updateRecord(address.getRecordID(), tConst, rating, numVotes, false);
         updateBlock(address.getBlockID(), block.toByteArray());
-
-        return address;
+        ratingIndex.add(rating, address.toSlot(NUM_OF_RECORD));
+        tconstIndex.put(tConst, address.toSlot(NUM_OF_RECORD));
+        recordCount++;
+        if (votesHistogram != null) {
+            votesHistogram.add(numVotes);
+            ratingHistogram.add(rating);
+        }
     }
 
     /**
@@ -118,10 +319,15 @@ public class Storage {
      * @param address address of record to get
      */
     public Record readRecord(RecordPointer address) {
+        StorageMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
         // Reading a record incurs an I/O access to its block
         logBlockAccess(address);
-        Block block = Block.fromByteArray(readBlock(address.getBlockID()), RECORD_SIZE);
+        Block block = Block.fromByteArray(readBlock(address.getBlockID()), LAYOUT);
         Record record = block.readRecord(address.getRecordID());
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.READ_RECORD, start);
+        }
         return record;
     }
 
@@ -131,11 +337,76 @@ public class Storage {
      * @param address address of record to be deleted
      */
     public void deleteRecord(RecordPointer address) {
-        Block block = Block.fromByteArray(readBlock(address.getBlockID()), RECORD_SIZE);
-        block.deleteRecord(address.getRecordID());
-        updateBlock(address.getBlockID(), block.toByteArray());
+        long lsn = 0;
+        synchronized (this) {
+            if (wal != null) {
+                long logged = wal.logDelete(address.toSlot(NUM_OF_RECORD));
+                // Deletions made by a B+ tree deletion are committed with it
+                if (walBatchDepth == 0) {
+                    lsn = logged;
+                }
+            }
+            Block block = Block.fromByteArray(readBlock(address.getBlockID()), LAYOUT);
+            Record record = block.readRecord(address.getRecordID());
+            if (!record.isEmpty()) {
+                ratingIndex.remove(record.getaverageRating(), address.toSlot(NUM_OF_RECORD));
+                tconstIndex.remove(record.getTconst(), address.toSlot(NUM_OF_RECORD));
+                recordCount--;
+                if (votesHistogram != null) {
+                    votesHistogram.remove(record.getNumVotes());
+                    ratingHistogram.remove(record.getaverageRating());
+                }
+            }
+            block.deleteRecord(address.getRecordID());
+            updateBlock(address.getBlockID(), block.toByteArray());
+
+            freeSpace.free(address.toSlot(NUM_OF_RECORD));
+        }
 
-        buffer.add(address);
+        // Wait for the log outside the lock, so that concurrent writers share one sync
+        if (lsn != 0) {
+            wal.commit(lsn);
+        }
+    }
+
+    /**
+     * Delete records given their slots, decoding and encoding each block only once
+     * 
+     * @param slots bitmap of record slots to be deleted
+     */
+    public synchronized void deleteRecords(CompressedBitmap slots) {
+        Block[] block = { null };
+        int[] curBlockID = { -1 };
+        slots.forEach(slot -> {
+            int blockID = slot / NUM_OF_RECORD;
+            if (blockID != curBlockID[0]) {
+                // Slots are visited in order, so write back the previous block once done
+                if (block[0] != null) {
+                    updateBlock(curBlockID[0], block[0].toByteArray());
+                }
+                curBlockID[0] = blockID;
+                block[0] = Block.fromByteArray(readBlock(blockID), LAYOUT);
+            }
+            RecordPointer address = RecordPointer.fromSlot(slot, NUM_OF_RECORD);
+            if (wal != null) {
+                wal.logDelete(slot);
+            }
+            Record record = block[0].readRecord(address.getRecordID());
+            if (!record.isEmpty()) {
+                ratingIndex.remove(record.getaverageRating(), slot);
+                tconstIndex.remove(record.getTconst(), slot);
+                recordCount--;
+                if (votesHistogram != null) {
+                    votesHistogram.remove(record.getNumVotes());
+                    ratingHistogram.remove(record.getaverageRating());
+                }
+            }
+            block[0].deleteRecord(address.getRecordID());
+            freeSpace.free(slot);
+        });
+        if (block[0] != null) {
+            updateBlock(curBlockID[0], block[0].toByteArray());
+        }
     }
 
     /**
@@ -143,11 +414,9 @@ public class Storage {
      */
     public void createBlock() {
         blockTail++;
-        Block block = new Block(BLOCK_SIZE, RECORD_SIZE);
+        Block block = new Block(BLOCK_SIZE, LAYOUT);
         updateBlock(blockTail, block.toByteArray());
-        for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
-            buffer.add(new RecordPointer(blockTail, recordID));
-        }
+        freeSpace.addBlock(blockTail);
     }
 
     /**
@@ -158,6 +427,7 @@ public class Storage {
      */
     public void updateBlock(int blockID, byte[] data) {
         System.arraycopy(data, 0, blocks, blockID * BLOCK_SIZE, BLOCK_SIZE);
+        StorageEvents.blockWrite(blockID);
     }
 
     /**
@@ -170,6 +440,7 @@ public class Storage {
     public byte[] readBlock(int blockID) {
         int baseAddress = blockID * BLOCK_SIZE;
         int offset = baseAddress + BLOCK_SIZE;
+        StorageEvents.blockRead(blockID);
         return Arrays.copyOfRange(blocks, baseAddress, offset);
     }
 
@@ -177,18 +448,25 @@ public class Storage {
         return bPlusTree;
     }
 
+    public Node getIndex(KeyType keyType) {
+        return keyType == KeyType.NUM_VOTES ? bPlusTree : secondaryIndexes.get(keyType);
+    }
+
     /**
      * Search for records given the key (numVotes), using index
      * 
      * @param searchKey search key value
      * @return list of records matching the key value
      */
-    public List<Record> searchBPT(int searchKey) {
-        List<RecordPointer> recordPointers = bPlusTree.search(searchKey);
-        List<Record> records = new LinkedList<>();
-        for (RecordPointer ra : recordPointers) {
-            records.add(readRecord(ra));
+    public synchronized List<Record> searchBPT(int searchKey) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        long start = metrics == null ? 0 : System.nanoTime();
+        List<Record> records = searchRecords(searchKey, searchKey);
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.SEARCH, start);
         }
+        StorageEvents.endQuery(event, "search", searchKey, searchKey, records.size(), getNumNodeAccess(),
+                getNumBlockAccess());
         return records;
     }
 
@@ -200,8 +478,30 @@ public class Storage {
      * @return list of records having the key value within the lower and upper
      *         bounds
      */
-    public List<Record> searchBPT(int lower, int upper) {
-        List<RecordPointer> recordPointers = bPlusTree.search(lower, upper);
+    public synchronized List<Record> searchBPT(int lower, int upper) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        long start = metrics == null ? 0 : System.nanoTime();
+        List<Record> records = searchRecords(lower, upper);
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.RANGE_SEARCH, start);
+        }
+        StorageEvents.endQuery(event, "rangeSearch", lower, upper, records.size(), getNumNodeAccess(),
+                getNumBlockAccess());
+        return records;
+    }
+
+    /**
+     * Search for records given the numVotes bounds, through the result cache if set
+     * 
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return list of records within the bounds, in key order
+     */
+    private List<Record> searchRecords(int lower, int upper) {
+        if (resultCache != null) {
+            return searchCached(lower, upper);
+        }
+        List<RecordPointer> recordPointers = searchPointers(lower, upper);
         List<Record> records = new LinkedList<>();
         for (RecordPointer ra : recordPointers) {
             records.add(readRecord(ra));
@@ -210,20 +510,1395 @@ public class Storage {
     }
 
     /**
-     * Delete records that match the key value, using index
+     * Search for record addresses given the numVotes bounds, from the frozen image of
+     * the B+ tree if it is frozen
      * 
-     * @param deleteKey
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return record addresses within the bounds, in key order
      */
-    public void deleteBPT(Node root, int deleteKey) {
-        Node.delete(root, deleteKey);
+    private List<RecordPointer> searchPointers(int lower, int upper) {
+        if (frozenIndex != null) {
+            resetLog();
+            return frozenIndex.search(lower, upper);
+        } else if (bPlusTree == null) {
+            resetLog();
+            return new ArrayList<>();
+        }
+        return searchTree(bPlusTree, lower, upper);
     }
 
-    public int getNumBlocksUsed() {
-        return blockTail + 1;
+    /**
+     * Search a B+ tree for the record addresses within the bounds. The B+ tree on
+     * numVotes in copy-on-write mode shares nodes with older versions and keeps no
+     * leaf sibling links, so it is descended into instead of scanned along its leaves
+     * 
+     * @param root  root node of the B+ tree
+     * @param lower lower bound of the key, inclusive
+     * @param upper upper bound of the key, inclusive
+     * @return record addresses within the bounds, in key order
+     */
+    private List<RecordPointer> searchTree(Node root, long lower, long upper) {
+        if (versions == null || root != bPlusTree) {
+            return lower == upper ? root.search(lower, NUM_OF_RECORD) : root.search(lower, upper, NUM_OF_RECORD);
+        }
+        resetLog();
+        List<RecordPointer> results = new ArrayList<>();
+        root.descendRange(lower, upper, (key, postings) -> {
+            postings.retrievePointers(results, NUM_OF_RECORD);
+            return true;
+        });
+        return results;
     }
 
-    public int getRecordSize() {
-        return RECORD_SIZE;
+    /**
+     * Search the B+ tree on numVotes for the record slots within the bounds, descending
+     * into it in copy-on-write mode as {@link #searchTree(Node, long, long)} does
+     * 
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return bitmap of record slots within the bounds
+     */
+    private CompressedBitmap searchTreeBitmap(long lower, long upper) {
+        if (versions == null) {
+            return bPlusTree.searchBitmap(lower, upper);
+        }
+        resetLog();
+        CompressedBitmap results = new CompressedBitmap();
+        bPlusTree.descendRange(lower, upper, (key, postings) -> {
+            postings.forEachSlot(results::add);
+            return true;
+        });
+        return results;
+    }
+
+    /**
+     * Search for records given the numVotes bounds, looking up the record slots in the
+     * result cache first so that a repeated query does not access the B+ tree
+     * 
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return list of records within the bounds, in key order
+     */
+    private List<Record> searchCached(int lower, int upper) {
+        int[] slots = resultCache.getSlots(lower, upper);
+        if (slots == null) {
+            List<RecordPointer> recordPointers = searchPointers(lower, upper);
+            slots = new int[recordPointers.size()];
+            int i = 0;
+            for (RecordPointer ra : recordPointers) {
+                slots[i++] = ra.toSlot(NUM_OF_RECORD);
+            }
+            resultCache.putSlots(lower, upper, slots);
+        } else {
+            resetLog();
+        }
+        List<Record> records = new LinkedList<>();
+        for (int slot : slots) {
+            records.add(readRecord(RecordPointer.fromSlot(slot, NUM_OF_RECORD)));
+        }
+        return records;
+    }
+
+    /**
+     * Search for records given many keys (numVotes), using index. The keys are sorted so
+     * that the tree is traversed once along the leaf nodes, and the records are read in
+     * slot order so that each block is read once
+     * 
+     * @param keys search key values, in any order
+     * @return list of records matching any of the keys, in slot order
+     */
+    public synchronized List<Record> multiGet(int[] keys) {
+        if (bPlusTree == null) {
+            return new ArrayList<>();
+        }
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        long[] sorted = Arrays.stream(keys).asLongStream().sorted().distinct().toArray();
+        CompressedBitmap slots;
+        if (versions == null) {
+            slots = bPlusTree.searchBitmap(sorted);
+        } else {
+            resetLog();
+            CompressedBitmap found = new CompressedBitmap();
+            for (long key : sorted) {
+                bPlusTree.descendRange(key, key, (k, postings) -> {
+                    postings.forEachSlot(found::add);
+                    return true;
+                });
+            }
+            slots = found;
+        }
+        List<Record> records = readRecords(slots);
+        StorageEvents.endQuery(event, "multiGet", sorted.length == 0 ? 0 : sorted[0],
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1], records.size(), getNumNodeAccess(),
+                getNumBlockAccess());
+        return records;
+    }
+
+    /**
+     * Retrieve the records of the next keys of a range, in key order, so that a long
+     * range can be read in batches without holding the lock in between. Every posting
+     * list is read whole, so a batch may exceed the limit by one posting list
+     * 
+     * @param from    smallest key of the batch, inclusive (numVotes)
+     * @param upper   upper bound of the range, inclusive (numVotes)
+     * @param limit   number of records after which the batch ends
+     * @param results list to append the records to
+     * @return smallest key of the next batch, greater than the upper bound once the
+     *         range is exhausted
+     */
+    public synchronized long searchBPTBatch(long from, int upper, int limit, List<Record> results) {
+        if (bPlusTree == null) {
+            return (long) upper + 1;
+        }
+        // Descend rather than follow leaf siblings, which the tree in copy-on-write mode lacks
+        int[] count = { 0 };
+        long[] next = { (long) upper + 1 };
+        bPlusTree.descendRange(from, upper, (key, postings) -> {
+            if (count[0] >= limit) {
+                next[0] = key;
+                return false;
+            }
+            // Read each posting list in slot order, keeping the batch in key order
+            CompressedBitmap slots = new CompressedBitmap();
+            postings.forEachSlot(slots::add);
+            results.addAll(readRecords(slots));
+            count[0] += postings.getSize();
+            return true;
+        });
+        return next[0];
+    }
+
+    /**
+     * Search for records given encoded key bounds, using the index built on the key type.
+     * Secondary indexes are not updated when records change, so records that were
+     * deleted or whose slot now holds a different key are filtered out
+     * 
+     * @param keyType attribute(s) of the index to use
+     * @param lower   lower bound of the encoded key, inclusive
+     * @param upper   upper bound of the encoded key, inclusive
+     * @return list of records having the key within the lower and upper bounds
+     */
+    public synchronized List<Record> searchIndex(KeyType keyType, long lower, long upper) {
+        Node root = keyType == KeyType.NUM_VOTES ? bPlusTree : secondaryIndexes.get(keyType);
+        List<Record> records = new LinkedList<>();
+        if (root == null) {
+            return records;
+        }
+        for (RecordPointer ra : searchTree(root, lower, upper)) {
+            Record record = readRecord(ra);
+            long key = keyType.keyOf(record);
+            if (!record.isEmpty() && lower <= key && key <= upper) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Search for a record given its tconst, using the hash index
+     * 
+     * @param tconst tconst value
+     * @return record with the given tconst, or null if not found
+     */
+    public synchronized Record searchTconst(String tconst) {
+        int slot = tconstIndex.get(tconst);
+        if (slot < 0) {
+            return null;
+        }
+        return readRecord(RecordPointer.fromSlot(slot, NUM_OF_RECORD));
+    }
+
+    /**
+     * Search for records given the numVotes bounds and averageRating bounds, by
+     * intersecting the B+ tree range result with the bitmap index on averageRating,
+     * so that blocks without a qualifying record are never read
+     * 
+     * @param lower     lower bound of numVotes, inclusive
+     * @param upper     upper bound of numVotes, inclusive
+     * @param minRating lower bound of averageRating, inclusive
+     * @param maxRating upper bound of averageRating, inclusive
+     * @return list of records matching both ranges
+     */
+    public synchronized List<Record> searchBPT(int lower, int upper, float minRating, float maxRating) {
+        if (frozenIndex == null && bPlusTree == null) {
+            return new ArrayList<>();
+        }
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        CompressedBitmap votes = frozenIndex != null ? frozenIndex.searchBitmap(lower, upper)
+                : searchTreeBitmap(lower, upper);
+        CompressedBitmap matches = votes.and(ratingIndex.search(minRating, maxRating));
+        List<Record> records = readRecords(matches);
+        StorageEvents.endQuery(event, "ratingSearch", lower, upper, records.size(), getNumNodeAccess(),
+                getNumBlockAccess());
+        return records;
+    }
+
+    /**
+     * Count records given the numVotes bounds from the subtree counts of the B+ tree,
+     * accessing only the nodes on the paths to the two bounds
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return number of records within the bounds
+     */
+    public synchronized long countBPT(int lower, int upper) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        resetLog();
+        long count;
+        if (resultCache != null) {
+            count = (long) aggregateCached(lower, upper)[0];
+        } else if (frozenIndex != null) {
+            count = frozenIndex.countRange(lower, upper);
+        } else {
+            count = bPlusTree == null ? 0 : bPlusTree.countRange(lower, upper);
+        }
+        StorageEvents.endQuery(event, "count", lower, upper, count, getNumNodeAccess(), getNumBlockAccess());
+        return count;
+    }
+
+    /**
+     * Average the averageRating of records given the numVotes bounds from the subtree
+     * counts and sums of the B+ tree, without reading any record
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return average of averageRating within the bounds, or 0 if there is no record
+     */
+    public synchronized double averageRatingBPT(int lower, int upper) {
+        double[] aggregate = aggregateRatingBPT(lower, upper);
+        return aggregate[0] == 0 ? 0 : aggregate[1] / aggregate[0];
+    }
+
+    /**
+     * Count records and sum their averageRating given the numVotes bounds from the
+     * subtree counts and sums of the B+ tree, without reading any record
+     *
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return number of records and sum of their averageRating within the bounds
+     */
+    public synchronized double[] aggregateRatingBPT(int lower, int upper) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        resetLog();
+        long count;
+        double ratingSum;
+        if (resultCache != null) {
+            double[] aggregate = aggregateCached(lower, upper);
+            count = (long) aggregate[0];
+            ratingSum = aggregate[1];
+        } else if (frozenIndex != null) {
+            count = frozenIndex.countRange(lower, upper);
+            ratingSum = count == 0 ? 0 : frozenIndex.sumRatingRange(lower, upper);
+        } else {
+            count = bPlusTree == null ? 0 : bPlusTree.countRange(lower, upper);
+            ratingSum = count == 0 ? 0 : bPlusTree.sumRatingRange(lower, upper);
+        }
+        StorageEvents.endQuery(event, "averageRating", lower, upper, count, getNumNodeAccess(),
+                getNumBlockAccess());
+        return new double[] { count, ratingSum };
+    }
+
+    /**
+     * Count records and sum their averageRating given the numVotes bounds, looking up
+     * the result cache first so that a repeated query does not access the B+ tree
+     * 
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     * @return number of records and sum of their averageRating within the bounds
+     */
+    private double[] aggregateCached(int lower, int upper) {
+        double[] aggregate = resultCache.getAggregate(lower, upper);
+        if (aggregate == null) {
+            long count;
+            double ratingSum;
+            if (frozenIndex != null) {
+                count = frozenIndex.countRange(lower, upper);
+                ratingSum = frozenIndex.sumRatingRange(lower, upper);
+            } else {
+                count = bPlusTree == null ? 0 : bPlusTree.countRange(lower, upper);
+                ratingSum = count == 0 ? 0 : bPlusTree.sumRatingRange(lower, upper);
+            }
+            resultCache.putAggregate(lower, upper, count, ratingSum);
+            aggregate = new double[] { count, ratingSum };
+        }
+        return aggregate;
+    }
+
+    /**
+     * Find the numVotes of the record at the given rank in numVotes order
+     *
+     * @param rank rank of the record, starting from 0
+     * @return numVotes of the record, or -1 if the rank is out of range
+     */
+    public synchronized long selectBPT(long rank) {
+        resetLog();
+        return bPlusTree == null ? -1 : bPlusTree.select(rank);
+    }
+
+    /**
+     * Search for records matching all predicates of a query, using the plan chosen by
+     * {@link #plan(Query)}. Predicates are evaluated on the serialized blocks, so
+     * non-matching records are never materialised
+     * 
+     * @param query conjunctive query
+     * @return list of matching records
+     */
+    public synchronized List<Record> query(Query query) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        List<Record> records = execute(plan(query));
+        StorageEvents.endQuery(event, "query", query.getMinVotes(), query.getMaxVotes(), records.size(),
+                getNumNodeAccess(), getNumBlockAccess());
+        return records;
+    }
+
+    /**
+     * Aggregate the records matching all predicates of a query without materialising
+     * any record, using the plan chosen by {@link #plan(Query)}
+     * 
+     * @param query conjunctive query
+     * @return count and sums of the matching records
+     */
+    public synchronized Aggregate aggregate(Query query) {
+        StorageEvents.QueryCompleted event = StorageEvents.beginQuery();
+        QueryPlan plan = plan(query);
+        Aggregate aggregate;
+        if (plan.getStrategy() == QueryPlan.Strategy.FULL_SCAN) {
+            aggregate = scanAggregate(query);
+        } else {
+            Aggregate result = new Aggregate();
+            fetch(plan, slot -> {
+                int base = slot / NUM_OF_RECORD * BLOCK_SIZE;
+                result.add(Block.getAverageRating(blocks, base, slot % NUM_OF_RECORD, LAYOUT),
+                        Block.getNumVotes(blocks, base, slot % NUM_OF_RECORD, LAYOUT));
+            });
+            aggregate = result;
+        }
+        plan.setActual(aggregate.getCount(), getNumBlockAccess());
+        StorageEvents.endQuery(event, "aggregate", query.getMinVotes(), query.getMaxVotes(), aggregate.getCount(),
+                getNumNodeAccess(), getNumBlockAccess());
+        return aggregate;
+    }
+
+    /**
+     * Execute a query plan
+     * 
+     * @param plan plan returned by {@link #plan(Query)}
+     * @return list of matching records
+     */
+    public synchronized List<Record> execute(QueryPlan plan) {
+        List<Record> records;
+        if (plan.getStrategy() == QueryPlan.Strategy.FULL_SCAN) {
+            records = scan(plan.getQuery());
+        } else {
+            List<Record> result = new ArrayList<>();
+            fetch(plan, slot -> result.add(
+                    Block.readRecord(blocks, slot / NUM_OF_RECORD * BLOCK_SIZE, slot % NUM_OF_RECORD, LAYOUT)));
+            records = result;
+        }
+        plan.setActual(records.size(), getNumBlockAccess());
+        return records;
+    }
+
+    /**
+     * Plan and execute a query, describing the chosen plan with its estimated and
+     * actual number of records and block accesses
+     * 
+     * @param query conjunctive query
+     * @return description of the executed plan
+     */
+    public synchronized String explain(Query query) {
+        QueryPlan plan = plan(query);
+        execute(plan);
+        return plan.toString();
+    }
+
+    /**
+     * Choose how to retrieve the records of a query. The number of candidates of each
+     * index is estimated from the histograms, and the number of distinct blocks holding
+     * k candidates out of B blocks is estimated as B * (1 - (1 - 1/B)^k). The strategy
+     * with the fewest weighted block accesses is chosen:
+     * an index scan reads one block per candidate, a sorted index scan reads each
+     * candidate block once, and a full scan reads every block sequentially
+     * 
+     * @param query conjunctive query
+     * @return chosen plan with its estimates
+     */
+    public QueryPlan plan(Query query) {
+        double total = recordCount;
+        double numBlocks = getNumBlocksUsed();
+
+        double votesEstimate = total, ratingEstimate = total;
+        if (query.hasNumVotes() && bPlusTree != null) {
+            votesEstimate = votesHistogram != null
+                    ? votesHistogram.estimate(query.getMinVotes(), query.getMaxVotes())
+                    : bPlusTree.countRange(query.getMinVotes(), query.getMaxVotes());
+        }
+        if (query.hasAverageRating()) {
+            ratingEstimate = ratingHistogram != null
+                    ? ratingHistogram.estimate(query.getMinRating(), query.getMaxRating())
+                    : ratingIndex.count(query.getMinRating(), query.getMaxRating());
+        }
+
+        // Use the index of the most selective indexed predicate
+        QueryPlan.Index index = QueryPlan.Index.NONE;
+        double candidates = total;
+        if (query.hasTconstPrefix() && query.getTconstPrefix().length() >= MIN_TCONST_LENGTH) {
+            // A prefix as long as a complete tconst only matches a few tconsts
+            index = QueryPlan.Index.TCONST;
+            candidates = tconstCandidates(query.getTconstPrefix()).getCardinality();
+        } else if (query.hasNumVotes() && bPlusTree != null && (!query.hasAverageRating()
+                || votesEstimate <= ratingEstimate)) {
+            index = QueryPlan.Index.NUM_VOTES;
+            candidates = votesEstimate;
+        } else if (query.hasAverageRating()) {
+            index = QueryPlan.Index.AVERAGE_RATING;
+            candidates = ratingEstimate;
+        }
+        // Predicates are assumed to be independent
+        double records = total == 0 ? 0
+                : Math.min(candidates, votesEstimate * ratingEstimate / total);
+
+        double[] costs = new double[QueryPlan.Strategy.values().length];
+        double sortedBlocks = numBlocks == 0 ? 0 : numBlocks * (1 - Math.pow(1 - 1 / numBlocks, candidates));
+        costs[QueryPlan.Strategy.FULL_SCAN.ordinal()] = numBlocks * SEQUENTIAL_BLOCK_COST;
+        costs[QueryPlan.Strategy.INDEX_SCAN.ordinal()] = index == QueryPlan.Index.NONE ? Double.POSITIVE_INFINITY
+                : candidates * RANDOM_BLOCK_COST;
+        costs[QueryPlan.Strategy.SORTED_INDEX_SCAN.ordinal()] = index == QueryPlan.Index.NONE ? Double.POSITIVE_INFINITY
+                : sortedBlocks * RANDOM_BLOCK_COST + candidates * SORT_COST;
+
+        QueryPlan.Strategy strategy = QueryPlan.Strategy.FULL_SCAN;
+        for (QueryPlan.Strategy s : QueryPlan.Strategy.values()) {
+            if (costs[s.ordinal()] < costs[strategy.ordinal()]) {
+                strategy = s;
+            }
+        }
+        double blocksRead = strategy == QueryPlan.Strategy.FULL_SCAN ? numBlocks
+                : strategy == QueryPlan.Strategy.INDEX_SCAN ? candidates : sortedBlocks;
+        return new QueryPlan(query, strategy, index, candidates, records, blocksRead, costs);
+    }
+
+    /**
+     * Search for records matching a query with a parallel scan of every block, without
+     * using any index. The lock is held for the whole scan, so that the worker threads
+     * never read a block while it is written
+     * 
+     * @param query conjunctive query
+     * @return list of matching records in slot order
+     */
+    public synchronized List<Record> scan(Query query) {
+        resetLog();
+        blockAccessCount += getNumBlocksUsed();
+        return new ParallelScan(blocks, BLOCK_SIZE, LAYOUT, ForkJoinPool.commonPool()).collect(query, 0,
+                getNumBlocksUsed());
+    }
+
+    /**
+     * Aggregate the records matching a query with a parallel scan of every block,
+     * without using any index
+     * 
+     * @param query conjunctive query
+     * @return count and sums of the matching records
+     */
+    public synchronized Aggregate scanAggregate(Query query) {
+        resetLog();
+        blockAccessCount += getNumBlocksUsed();
+        return new ParallelScan(blocks, BLOCK_SIZE, LAYOUT, ForkJoinPool.commonPool()).aggregate(query, 0,
+                getNumBlocksUsed());
+    }
+
+    /**
+     * Find the slots of the records whose tconst starts with a prefix at least as long
+     * as a complete tconst, using the hash index. The prefix matches the tconst equal to
+     * it and, if shorter than the tconst attribute, the tconsts extending it by one digit
+     * 
+     * @param prefix tconst prefix of at least MIN_TCONST_LENGTH characters
+     * @return bitmap of candidate record slots
+     */
+    private CompressedBitmap tconstCandidates(String prefix) {
+        CompressedBitmap candidates = new CompressedBitmap();
+        if (prefix.length() > BlockLayout.TCONST_SIZE) {
+            return candidates;
+        }
+        int slot = tconstIndex.get(prefix);
+        if (slot >= 0) {
+            candidates.add(slot);
+        }
+        if (prefix.length() < BlockLayout.TCONST_SIZE) {
+            for (char digit = '0'; digit <= '9'; digit++) {
+                slot = tconstIndex.get(prefix + digit);
+                if (slot >= 0) {
+                    candidates.add(slot);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Retrieve candidates from the index of an index plan and find the slots of records
+     * matching the query
+     * 
+     * @param plan   index scan or sorted index scan plan
+     * @param action action to run on the slot of each matching record
+     */
+    private void fetch(QueryPlan plan, IntConsumer action) {
+        Query query = plan.getQuery();
+        resetLog();
+        if (plan.getStrategy() == QueryPlan.Strategy.INDEX_SCAN && plan.getIndex() == QueryPlan.Index.NUM_VOTES) {
+            // Visit candidates in key order, reading one block per candidate
+            for (RecordPointer address : searchTree(bPlusTree, query.getMinVotes(), query.getMaxVotes())) {
+                logBlockAccess(address);
+                if (query.matches(blocks, address.getBlockID() * BLOCK_SIZE, address.getRecordID(), LAYOUT)) {
+                    action.accept(address.toSlot(NUM_OF_RECORD));
+                }
+            }
+            return;
+        }
+
+        CompressedBitmap candidates;
+        if (plan.getIndex() == QueryPlan.Index.TCONST) {
+            candidates = tconstCandidates(query.getTconstPrefix());
+        } else if (plan.getIndex() == QueryPlan.Index.NUM_VOTES) {
+            candidates = searchTreeBitmap(query.getMinVotes(), query.getMaxVotes());
+        } else {
+            candidates = ratingIndex.search(query.getMinRating(), query.getMaxRating());
+        }
+
+        boolean sorted = plan.getStrategy() == QueryPlan.Strategy.SORTED_INDEX_SCAN;
+        int[] curBlockID = { -1 };
+        candidates.forEach(slot -> {
+            int blockID = slot / NUM_OF_RECORD;
+            if (!sorted || blockID != curBlockID[0]) {
+                // Candidates are visited in slot order, so a sorted scan reads each block once
+                curBlockID[0] = blockID;
+                logBlockAccess(new RecordPointer(blockID, slot % NUM_OF_RECORD));
+            }
+            if (query.matches(blocks, blockID * BLOCK_SIZE, slot % NUM_OF_RECORD, LAYOUT)) {
+                action.accept(slot);
+            }
+        });
+    }
+
+    /**
+     * Read records given their slots, reading each block only once
+     * 
+     * @param slots bitmap of record slots
+     * @return list of records in slot order
+     */
+    public List<Record> readRecords(CompressedBitmap slots) {
+        List<Record> records = new ArrayList<>(slots.getCardinality());
+        int[] curBlockID = { -1 };
+        Block[] curBlock = new Block[1];
+        slots.forEach(slot -> {
+            int blockID = slot / NUM_OF_RECORD;
+            if (blockID != curBlockID[0]) {
+                // Slots are visited in ascending order, so each block is read once
+                curBlockID[0] = blockID;
+                logBlockAccess(new RecordPointer(blockID, slot % NUM_OF_RECORD));
+                curBlock[0] = Block.fromByteArray(readBlock(blockID), LAYOUT);
+            }
+            records.add(curBlock[0].readRecord(slot % NUM_OF_RECORD));
+        });
+        return records;
+    }
+
+    /**
+     * Delete records that match the key value, using index. With lazy deletion the
+     * tree is not rebalanced and underfull nodes are recorded for compaction
+     * 
+     * @param deleteKey
+     */
+    public void deleteBPT(Node root, int deleteKey) {
+        StorageMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        long lsn = 0;
+        synchronized (this) {
+            if (wal != null) {
+                wal.logIndexDelete(deleteKey);
+            }
+            invalidate(deleteKey, deleteKey);
+            walBatchDepth++;
+            try {
+                if (versions != null && root == bPlusTree) {
+                    RecordNode removed = versions.delete(deleteKey);
+                    bPlusTree = versions.getRoot();
+                    if (removed != null) {
+                        CompressedBitmap slots = new CompressedBitmap();
+                        removed.forEachSlot(slots::add);
+                        deleteRecords(slots);
+                    }
+                } else if (lazyDeletion) {
+                    bPlusTree = Node.deleteLazy(root, deleteKey, underfullNodes);
+                } else {
+                    bPlusTree = Node.delete(root, deleteKey);
+                }
+            } finally {
+                walBatchDepth--;
+            }
+            if (wal != null) {
+                lsn = wal.getAppendedLsn();
+            }
+        }
+
+        // Wait for the log outside the lock, so that concurrent writers share one sync
+        if (lsn != 0) {
+            wal.commit(lsn);
+        }
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * Release blocks at the tail of the storage by moving their records into the free
+     * slots of sparse lower blocks, then truncating the tail. The B+ trees, bitmap
+     * index and hash index are updated with the new addresses. At most the given
+     * number of blocks is released per call, so it can run incrementally
+     * 
+     * @param maxBlocks maximum number of blocks to release
+     * @return number of blocks released
+     */
+    public int vacuum(int maxBlocks) {
+        int released = 0;
+        long lsn = 0;
+        synchronized (this) {
+            // Moved records with their old and new slots, applied to the B+ trees at the end
+            List<Record> movedRecords = new ArrayList<>();
+            List<int[]> moves = new ArrayList<>();
+            while (released < maxBlocks && blockTail >= 0) {
+                // Stop once the free slots below the tail cannot hold its records
+                int tailFree = freeSpace.getNumFree(blockTail);
+                if (freeSpace.getNumFree() - tailFree < NUM_OF_RECORD - tailFree) {
+                    break;
+                }
+                Block block = Block.fromByteArray(readBlock(blockTail), LAYOUT);
+                for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
+                    Record record = block.readRecord(recordID);
+                    if (!record.isEmpty()) {
+                        int oldSlot = new RecordPointer(blockTail, recordID).toSlot(NUM_OF_RECORD);
+                        movedRecords.add(record);
+                        moves.add(new int[] { oldSlot, moveRecord(oldSlot, record) });
+                    }
+                }
+                freeSpace.truncate(blockTail);
+                updateBlock(blockTail, new Block(BLOCK_SIZE, LAYOUT).toByteArray());
+                blockTail--;
+                released++;
+            }
+
+            // Cached results hold the old slots of the moved records
+            for (Record record : movedRecords) {
+                invalidate(record.getNumVotes(), record.getNumVotes());
+            }
+            if (versions != null) {
+                relocate(versions, movedRecords, moves);
+                bPlusTree = versions.getRoot();
+            } else {
+                relocate(bPlusTree, KeyType.NUM_VOTES, movedRecords, moves);
+            }
+            for (Map.Entry<KeyType, Node> index : secondaryIndexes.entrySet()) {
+                relocate(index.getValue(), index.getKey(), movedRecords, moves);
+            }
+            if (wal != null && released > 0) {
+                lsn = wal.logVacuum(released);
+            }
+        }
+
+        // Wait for the log outside the lock, so that concurrent writers share one sync
+        if (lsn != 0) {
+            wal.commit(lsn);
+        }
+        return released;
+    }
+
+    /**
+     * Move a record to the first free slot, updating the bitmap index and hash index
+     * with its new address
+     * 
+     * @param oldSlot slot of the record
+     * @param record  record to be moved
+     * @return new slot of the record
+     */
+    private int moveRecord(int oldSlot, Record record) {
+        RecordPointer to = RecordPointer.fromSlot(freeSpace.allocate(), NUM_OF_RECORD);
+        Block block = Block.fromByteArray(readBlock(to.getBlockID()), LAYOUT);
+        block.updateRecord(to.getRecordID(), record.getTconst(), record.getaverageRating(), record.getNumVotes(),
+                false);
+        updateBlock(to.getBlockID(), block.toByteArray());
+
+        int newSlot = to.toSlot(NUM_OF_RECORD);
+        ratingIndex.remove(record.getaverageRating(), oldSlot);
+        ratingIndex.add(record.getaverageRating(), newSlot);
+        tconstIndex.remove(record.getTconst(), oldSlot);
+        tconstIndex.put(record.getTconst(), newSlot);
+        return newSlot;
+    }
+
+    /**
+     * Update the posting lists of a B+ tree with the new slots of moved records,
+     * rewriting each posting list once per key
+     * 
+     * @param root    root node of the B+ tree
+     * @param keyType attribute(s) the tree is built on
+     * @param records moved records
+     * @param moves   old and new slot of each moved record
+     */
+    private void relocate(Node root, KeyType keyType, List<Record> records, List<int[]> moves) {
+        if (root == null || records.isEmpty()) {
+            return;
+        }
+        long[] keys = new long[records.size()];
+        Integer[] order = new Integer[records.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = keyType.keyOf(records.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        for (int from = 0, to; from < order.length; from = to) {
+            to = from;
+            while (to < order.length && keys[order[to]] == keys[order[from]]) {
+                to++;
+            }
+            int[] oldSlots = new int[to - from], newSlots = new int[to - from];
+            for (int i = from; i < to; i++) {
+                oldSlots[i - from] = moves.get(order[i])[0];
+                newSlots[i - from] = moves.get(order[i])[1];
+            }
+            root.relocate(keys[order[from]], oldSlots, newSlots);
+        }
+    }
+
+    /**
+     * Update the posting lists of the copy-on-write B+ tree with the new slots of
+     * moved records, publishing one version per key
+     * 
+     * @param versions copy-on-write B+ tree on numVotes
+     * @param records  moved records
+     * @param moves    old and new slot of each moved record
+     */
+    private void relocate(VersionedIndex versions, List<Record> records, List<int[]> moves) {
+        Map<Integer, List<int[]>> byKey = new TreeMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            byKey.computeIfAbsent(records.get(i).getNumVotes(), k -> new ArrayList<>()).add(moves.get(i));
+        }
+        for (Map.Entry<Integer, List<int[]>> entry : byKey.entrySet()) {
+            List<int[]> keyMoves = entry.getValue();
+            int[] oldSlots = new int[keyMoves.size()], newSlots = new int[keyMoves.size()];
+            for (int i = 0; i < oldSlots.length; i++) {
+                oldSlots[i] = keyMoves.get(i)[0];
+                newSlots[i] = keyMoves.get(i)[1];
+            }
+            versions.relocate(entry.getKey(), oldSlots, newSlots);
+        }
+    }
+
+    /**
+     * Enable or disable copy-on-write mode for the B+ tree on numVotes. While enabled,
+     * deletions and vacuum path-copy the nodes they modify and publish a new version,
+     * so that snapshots can be read without locks. Pending lazy-deletion compaction is
+     * finished first, and deletions rebalance eagerly while the mode is enabled
+     * 
+     * @param copyOnWrite whether the B+ tree is modified by copying
+     */
+    public synchronized void setCopyOnWrite(boolean copyOnWrite) {
+        if (copyOnWrite && versions == null) {
+            compact(Integer.MAX_VALUE);
+            versions = new VersionedIndex(bPlusTree, NUM_OF_RECORD);
+            bPlusTree = versions.getRoot();
+        } else if (!copyOnWrite) {
+            versions = null;
+        }
+    }
+
+    public boolean isCopyOnWrite() {
+        return versions != null;
+    }
+
+    /**
+     * Pin the latest version of the B+ tree on numVotes, to be read without locks while
+     * writers proceed
+     * 
+     * @return snapshot of the latest version, or null if copy-on-write mode is disabled
+     */
+    public VersionedIndex.Snapshot snapshot() {
+        VersionedIndex current = versions;
+        return current == null ? null : current.pin();
+    }
+
+    public VersionedIndex getVersionedIndex() {
+        return versions;
+    }
+
+    /**
+     * Enable or disable lazy deletion. Disabling it compacts every recorded underfull
+     * node first, since eager deletion expects a balanced tree
+     * 
+     * @param lazyDeletion whether deletion defers rebalancing
+     */
+    public synchronized void setLazyDeletion(boolean lazyDeletion) {
+        if (!lazyDeletion) {
+            compact(Integer.MAX_VALUE);
+        }
+        this.lazyDeletion = lazyDeletion;
+    }
+
+    /**
+     * Rebalance a batch of underfull nodes recorded by lazy deletion
+     * 
+     * @param maxNodes maximum number of recorded nodes to process
+     * @return number of underfull nodes still recorded
+     */
+    public synchronized int compact(int maxNodes) {
+        bPlusTree = Node.compact(bPlusTree, underfullNodes, maxNodes);
+        return underfullNodes.size();
+    }
+
+    public synchronized int getUnderfullNodeCount() {
+        return underfullNodes.size();
+    }
+
+    public boolean isLazyDeletion() {
+        return lazyDeletion;
+    }
+
+    /**
+     * Report the fill factor of every level, underfull nodes, posting list lengths and
+     * height of the B+ tree on numVotes
+     * 
+     * @return health report of the B+ tree
+     */
+    public synchronized TreeHealthReport getHealthReport() {
+        return new TreeHealthReport(bPlusTree);
+    }
+
+    /**
+     * Rebuild the B+ tree on numVotes into a compact tree without blocking other
+     * operations for the whole rebuild. The posting lists are copied from the leaf
+     * entries of the tree under the lock (or from a pinned version without it, in
+     * copy-on-write mode), the new tree is bulk-loaded outside the lock, and the key
+     * ranges changed meanwhile are replayed onto it under the lock before it replaces
+     * the tree. A root passed to {@link #deleteBPT(Node, int)} must be read again from
+     * {@link #getBPT()} after the rebuild, as after {@link #thaw()}
+     * 
+     * @param fillFactor fraction of each node to fill, from 0.5 to 1; lower values
+     *                   leave room for insertions before nodes split
+     * @return true if the tree was replaced, false if there is no tree, another rebuild
+     *         is running, or the tree was rebuilt by other means meanwhile
+     */
+    public boolean rebuildIndex(double fillFactor) {
+        VersionedIndex.Snapshot snapshot = null;
+        long[] keys = null;
+        RecordNode[] postings = null;
+        long generation;
+        synchronized (this) {
+            if (bPlusTree == null || rebuildJournal != null) {
+                return false;
+            }
+            rebuildJournal = new ArrayList<>();
+            generation = indexGeneration;
+            if (versions != null) {
+                // Published versions are never modified, so the pinned one is copied unlocked
+                snapshot = versions.pin();
+            } else {
+                keys = new long[countKeys(bPlusTree)];
+                postings = new RecordNode[keys.length];
+                copyEntries(bPlusTree, keys, postings, 0);
+            }
+        }
+        try {
+            if (snapshot != null) {
+                keys = new long[countKeys(snapshot.getRoot())];
+                postings = new RecordNode[keys.length];
+                copyEntries(snapshot.getRoot(), keys, postings, 0);
+            }
+            Node root = Node.bulkLoad(keys, postings, keys.length, fillFactor);
+
+            synchronized (this) {
+                if (indexGeneration != generation) {
+                    return false;
+                }
+                root = replayJournal(root);
+                bPlusTree = root;
+                indexGeneration++;
+                underfullNodes.clear();
+                if (versions != null && bPlusTree != null) {
+                    versions = new VersionedIndex(bPlusTree, NUM_OF_RECORD);
+                    bPlusTree = versions.getRoot();
+                }
+                return true;
+            }
+        } finally {
+            synchronized (this) {
+                rebuildJournal = null;
+            }
+        }
+    }
+
+    /**
+     * Rebuild the B+ tree on numVotes in the background, as {@link #rebuildIndex(double)}
+     * 
+     * @param fillFactor fraction of each node to fill, from 0.5 to 1
+     * @return future completed with whether the tree was replaced
+     */
+    public CompletableFuture<Boolean> rebuildIndexAsync(double fillFactor) {
+        return CompletableFuture.supplyAsync(() -> Node.withStorage(this, () -> rebuildIndex(fillFactor)),
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Count the keys of a subtree, following child pointers only so that a pinned
+     * version can be read
+     * 
+     * @param node root node of the subtree
+     * @return number of keys in the leaf nodes of the subtree
+     */
+    private static int countKeys(Node node) {
+        if (node instanceof LeafNode) {
+            return node.getDegree();
+        }
+        int count = 0;
+        for (int i = 0; i < node.getDegree(); i++) {
+            count += countKeys(((InternalNode) node).getPointers()[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Copy the keys and posting lists of a subtree in key order. Posting lists are
+     * copied, so that changes to the tree do not reach the rebuilt tree
+     * 
+     * @param node     root node of the subtree
+     * @param keys     array receiving the keys
+     * @param postings array receiving the posting lists
+     * @param pos      position of the first key of the subtree
+     * @return position after the last key of the subtree
+     */
+    private static int copyEntries(Node node, long[] keys, RecordNode[] postings, int pos) {
+        if (node instanceof LeafNode) {
+            RecordNode[] pointers = ((LeafNode) node).getPointers();
+            for (int i = 0; i < node.getDegree(); i++, pos++) {
+                keys[pos] = node.getKeys()[i];
+                postings[pos] = new RecordNode(pointers[i].getSlots(), pointers[i].getSize(),
+                        pointers[i].getRatingSum());
+            }
+            return pos;
+        }
+        for (int i = 0; i < node.getDegree(); i++) {
+            pos = copyEntries(((InternalNode) node).getPointers()[i], keys, postings, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Replay the key ranges changed during an online rebuild onto the rebuilt tree:
+     * the entries of each range are removed from it and copied again from the current
+     * tree
+     * 
+     * @param root root node of the rebuilt tree
+     * @return root node of the rebuilt tree after the replay
+     */
+    private Node replayJournal(Node root) {
+        rebuildJournal.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < rebuildJournal.size();) {
+            long lower = rebuildJournal.get(i)[0], upper = rebuildJournal.get(i)[1];
+            // Coalesce overlapping ranges, so that each key is replayed once
+            for (i++; i < rebuildJournal.size() && rebuildJournal.get(i)[0] <= upper; i++) {
+                upper = Math.max(upper, rebuildJournal.get(i)[1]);
+            }
+            root = Node.deleteRange(root, lower, upper, new CompressedBitmap());
+            if (bPlusTree != null) {
+                root = copyRange(bPlusTree, lower, upper, root);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Insert the records of a key range of a subtree into another tree, following
+     * child pointers only since right sibling links may be stale in copy-on-write mode
+     * 
+     * @param source root node of the subtree to copy from
+     * @param lower  lower bound of the range, inclusive
+     * @param upper  upper bound of the range, inclusive
+     * @param root   root node of the tree to insert into, or null if empty
+     * @return root node of the tree inserted into
+     */
+    private Node copyRange(Node source, long lower, long upper, Node root) {
+        if (source instanceof InternalNode) {
+            InternalNode node = (InternalNode) source;
+            for (int i = node.findIndexOfNode(lower); i <= node.findIndexOfNode(upper); i++) {
+                root = copyRange(node.getPointers()[i], lower, upper, root);
+            }
+            return root;
+        }
+        for (int i = 0; i < source.getDegree(); i++) {
+            long key = source.getKeys()[i];
+            if (key < lower || key > upper) {
+                continue;
+            }
+            for (int slot : ((LeafNode) source).getPointers()[i].getSlots()) {
+                int base = slot / NUM_OF_RECORD * BLOCK_SIZE;
+                float rating = Block.getAverageRating(blocks, base, slot % NUM_OF_RECORD, LAYOUT);
+                if (root == null) {
+                    root = new LeafNode(true);
+                }
+                root = root.bPlusInsert(key, slot, rating).getNode();
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Delete all records with numVotes within the given bounds, removing their
+     * entries from the B+ tree in one pass
+     * 
+     * @param lower lower bound of numVotes, inclusive
+     * @param upper upper bound of numVotes, inclusive
+     */
+    public void deleteBPT(int lower, int upper) {
+        StorageMetrics metrics = this.metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        long lsn = 0;
+        synchronized (this) {
+            if (wal != null) {
+                wal.logIndexDeleteRange(lower, upper);
+            }
+            invalidate(lower, upper);
+            CompressedBitmap slots = new CompressedBitmap();
+            if (versions != null) {
+                versions.deleteRange(lower, upper, slots);
+                bPlusTree = versions.getRoot();
+            } else {
+                bPlusTree = Node.deleteRange(bPlusTree, lower, upper, slots);
+            }
+            deleteRecords(slots);
+            if (wal != null) {
+                lsn = wal.getAppendedLsn();
+            }
+        }
+
+        // Wait for the log outside the lock, so that concurrent writers share one sync
+        if (lsn != 0) {
+            wal.commit(lsn);
+        }
+        if (metrics != null) {
+            metrics.record(StorageMetrics.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * Log every later mutation to a write-ahead log, or stop logging if null. Each
+     * mutation returns once its log entries are durable
+     * 
+     * @param wal write-ahead log
+     */
+    public synchronized void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    /**
+     * Cache the results of numVotes point, range, count and average queries, or stop
+     * caching if null. Every B+ tree change invalidates exactly the cached ranges
+     * containing a changed key
+     * 
+     * @param resultCache result cache, expected to be empty
+     */
+    public synchronized void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Record the latency of searches, range searches, inserts, deletions, record
+     * creations and record reads from now on, returning the metrics recorded. Register
+     * them with {@link StorageMetrics#register()} to export them through JMX
+     * 
+     * @return metrics of the storage
+     */
+    public synchronized StorageMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new StorageMetrics(this);
+        }
+        return metrics;
+    }
+
+    /**
+     * Stop recording latencies, unregistering the metrics from JMX if registered
+     * 
+     * @throws JMException if the metrics cannot be unregistered
+     */
+    public synchronized void disableMetrics() throws JMException {
+        if (metrics != null) {
+            metrics.unregister();
+            metrics = null;
+        }
+    }
+
+    public StorageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Invalidate the cached results of ranges overlapping changed numVotes keys, and
+     * the frozen image of the B+ tree, which no longer matches it. During an online
+     * rebuild the keys are journaled, to be replayed onto the rebuilt tree
+     * 
+     * @param lower smallest changed key, inclusive
+     * @param upper largest changed key, inclusive
+     */
+    private void invalidate(long lower, long upper) {
+        if (resultCache != null) {
+            resultCache.invalidate(lower, upper);
+        }
+        if (rebuildJournal != null) {
+            rebuildJournal.add(new long[] { lower, upper });
+        }
+        frozenIndex = null;
+    }
+
+    /**
+     * Freeze the B+ tree on numVotes into a read-only image serving point, range,
+     * count and average queries. The B+ tree is kept for every other operation, and
+     * the image is dropped by the first change to the B+ tree, so a batch of writes
+     * is followed by freezing again
+     * 
+     * @return frozen image of the B+ tree
+     */
+    public synchronized FrozenIndex freeze() {
+        frozenIndex = FrozenIndex.freeze(bPlusTree, NUM_OF_RECORD);
+        return frozenIndex;
+    }
+
+    /**
+     * Replace the B+ tree on numVotes by the tree thawed from its frozen image, which
+     * is evenly packed and has no node left underfull by lazy deletion, and stop
+     * serving reads from the image
+     */
+    public synchronized void thaw() {
+        if (frozenIndex == null) {
+            return;
+        }
+        bPlusTree = frozenIndex.thaw();
+        indexGeneration++;
+        underfullNodes.clear();
+        if (versions != null) {
+            versions = new VersionedIndex(bPlusTree, NUM_OF_RECORD);
+            bPlusTree = versions.getRoot();
+        }
+        frozenIndex = null;
+    }
+
+    public FrozenIndex getFrozenIndex() {
+        return frozenIndex;
+    }
+
+    /**
+     * Replay a write-ahead log on top of the current content of the storage, which is
+     * the state the log was started from, such as the last checkpoint. Record insertions are written back into
+     * their original slots, and B+ tree deletions are applied if the B+ tree exists
+     * 
+     * @param path path of the log file
+     * @return number of log entries replayed
+     * @throws IOException if the log file cannot be read
+     */
+    public synchronized long recover(Path path) throws IOException {
+        WriteAheadLog current = wal;
+        wal = null;
+        try {
+            return WriteAheadLog.replay(path, new WriteAheadLog.Replayer() {
+                @Override
+                public void insert(int slot, String tconst, float rating, int numVotes) {
+                    RecordPointer address = RecordPointer.fromSlot(slot, NUM_OF_RECORD);
+                    while (blockTail < address.getBlockID()) {
+                        createBlock();
+                    }
+                    freeSpace.use(slot);
+                    writeRecord(address, tconst, rating, numVotes);
+                }
+
+                @Override
+                public void delete(int slot) {
+                    deleteRecord(RecordPointer.fromSlot(slot, NUM_OF_RECORD));
+                }
+
+                @Override
+                public void indexInsert(int slot) {
+                    RecordPointer address = RecordPointer.fromSlot(slot, NUM_OF_RECORD);
+                    Record record = readRecord(address);
+                    insertBPT(address, record.getNumVotes(), record.getaverageRating());
+                }
+
+                @Override
+                public void indexDelete(long key) {
+                    if (bPlusTree != null) {
+                        invalidate(key, key);
+                        bPlusTree = Node.delete(bPlusTree, key);
+                    }
+                }
+
+                @Override
+                public void indexDeleteRange(long lower, long upper) {
+                    if (bPlusTree != null) {
+                        invalidate(lower, upper);
+                        bPlusTree = Node.deleteRange(bPlusTree, lower, upper, new CompressedBitmap());
+                    }
+                }
+
+                @Override
+                public void vacuum(int numBlocks) {
+                    Storage.this.vacuum(numBlocks);
+                }
+            });
+        } finally {
+            wal = current;
+        }
+    }
+
+    /**
+     * Write the blocks and every B+ tree to a checkpoint directory, then truncate the
+     * write-ahead log since its entries are now reflected in the checkpoint. Pending
+     * lazy-deletion compaction is finished first so that the saved tree is balanced
+     * 
+     * @param dir checkpoint directory
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public synchronized void checkpoint(Path dir) throws IOException {
+        compact(Integer.MAX_VALUE);
+        Map<KeyType, Node> trees = new EnumMap<>(KeyType.class);
+        if (bPlusTree != null) {
+            trees.put(KeyType.NUM_VOTES, bPlusTree);
+        }
+        for (Map.Entry<KeyType, Node> index : secondaryIndexes.entrySet()) {
+            if (index.getValue() != null) {
+                trees.put(index.getKey(), index.getValue());
+            }
+        }
+        new Checkpoint(dir, Checkpoint.nextId(dir), BLOCK_SIZE, RECORD_SIZE, MEMORY_SIZE, LAYOUT.getType(),
+                blockTail + 1).write(blocks, trees);
+        if (wal != null) {
+            wal.truncate();
+        }
+    }
+
+    /**
+     * Restart from a checkpoint directory instead of reloading the TSV and rebuilding
+     * the index. The blocks are copied back directly and the B+ trees are rebuilt node
+     * by node, while the free space map, bitmap index, hash index and histograms are
+     * rebuilt in one pass over the blocks. Sets the B+ tree parameters for the block
+     * size of the checkpoint
+     * 
+     * @param dir checkpoint directory
+     * @return restored storage
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public static Storage load(Path dir) throws IOException {
+        Checkpoint checkpoint = Checkpoint.open(dir);
+        Storage storage = new Storage(checkpoint.getBlockSize(), checkpoint.getRecordSize(),
+                checkpoint.getMemorySize(), checkpoint.getLayoutType());
+        Node.setStorage(storage);
+        Node.setNFromBlockSize(checkpoint.getBlockSize());
+        RecordNode.setMaxSizeFromBlockSize(checkpoint.getBlockSize());
+
+        checkpoint.readBlocks(storage.blocks);
+        storage.restoreRecords(checkpoint.getNumBlocks());
+        for (Map.Entry<KeyType, Node> tree : checkpoint.readTrees().entrySet()) {
+            if (tree.getKey() == KeyType.NUM_VOTES) {
+                storage.bPlusTree = tree.getValue();
+            } else {
+                storage.secondaryIndexes.put(tree.getKey(), tree.getValue());
+            }
+        }
+        if (storage.bPlusTree == null) {
+            // Histograms are only kept along with the index
+            storage.votesHistogram = null;
+            storage.ratingHistogram = null;
+        }
+        return storage;
+    }
+
+    /**
+     * Rebuild the free space map, bitmap index, hash index and histograms from blocks
+     * copied back into the block array
+     * 
+     * @param numBlocks number of blocks in use
+     */
+    private void restoreRecords(int numBlocks) {
+        double[] votes = new double[numBlocks * NUM_OF_RECORD];
+        double[] ratings = new double[numBlocks * NUM_OF_RECORD];
+        tconstIndex = new HashIndex(numBlocks * NUM_OF_RECORD);
+        for (int blockID = 0; blockID < numBlocks; ++blockID) {
+            blockTail = blockID;
+            freeSpace.addBlock(blockID);
+            int base = blockID * BLOCK_SIZE;
+            for (int recordID = 0; recordID < NUM_OF_RECORD; ++recordID) {
+                if (Block.isEmpty(blocks, base, recordID, LAYOUT)) {
+                    continue;
+                }
+                Record record = Block.readRecord(blocks, base, recordID, LAYOUT);
+                int slot = new RecordPointer(blockID, recordID).toSlot(NUM_OF_RECORD);
+                freeSpace.use(slot);
+                ratingIndex.add(record.getaverageRating(), slot);
+                tconstIndex.put(record.getTconst(), slot);
+                votes[recordCount] = record.getNumVotes();
+                ratings[recordCount] = record.getaverageRating();
+                recordCount++;
+            }
+        }
+        votesHistogram = new Histogram(Arrays.copyOf(votes, recordCount), NUM_OF_BUCKET, 1);
+        ratingHistogram = new Histogram(Arrays.copyOf(ratings, recordCount), NUM_OF_BUCKET, 0.1);
+    }
+
+    public BitmapIndex getRatingIndex() {
+        return ratingIndex;
+    }
+
+    public HashIndex getTconstIndex() {
+        return tconstIndex;
+    }
+
+    public Histogram getVotesHistogram() {
+        return votesHistogram;
+    }
+
+    public Histogram getRatingHistogram() {
+        return ratingHistogram;
+    }
+
+    public FreeSpaceMap getFreeSpace() {
+        return freeSpace;
+    }
+
+    public int getNumRecords() {
+        return recordCount;
+    }
+
+    /**
+     * Number of records stored in one block, used to pack record addresses into slots
+     * 
+     * @return number of records per block
+     */
+    public int getRecordsPerBlock() {
+        return NUM_OF_RECORD;
+    }
+
+    public int getNumBlocksUsed() {
+        return blockTail + 1;
+    }
+
+    public int getRecordSize() {
+        return RECORD_SIZE;
+    }
+
+    public BlockLayout getLayout() {
+        return LAYOUT;
     }
 
     private void initLogger() {
@@ -267,7 +1942,7 @@ public class Storage {
         for (int i = 0; i < accessedBlocks.size(); i++) {
             RecordPointer recordPointer = accessedBlocks.get(i);
             byte[] byteArray = readBlock(recordPointer.getBlockID());
-            Block block = Block.fromByteArray(byteArray, getRecordSize());
+            Block block = Block.fromByteArray(byteArray, LAYOUT);
             sb.append(String.format("%d. ", i + 1));
             sb.append(block);
             sb.append("\n");
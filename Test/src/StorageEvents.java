@@ -0,0 +1,302 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events of the storage and its B+ trees. Every event is disabled
+ * by default, so a recording only contains the events enabled in its settings, such as
+ * {@code jfr configure cz4031.BlockRead#enabled=true} or a custom .jfc file. Callers
+ * check shouldCommit() before filling in an event, so a disabled event costs one branch
+ */
+public final class StorageEvents {
+
+    private static final String CATEGORY = "CZ4031";
+
+    private StorageEvents() {
+    }
+
+    @Name("cz4031.TreeDescent")
+    @Label("Tree Descent")
+    @Description("Descent from a node to the leaf node possibly containing a key")
+    @Category({ CATEGORY, "B+ Tree" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class TreeDescent extends Event {
+        @Label("Key")
+        long key;
+
+        @Label("Internal Nodes Visited")
+        int nodes;
+    }
+
+    @Name("cz4031.LeafScan")
+    @Label("Leaf Scan")
+    @Description("Search of a key range along the leaf nodes, including the descent")
+    @Category({ CATEGORY, "B+ Tree" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class LeafScan extends Event {
+        @Label("Lower Bound")
+        long lower;
+
+        @Label("Upper Bound")
+        long upper;
+
+        @Label("Records Found")
+        long records;
+    }
+
+    @Name("cz4031.NodeSplit")
+    @Label("Node Split")
+    @Description("Split of a full node during insertion")
+    @Category({ CATEGORY, "B+ Tree", "Structure" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class NodeSplit extends Event {
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Height")
+        int height;
+
+        @Label("Separator Key")
+        long key;
+    }
+
+    @Name("cz4031.NodeBorrow")
+    @Label("Node Borrow")
+    @Description("Underfull node taking entries from a sibling during deletion")
+    @Category({ CATEGORY, "B+ Tree", "Structure" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class NodeBorrow extends Event {
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Height")
+        int height;
+
+        @Label("Entries Moved")
+        int entries;
+    }
+
+    @Name("cz4031.NodeMerge")
+    @Label("Node Merge")
+    @Description("Underfull node merged with a sibling during deletion")
+    @Category({ CATEGORY, "B+ Tree", "Structure" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class NodeMerge extends Event {
+        @Label("Leaf")
+        boolean leaf;
+
+        @Label("Height")
+        int height;
+
+        @Label("Degree After Merge")
+        int degree;
+    }
+
+    @Name("cz4031.PostingListGrowth")
+    @Label("Posting List Growth")
+    @Description("Posting list growing its packed array or switching to the compressed representation")
+    @Category({ CATEGORY, "B+ Tree", "Structure" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class PostingListGrowth extends Event {
+        @Label("Size")
+        int size;
+
+        @Label("Capacity")
+        int capacity;
+
+        @Label("Compressed")
+        boolean compressed;
+    }
+
+    @Name("cz4031.BlockRead")
+    @Label("Block Read")
+    @Category({ CATEGORY, "Storage" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class BlockRead extends Event {
+        @Label("Block ID")
+        int blockID;
+    }
+
+    @Name("cz4031.BlockWrite")
+    @Label("Block Write")
+    @Category({ CATEGORY, "Storage" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class BlockWrite extends Event {
+        @Label("Block ID")
+        int blockID;
+    }
+
+    @Name("cz4031.QueryCompleted")
+    @Label("Query Completed")
+    @Description("Query answered by the storage, with its key range and access counts")
+    @Category({ CATEGORY, "Query" })
+    @Enabled(false)
+    @StackTrace(false)
+    public static class QueryCompleted extends Event {
+        @Label("Query")
+        String query;
+
+        @Label("Lower Bound")
+        long lower;
+
+        @Label("Upper Bound")
+        long upper;
+
+        @Label("Result Size")
+        long results;
+
+        @Label("Node Accesses")
+        int nodeAccesses;
+
+        @Label("Block Accesses")
+        int blockAccesses;
+    }
+
+    /**
+     * Record the split of a full node
+     *
+     * @param leaf   whether the node is a leaf node
+     * @param height height of the node
+     * @param key    separator key pushed up to the parent
+     */
+    static void split(boolean leaf, int height, long key) {
+        NodeSplit event = new NodeSplit();
+        if (event.shouldCommit()) {
+            event.leaf = leaf;
+            event.height = height;
+            event.key = key;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record an underfull node taking entries from a sibling
+     *
+     * @param leaf    whether the node is a leaf node
+     * @param height  height of the node
+     * @param entries number of entries moved
+     */
+    static void borrow(boolean leaf, int height, int entries) {
+        NodeBorrow event = new NodeBorrow();
+        if (event.shouldCommit()) {
+            event.leaf = leaf;
+            event.height = height;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record the merge of two sibling nodes
+     *
+     * @param leaf   whether the nodes are leaf nodes
+     * @param height height of the nodes
+     * @param degree degree of the merged node
+     */
+    static void merge(boolean leaf, int height, int degree) {
+        NodeMerge event = new NodeMerge();
+        if (event.shouldCommit()) {
+            event.leaf = leaf;
+            event.height = height;
+            event.degree = degree;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a posting list growing its storage
+     *
+     * @param size       number of record slots
+     * @param capacity   new capacity, in slots if packed or in bytes if compressed
+     * @param compressed whether the posting list is compressed
+     */
+    static void postingListGrowth(int size, int capacity, boolean compressed) {
+        PostingListGrowth event = new PostingListGrowth();
+        if (event.shouldCommit()) {
+            event.size = size;
+            event.capacity = capacity;
+            event.compressed = compressed;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a block read from "disk storage"
+     *
+     * @param blockID ID of the block
+     */
+    static void blockRead(int blockID) {
+        BlockRead event = new BlockRead();
+        if (event.shouldCommit()) {
+            event.blockID = blockID;
+            event.commit();
+        }
+    }
+
+    /**
+     * Record a block written to "disk storage"
+     *
+     * @param blockID ID of the block
+     */
+    static void blockWrite(int blockID) {
+        BlockWrite event = new BlockWrite();
+        if (event.shouldCommit()) {
+            event.blockID = blockID;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start timing a query, returning null if the event is disabled
+     *
+     * @return begun event, or null
+     */
+    static QueryCompleted beginQuery() {
+        QueryCompleted event = new QueryCompleted();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commit a query event begun by beginQuery
+     *
+     * @param event         begun event, or null if disabled
+     * @param query         name of the query
+     * @param lower         lower bound of the key range, inclusive
+     * @param upper         upper bound of the key range, inclusive
+     * @param results       number of records returned or counted
+     * @param nodeAccesses  number of index nodes accessed
+     * @param blockAccesses number of blocks accessed
+     */
+    static void endQuery(QueryCompleted event, String query, long lower, long upper, long results,
+            int nodeAccesses, int blockAccesses) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.query = query;
+            event.lower = lower;
+            event.upper = upper;
+            event.results = results;
+            event.nodeAccesses = nodeAccesses;
+            event.blockAccesses = blockAccesses;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class representing the latency histograms and counters of the operations of a
+ * storage, exported as an MXBean. An operation is timed by taking System.nanoTime()
+ * before it and passing it to record() after it, which adds the latency to the
+ * histogram of the operation without locking
+ */
+public class StorageMetrics implements StorageMetricsMXBean {
+
+    /**
+     * Operations with a latency histogram
+     */
+    public enum Operation {
+        SEARCH("search"),
+        RANGE_SEARCH("rangeSearch"),
+        INSERT("insert"),
+        DELETE("delete"),
+        CREATE_RECORD("createRecord"),
+        READ_RECORD("readRecord");
+
+        private final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Number of storages registered so far, used to name their MXBeans
+     */
+    private static final AtomicInteger registered = new AtomicInteger();
+
+    private final Storage storage;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    private volatile long startTime = System.nanoTime();
+    private ObjectName objectName;
+
+    /**
+     * Construct empty metrics of a storage
+     *
+     * @param storage storage whose B+ tree and blocks are reported
+     */
+    public StorageMetrics(Storage storage) {
+        this.storage = storage;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the latency of an operation
+     *
+     * @param operation operation done
+     * @param startTime System.nanoTime() taken before the operation
+     */
+    public void record(Operation operation, long startTime) {
+        histograms[operation.ordinal()].record(System.nanoTime() - startTime);
+    }
+
+    public LatencyHistogram getHistogram(Operation operation) {
+        return histograms[operation.ordinal()];
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, named after the storage
+     *
+     * @return name of the MXBean
+     * @throws JMException if the MXBean cannot be registered
+     */
+    public synchronized ObjectName register() throws JMException {
+        if (objectName == null) {
+            ObjectName name = new ObjectName("cz4031:type=Storage,id=" + registered.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        }
+        return objectName;
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if registered
+     *
+     * @throws JMException if the MXBean cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Map every operation to a value of its histogram
+     *
+     * @param value value of a histogram
+     * @return values keyed by operation name
+     */
+    private <T> Map<String, T> byOperation(Function<LatencyHistogram, T> value) {
+        Map<String, T> values = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            values.put(operation.getName(), value.apply(histograms[operation.ordinal()]));
+        }
+        return values;
+    }
+
+    private Map<String, Double> latencyMicros(ToDoubleFunction<LatencyHistogram> nanos) {
+        return byOperation(histogram -> nanos.applyAsDouble(histogram) / 1000);
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return byOperation(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getThroughput() {
+        double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        return byOperation(histogram -> histogram.getCount() / seconds);
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMicros() {
+        return latencyMicros(LatencyHistogram::getMean);
+    }
+
+    @Override
+    public Map<String, Double> getP50LatencyMicros() {
+        return latencyMicros(histogram -> histogram.getPercentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getP99LatencyMicros() {
+        return latencyMicros(histogram -> histogram.getPercentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getP999LatencyMicros() {
+        return latencyMicros(histogram -> histogram.getPercentile(99.9));
+    }
+
+    @Override
+    public Map<String, Double> getMaxLatencyMicros() {
+        return latencyMicros(LatencyHistogram::getMax);
+    }
+
+    @Override
+    public double getLatencyMicros(String operation, double percentile) {
+        for (Operation op : Operation.values()) {
+            if (op.getName().equals(operation)) {
+                return histograms[op.ordinal()].getPercentile(percentile) / 1000.0;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + operation);
+    }
+
+    @Override
+    public int getTreeHeight() {
+        // The B+ tree is only read under the lock of its storage
+        synchronized (storage) {
+            Node root = storage.getBPT();
+            return root == null ? 0 : root.getHeight();
+        }
+    }
+
+    @Override
+    public int getNumNodes() {
+        synchronized (storage) {
+            Node root = storage.getBPT();
+            return root == null ? 0 : Node.getTotalNodes(root);
+        }
+    }
+
+    @Override
+    public int getNumRecords() {
+        return storage.getNumRecords();
+    }
+
+    @Override
+    public int getNumBlocksUsed() {
+        return storage.getNumBlocksUsed();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            sb.append(String.format("%-13s %s%n", operation.getName(), histograms[operation.ordinal()]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a storage, exported through JMX. Latency maps
+ * are keyed by operation name, such as "search" or "readRecord"
+ */
+public interface StorageMetricsMXBean {
+
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * Operations per second since the metrics were created or last reset
+     */
+    Map<String, Double> getThroughput();
+
+    Map<String, Double> getMeanLatencyMicros();
+
+    Map<String, Double> getP50LatencyMicros();
+
+    Map<String, Double> getP99LatencyMicros();
+
+    Map<String, Double> getP999LatencyMicros();
+
+    Map<String, Double> getMaxLatencyMicros();
+
+    /**
+     * Latency of an operation at any percentile
+     *
+     * @param operation  name of the operation
+     * @param percentile percentage from 0 to 100
+     * @return latency in microseconds
+     */
+    double getLatencyMicros(String operation, double percentile);
+
+    int getTreeHeight();
+
+    /**
+     * Number of nodes of the B+ tree on numVotes, including posting lists
+     */
+    int getNumNodes();
+
+    int getNumRecords();
+
+    int getNumBlocksUsed();
+
+    void reset();
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class representing the health of a B+ tree: the fill factor and underfull node count
+ * of every level, the distribution of posting list lengths and the height. A tree
+ * worn by many insertions and deletions has half-full nodes and more nodes than its
+ * entries need, which a rebuild with {@link Storage#rebuildIndex(double)} fixes
+ */
+public class TreeHealthReport {
+
+    /**
+     * Number of nodes, entries, entry capacity and underfull nodes of every level,
+     * indexed by height
+     */
+    private final long[] nodes;
+    private final long[] entries;
+    private final long[] capacity;
+    private final long[] underfull;
+
+    /**
+     * Number of posting lists by length, where bucket i counts the lengths from 2^i to
+     * 2^(i + 1) - 1
+     */
+    private final long[] postingListLengths = new long[32];
+    private long numPostingLists;
+    private long numRecords;
+    private long numCompressed;
+    private int maxPostingListLength;
+
+    /**
+     * Build the report of a tree by visiting every node
+     *
+     * @param root root node of the tree, or null if the tree is empty
+     */
+    public TreeHealthReport(Node root) {
+        int levels = root == null ? 0 : root.getHeight() + 1;
+        nodes = new long[levels];
+        entries = new long[levels];
+        capacity = new long[levels];
+        underfull = new long[levels];
+        List<Node> level = new ArrayList<>();
+        if (root != null) {
+            level.add(root);
+        }
+        while (!level.isEmpty()) {
+            List<Node> children = new ArrayList<>();
+            for (Node node : level) {
+                int height = node.getHeight();
+                nodes[height]++;
+                entries[height] += node.getDegree();
+                if (!node.isRoot() && node.isUnderfull()) {
+                    underfull[height]++;
+                }
+                if (node instanceof LeafNode) {
+                    capacity[height] += Node.getN();
+                    RecordNode[] pointers = ((LeafNode) node).getPointers();
+                    for (int i = 0; i < node.getDegree(); i++) {
+                        addPostingList(pointers[i]);
+                    }
+                } else {
+                    capacity[height] += Node.getN() + 1;
+                    Node[] pointers = ((InternalNode) node).getPointers();
+                    for (int i = 0; i < node.getDegree(); i++) {
+                        children.add(pointers[i]);
+                    }
+                }
+            }
+            level = children;
+        }
+    }
+
+    private void addPostingList(RecordNode postingList) {
+        int size = postingList.getSize();
+        numPostingLists++;
+        numRecords += size;
+        if (postingList.isCompressed()) {
+            numCompressed++;
+        }
+        maxPostingListLength = Math.max(maxPostingListLength, size);
+        postingListLengths[31 - Integer.numberOfLeadingZeros(Math.max(1, size))]++;
+    }
+
+    /**
+     * Height of the tree, where a tree of a single leaf node has height 0
+     *
+     * @return height of the tree, or -1 if the tree is empty
+     */
+    public int getHeight() {
+        return nodes.length - 1;
+    }
+
+    public long getNumNodes(int height) {
+        return nodes[height];
+    }
+
+    public long getUnderfullCount(int height) {
+        return underfull[height];
+    }
+
+    /**
+     * Fraction of the entry capacity of the nodes at a height that is in use
+     *
+     * @param height height of the level, 0 for leaf nodes
+     * @return fill factor of the level
+     */
+    public double getFillFactor(int height) {
+        return capacity[height] == 0 ? 0 : (double) entries[height] / capacity[height];
+    }
+
+    /**
+     * Number of underfull nodes over all levels, not counting the root node
+     *
+     * @return number of underfull nodes
+     */
+    public long getUnderfullCount() {
+        long count = 0;
+        for (long levelCount : underfull) {
+            count += levelCount;
+        }
+        return count;
+    }
+
+    /**
+     * Number of nodes over all levels, including posting lists as counted by
+     * {@link Node#getTotalNodes(Node)}
+     *
+     * @return total number of nodes
+     */
+    public long getTotalNodes() {
+        long count = numPostingLists;
+        for (long levelCount : nodes) {
+            count += levelCount;
+        }
+        return count;
+    }
+
+    public long getNumPostingLists() {
+        return numPostingLists;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    public long getNumCompressedPostingLists() {
+        return numCompressed;
+    }
+
+    public int getMaxPostingListLength() {
+        return maxPostingListLength;
+    }
+
+    public double getMeanPostingListLength() {
+        return numPostingLists == 0 ? 0 : (double) numRecords / numPostingLists;
+    }
+
+    /**
+     * Number of posting lists with a length from 2^bucket to 2^(bucket + 1) - 1
+     *
+     * @param bucket index of the length bucket
+     * @return number of posting lists in the bucket
+     */
+    public long getPostingListCount(int bucket) {
+        return postingListLengths[bucket];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("height=%d nodes=%d underfull=%d%n", getHeight(), getTotalNodes(),
+                getUnderfullCount()));
+        for (int height = nodes.length - 1; height >= 0; height--) {
+            sb.append(String.format("  level %d: nodes=%d fill=%.1f%% underfull=%d%n", height, nodes[height],
+                    100 * getFillFactor(height), underfull[height]));
+        }
+        sb.append(String.format("posting lists=%d records=%d mean=%.2f max=%d compressed=%d%n", numPostingLists,
+                numRecords, getMeanPostingListLength(), maxPostingListLength, numCompressed));
+        for (int bucket = 0; bucket < postingListLengths.length; bucket++) {
+            if (postingListLengths[bucket] > 0) {
+                sb.append(String.format("  length %d-%d: %d%n", 1L << bucket, (1L << (bucket + 1)) - 1,
+                        postingListLengths[bucket]));
+            }
+        }
+        return sb.toString();
+    }
+}
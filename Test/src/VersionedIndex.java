@@ -0,0 +1,558 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * Class representing a copy-on-write B+ tree. Writers never modify a node reachable
+ * from a published version: they copy the nodes on the path to the modified leaf (and
+ * the siblings involved in a split, merge or redistribution), then publish the new root
+ * atomically. Readers pin the current version and traverse it without locks.
+ *
+ * Nodes are shared between versions, so they keep neither parent pointers nor right
+ * sibling links: every operation on a version descends from its root following keys
+ * and child pointers only. A superseded version stays reachable while a reader holds
+ * its snapshot, and the nodes it no longer shares with newer versions are garbage
+ * collected once the last snapshot is dropped
+ */
+public class VersionedIndex {
+
+    /**
+     * Class representing one published version of the tree
+     */
+    private static class Version {
+        private final long number;
+        private final Node root;
+
+        Version(long number, Node root) {
+            this.number = number;
+            this.root = root;
+        }
+    }
+
+    /**
+     * Latest published version
+     */
+    private final AtomicReference<Version> current;
+
+    /**
+     * Number of records stored in one block of the storage, to unpack record slots
+     */
+    private final int recordsPerBlock;
+
+    /**
+     * Construct a versioned tree starting from an existing tree, which must no longer be
+     * modified in place
+     *
+     * @param root            root node of the tree
+     * @param recordsPerBlock number of records stored in one block of the storage
+     */
+    public VersionedIndex(Node root, int recordsPerBlock) {
+        this.recordsPerBlock = recordsPerBlock;
+        this.current = new AtomicReference<>(new Version(0, root == null ? new LeafNode(true) : root));
+    }
+
+    /**
+     * Pin the latest version so that it stays consistent while it is read
+     *
+     * @return snapshot of the latest version
+     */
+    public Snapshot pin() {
+        return new Snapshot(current.get());
+    }
+
+    public Node getRoot() {
+        return current.get().root;
+    }
+
+    public long getVersion() {
+        return current.get().number;
+    }
+
+    /**
+     * Insert a record slot, publishing a new version
+     *
+     * @param key    key of the record
+     * @param slot   slot of the record (see {@link RecordPointer#toSlot(int)})
+     * @param rating averageRating of the record
+     */
+    public synchronized void insert(long key, int slot, float rating) {
+        Node root = current.get().root;
+        Node[] copy = new Node[1];
+        KeyNode split = insert(root, key, slot, rating, copy);
+        Node newRoot = copy[0];
+        if (split != null) {
+            long[] keys = new long[Node.getN()];
+            Node[] pointers = new Node[Node.getN() + 1];
+            keys[0] = split.getKey();
+            pointers[0] = copy[0];
+            pointers[1] = split.getNode();
+            newRoot = newInternal(root.getHeight() + 1, 2, keys, pointers);
+        }
+        publish(newRoot);
+    }
+
+    /**
+     * Delete every record pointer of a key, publishing a new version
+     *
+     * @param key key to delete
+     * @return posting list of the deleted key, or null if the key is absent
+     */
+    public synchronized RecordNode delete(long key) {
+        Node[] copy = new Node[1];
+        RecordNode removed = delete(current.get().root, key, copy);
+        if (removed != null) {
+            publish(shrink(copy[0]));
+        }
+        return removed;
+    }
+
+    /**
+     * Delete every record pointer with a key within the given bounds, publishing a
+     * single new version
+     *
+     * @param lower lower bound of keys to delete, inclusive
+     * @param upper upper bound of keys to delete, inclusive
+     * @param slots bitmap collecting the record slots of the deleted entries
+     * @return number of keys deleted
+     */
+    public synchronized int deleteRange(long lower, long upper, CompressedBitmap slots) {
+        Node root = current.get().root;
+        List<Long> keys = new ArrayList<>();
+        forEachKey(root, lower, upper, keys);
+        Node[] copy = new Node[1];
+        for (long key : keys) {
+            RecordNode removed = delete(root, key, copy);
+            removed.forEachSlot(slots::add);
+            root = shrink(copy[0]);
+        }
+        if (!keys.isEmpty()) {
+            publish(root);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Replace the slots of moved records in the posting list of their key, publishing a
+     * new version
+     *
+     * @param key      key of the records
+     * @param oldSlots slots the records were moved from
+     * @param newSlots slots the records were moved to, in the same order
+     * @return number of slots found and replaced
+     */
+    public synchronized int relocate(long key, int[] oldSlots, int[] newSlots) {
+        Node[] copy = new Node[1];
+        int replaced = relocate(current.get().root, key, oldSlots, newSlots, copy);
+        if (replaced > 0) {
+            publish(copy[0]);
+        }
+        return replaced;
+    }
+
+    /**
+     * Publish a new root. The root is always a node created by the write, since every
+     * write copies the path from the root
+     *
+     * @param root root node of the new version
+     */
+    private void publish(Node root) {
+        root.setRoot(true);
+        current.set(new Version(current.get().number + 1, root));
+    }
+
+    /**
+     * Path-copying insertion into a subtree
+     *
+     * @param node root of the subtree
+     * @param copy receives the copy of the subtree root
+     * @return separator key and right node if the copy was split, otherwise null
+     */
+    private KeyNode insert(Node node, long key, int slot, float rating, Node[] copy) {
+        int n = Node.getN();
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            int degree = leaf.getDegree();
+            long[] keys = leaf.getKeys();
+            int pos = 0;
+            while (pos < degree && keys[pos] < key) {
+                pos++;
+            }
+            if (pos < degree && keys[pos] == key) {
+                // Copy the posting list rather than adding to the shared one
+                RecordNode[] pointers = Arrays.copyOf(leaf.getPointers(), n);
+                pointers[pos] = copyOf(pointers[pos]);
+                pointers[pos].addSlot(slot, rating);
+                copy[0] = newLeaf(degree, Arrays.copyOf(keys, n), pointers);
+                return null;
+            }
+
+            long[] allKeys = new long[degree + 1];
+            RecordNode[] allPointers = new RecordNode[degree + 1];
+            System.arraycopy(keys, 0, allKeys, 0, pos);
+            System.arraycopy(leaf.getPointers(), 0, allPointers, 0, pos);
+            allKeys[pos] = key;
+            allPointers[pos] = new RecordNode(slot, rating);
+            System.arraycopy(keys, pos, allKeys, pos + 1, degree - pos);
+            System.arraycopy(leaf.getPointers(), pos, allPointers, pos + 1, degree - pos);
+            if (degree < n) {
+                copy[0] = newLeaf(degree + 1, Arrays.copyOf(allKeys, n), Arrays.copyOf(allPointers, n));
+                return null;
+            }
+
+            // Split as LeafNode.splitLeaf does
+            int mid = (int) Math.floor((n + 1) / 2.0);
+            copy[0] = newLeaf(mid, Arrays.copyOf(Arrays.copyOf(allKeys, mid), n),
+                    Arrays.copyOf(Arrays.copyOf(allPointers, mid), n));
+            LeafNode right = newLeaf(allKeys.length - mid, Arrays.copyOfRange(allKeys, mid, mid + n),
+                    Arrays.copyOfRange(allPointers, mid, mid + n));
+            return new KeyNode(allKeys[mid], right);
+        }
+
+        InternalNode internal = (InternalNode) node;
+        int child = internal.findIndexOfNode(key);
+        Node[] childCopy = new Node[1];
+        KeyNode split = insert(internal.getPointers()[child], key, slot, rating, childCopy);
+        int degree = internal.getDegree();
+        long[] keys = Arrays.copyOf(internal.getKeys(), n + 1);
+        Node[] pointers = Arrays.copyOf(internal.getPointers(), n + 2);
+        pointers[child] = childCopy[0];
+        if (split != null) {
+            System.arraycopy(keys, child, keys, child + 1, degree - 1 - child);
+            System.arraycopy(pointers, child + 1, pointers, child + 2, degree - 1 - child);
+            keys[child] = split.getKey();
+            pointers[child + 1] = split.getNode();
+            degree++;
+        }
+        if (degree <= n + 1) {
+            copy[0] = newInternal(internal.getHeight(), degree, Arrays.copyOf(keys, n), Arrays.copyOf(pointers, n + 1));
+            return null;
+        }
+
+        // Split as InternalNode.splitNode does, pushing the middle key up
+        int mid = (int) Math.ceil(n / 2.0);
+        copy[0] = newInternal(internal.getHeight(), mid + 1, Arrays.copyOf(Arrays.copyOf(keys, mid), n),
+                Arrays.copyOf(Arrays.copyOf(pointers, mid + 1), n + 1));
+        Node right = newInternal(internal.getHeight(), degree - mid - 1, Arrays.copyOfRange(keys, mid + 1, mid + 1 + n),
+                Arrays.copyOfRange(pointers, mid + 1, mid + 2 + n));
+        return new KeyNode(keys[mid], right);
+    }
+
+    /**
+     * Path-copying deletion of a key from a subtree. The copy may be left underfull, to
+     * be rebalanced by its parent
+     *
+     * @param node root of the subtree
+     * @param copy receives the copy of the subtree root
+     * @return posting list of the deleted key, or null if the key is absent
+     */
+    private RecordNode delete(Node node, long key, Node[] copy) {
+        int n = Node.getN();
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            int degree = leaf.getDegree();
+            long[] keys = leaf.getKeys();
+            int pos = 0;
+            while (pos < degree && keys[pos] < key) {
+                pos++;
+            }
+            if (pos == degree || keys[pos] != key) {
+                return null;
+            }
+            long[] newKeys = new long[n];
+            RecordNode[] newPointers = new RecordNode[n];
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            System.arraycopy(leaf.getPointers(), 0, newPointers, 0, pos);
+            System.arraycopy(keys, pos + 1, newKeys, pos, degree - pos - 1);
+            System.arraycopy(leaf.getPointers(), pos + 1, newPointers, pos, degree - pos - 1);
+            copy[0] = newLeaf(degree - 1, newKeys, newPointers);
+            return leaf.getPointers()[pos];
+        }
+
+        InternalNode internal = (InternalNode) node;
+        int child = internal.findIndexOfNode(key);
+        Node[] childCopy = new Node[1];
+        RecordNode removed = delete(internal.getPointers()[child], key, childCopy);
+        if (removed == null) {
+            return null;
+        }
+        int degree = internal.getDegree();
+        long[] keys = Arrays.copyOf(internal.getKeys(), n);
+        Node[] pointers = Arrays.copyOf(internal.getPointers(), n + 1);
+        pointers[child] = childCopy[0];
+        // Separators of other children stay valid, as every key right of one is still
+        // at least the separator
+        if (childCopy[0].isUnderfull() && degree > 1) {
+            degree = rebalance(keys, pointers, degree, child);
+        }
+        copy[0] = newInternal(internal.getHeight(), degree, keys, pointers);
+        return removed;
+    }
+
+    /**
+     * Rebalance an underfull child with an adjacent sibling, by merging them into a
+     * new node if they fit, otherwise by redistributing their entries into two new
+     * nodes. Only the separator between the two siblings is changed
+     *
+     * @param keys     separator keys, updated in place
+     * @param pointers child nodes, updated in place
+     * @param degree   number of child nodes
+     * @param child    position of the underfull child
+     * @return number of child nodes after rebalancing
+     */
+    private static int rebalance(long[] keys, Node[] pointers, int degree, int child) {
+        int n = Node.getN();
+        int left = child > 0 ? child - 1 : child;
+        Node a = pointers[left], b = pointers[left + 1];
+        if (a instanceof LeafNode) {
+            LeafNode x = (LeafNode) a, y = (LeafNode) b;
+            int total = x.getDegree() + y.getDegree();
+            long[] allKeys = new long[total];
+            RecordNode[] postings = new RecordNode[total];
+            System.arraycopy(x.getKeys(), 0, allKeys, 0, x.getDegree());
+            System.arraycopy(x.getPointers(), 0, postings, 0, x.getDegree());
+            System.arraycopy(y.getKeys(), 0, allKeys, x.getDegree(), y.getDegree());
+            System.arraycopy(y.getPointers(), 0, postings, x.getDegree(), y.getDegree());
+            if (total <= n) {
+                pointers[left] = newLeaf(total, Arrays.copyOf(allKeys, n), Arrays.copyOf(postings, n));
+                return removeChild(keys, pointers, degree, left);
+            }
+            int half = total / 2;
+            pointers[left] = newLeaf(half, Arrays.copyOf(Arrays.copyOf(allKeys, half), n),
+                    Arrays.copyOf(Arrays.copyOf(postings, half), n));
+            pointers[left + 1] = newLeaf(total - half, Arrays.copyOfRange(allKeys, half, half + n),
+                    Arrays.copyOfRange(postings, half, half + n));
+            keys[left] = allKeys[half];
+            return degree;
+        }
+
+        // The separator between the siblings moves down between their children
+        InternalNode x = (InternalNode) a, y = (InternalNode) b;
+        int total = x.getDegree() + y.getDegree();
+        long[] allKeys = new long[total - 1];
+        Node[] children = new Node[total];
+        System.arraycopy(x.getKeys(), 0, allKeys, 0, x.getDegree() - 1);
+        allKeys[x.getDegree() - 1] = keys[left];
+        System.arraycopy(y.getKeys(), 0, allKeys, x.getDegree(), y.getDegree() - 1);
+        System.arraycopy(x.getPointers(), 0, children, 0, x.getDegree());
+        System.arraycopy(y.getPointers(), 0, children, x.getDegree(), y.getDegree());
+        if (total <= n + 1) {
+            pointers[left] = newInternal(x.getHeight(), total, Arrays.copyOf(allKeys, n),
+                    Arrays.copyOf(children, n + 1));
+            return removeChild(keys, pointers, degree, left);
+        }
+        // Redistribute, moving the key between the two halves up as the new separator
+        int half = total / 2;
+        pointers[left] = newInternal(x.getHeight(), half, Arrays.copyOf(Arrays.copyOf(allKeys, half - 1), n),
+                Arrays.copyOf(Arrays.copyOf(children, half), n + 1));
+        pointers[left + 1] = newInternal(x.getHeight(), total - half, Arrays.copyOfRange(allKeys, half, half + n),
+                Arrays.copyOfRange(children, half, half + n + 1));
+        keys[left] = allKeys[half - 1];
+        return degree;
+    }
+
+    /**
+     * Remove a separator key and the child node to its right
+     *
+     * @param keys     separator keys, updated in place
+     * @param pointers child nodes, updated in place
+     * @param degree   number of child nodes
+     * @param pos      position of the separator key
+     * @return number of child nodes left
+     */
+    private static int removeChild(long[] keys, Node[] pointers, int degree, int pos) {
+        System.arraycopy(keys, pos + 1, keys, pos, degree - pos - 2);
+        keys[degree - 2] = 0;
+        System.arraycopy(pointers, pos + 2, pointers, pos + 1, degree - pos - 2);
+        pointers[degree - 1] = null;
+        return degree - 1;
+    }
+
+    /**
+     * Replace an internal root left with a single child by that child
+     */
+    private static Node shrink(Node root) {
+        while (root instanceof InternalNode && root.getDegree() == 1) {
+            root = ((InternalNode) root).getPointers()[0];
+        }
+        return root;
+    }
+
+    /**
+     * Path-copying replacement of the slots of a posting list
+     *
+     * @param node root of the subtree
+     * @param copy receives the copy of the subtree root
+     * @return number of slots replaced
+     */
+    private int relocate(Node node, long key, int[] oldSlots, int[] newSlots, Node[] copy) {
+        int n = Node.getN();
+        if (node instanceof LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            for (int i = 0; i < leaf.getDegree(); i++) {
+                if (leaf.getKeys()[i] == key) {
+                    RecordNode postings = copyOf(leaf.getPointers()[i]);
+                    int replaced = postings.replaceSlots(oldSlots, newSlots);
+                    RecordNode[] pointers = Arrays.copyOf(leaf.getPointers(), n);
+                    pointers[i] = postings;
+                    copy[0] = newLeaf(leaf.getDegree(), Arrays.copyOf(leaf.getKeys(), n), pointers);
+                    return replaced;
+                }
+            }
+            return 0;
+        }
+        InternalNode internal = (InternalNode) node;
+        int child = internal.findIndexOfNode(key);
+        Node[] childCopy = new Node[1];
+        int replaced = relocate(internal.getPointers()[child], key, oldSlots, newSlots, childCopy);
+        if (replaced > 0) {
+            Node[] pointers = Arrays.copyOf(internal.getPointers(), n + 1);
+            pointers[child] = childCopy[0];
+            copy[0] = newInternal(internal.getHeight(), internal.getDegree(), Arrays.copyOf(internal.getKeys(), n),
+                    pointers);
+        }
+        return replaced;
+    }
+
+    /**
+     * Collect the keys of a subtree within the given bounds in ascending order
+     */
+    private static void forEachKey(Node node, long lower, long upper, List<Long> keys) {
+        if (node instanceof LeafNode) {
+            for (int i = 0; i < node.getDegree(); i++) {
+                long key = node.getKeys()[i];
+                if (lower <= key && key <= upper) {
+                    keys.add(key);
+                }
+            }
+            return;
+        }
+        InternalNode internal = (InternalNode) node;
+        for (int i = internal.findIndexOfNode(lower); i < internal.getDegree(); i++) {
+            if (i > 0 && internal.getKeys()[i - 1] > upper) {
+                break;
+            }
+            forEachKey(internal.getPointers()[i], lower, upper, keys);
+        }
+    }
+
+    private static LeafNode newLeaf(int degree, long[] keys, RecordNode[] pointers) {
+        return new LeafNode(degree, false, keys, pointers);
+    }
+
+    private static InternalNode newInternal(int height, int degree, long[] keys, Node[] pointers) {
+        return new InternalNode(height, degree, false, keys, pointers);
+    }
+
+    private static RecordNode copyOf(RecordNode postings) {
+        return new RecordNode(postings.getSlots(), postings.getSize(), postings.getRatingSum());
+    }
+
+    /**
+     * Class representing a pinned version of the tree, read without locks. Reads do not
+     * record node accesses, since the access log of the storage is not thread-safe
+     */
+    public class Snapshot {
+
+        private final Version version;
+
+        private Snapshot(Version version) {
+            this.version = version;
+        }
+
+        public long getVersion() {
+            return version.number;
+        }
+
+        public Node getRoot() {
+            return version.root;
+        }
+
+        /**
+         * Search for records with a key within the given bounds
+         *
+         * @param lower lower bound of the search key, inclusive
+         * @param upper upper bound of the search key, inclusive
+         * @return record addresses in key order
+         */
+        public ArrayList<RecordPointer> search(long lower, long upper) {
+            ArrayList<RecordPointer> results = new ArrayList<>();
+            forEachSlot(lower, upper, slot -> results.add(RecordPointer.fromSlot(slot, recordsPerBlock)));
+            return results;
+        }
+
+        /**
+         * Visit the record slots with a key within the given bounds in key order, by
+         * descending into every child node overlapping the range
+         *
+         * @param lower  lower bound of the search key, inclusive
+         * @param upper  upper bound of the search key, inclusive
+         * @param action action to run on each slot
+         */
+        public void forEachSlot(long lower, long upper, IntConsumer action) {
+            forEachSlot(version.root, lower, upper, action);
+        }
+
+        private void forEachSlot(Node node, long lower, long upper, IntConsumer action) {
+            if (node instanceof LeafNode) {
+                LeafNode leaf = (LeafNode) node;
+                for (int i = 0; i < leaf.getDegree(); i++) {
+                    long key = leaf.getKeys()[i];
+                    if (upper < key) {
+                        return;
+                    } else if (lower <= key) {
+                        leaf.getPointers()[i].forEachSlot(action);
+                    }
+                }
+                return;
+            }
+            InternalNode internal = (InternalNode) node;
+            for (int i = internal.findIndexOfNode(lower); i < internal.getDegree(); i++) {
+                if (i > 0 && internal.getKeys()[i - 1] > upper) {
+                    return;
+                }
+                forEachSlot(internal.getPointers()[i], lower, upper, action);
+            }
+        }
+
+        /**
+         * Count records with a key within the given bounds from the subtree counts
+         *
+         * @param lower lower bound of the search key, inclusive
+         * @param upper upper bound of the search key, inclusive
+         * @return number of records
+         */
+        public long countRange(long lower, long upper) {
+            if (upper < lower) {
+                return 0;
+            }
+            return prefix(upper, true) - prefix(lower, false);
+        }
+
+        /**
+         * Count records with a key smaller than (or equal to) the search key
+         */
+        private long prefix(long key, boolean inclusive) {
+            long total = 0;
+            Node node = version.root;
+            while (node instanceof InternalNode) {
+                InternalNode internal = (InternalNode) node;
+                int child = internal.findIndexOfNode(key);
+                for (int i = 0; i < child; i++) {
+                    total += internal.getCounts()[i];
+                }
+                node = internal.getPointers()[child];
+            }
+            LeafNode leaf = (LeafNode) node;
+            for (int i = 0; i < leaf.getDegree(); i++) {
+                long k = leaf.getKeys()[i];
+                if (k > key || (k == key && !inclusive)) {
+                    break;
+                }
+                total += leaf.getPointers()[i].getSize();
+            }
+            return total;
+        }
+    }
+}
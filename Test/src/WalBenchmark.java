@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Benchmark of write-ahead log commit throughput against the group commit size, with
+ * concurrent writers inserting records into the storage
+ */
+public class WalBenchmark implements Constants {
+
+    private static final int NUM_WRITERS = 16;
+    private static final int RECORDS_PER_WRITER = 500;
+    private static final long MAX_DELAY_MICROS = 200;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.out.println("Running WAL Benchmark");
+        System.out.printf("%d writers, %d records each%n", NUM_WRITERS, RECORDS_PER_WRITER);
+        System.out.printf("%10s %12s %10s %14s%n", "groupSize", "commits/s", "syncs", "commits/sync");
+
+        for (int groupSize : new int[] { 1, 2, 4, 8, 16, 32, 64 }) {
+            Path path = Files.createTempFile("wal", ".log");
+            Storage st = new Storage(BLOCK_SIZE_1, RECORD_SIZE, MEMORY_SIZE);
+            WriteAheadLog wal = new WriteAheadLog(path, groupSize, MAX_DELAY_MICROS);
+            st.setWriteAheadLog(wal);
+
+            Thread[] writers = new Thread[NUM_WRITERS];
+            for (int w = 0; w < NUM_WRITERS; w++) {
+                int writer = w;
+                writers[w] = new Thread(() -> {
+                    for (int i = 0; i < RECORDS_PER_WRITER; i++) {
+                        st.createRecord(String.format("tt%02d%05d", writer, i), 5.0f, i);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long commits = (long) NUM_WRITERS * RECORDS_PER_WRITER;
+            long syncs = wal.getNumSyncs();
+            System.out.printf("%10d %12.0f %10d %14.1f%n", groupSize, commits / seconds, syncs,
+                    (double) commits / syncs);
+            wal.close();
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Class representing an append-only write-ahead log of storage mutations on local disk.
+ * Entries are appended to an in-memory buffer, and a flusher thread writes and syncs
+ * the buffer once enough committers are waiting or the oldest has waited long enough,
+ * so that many writers share one fsync (group commit)
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    /**
+     * Entry types
+     */
+    public static final byte INSERT = 1;
+    public static final byte DELETE = 2;
+    public static final byte INDEX_DELETE = 3;
+    public static final byte INDEX_DELETE_RANGE = 4;
+    public static final byte VACUUM = 5;
+    public static final byte INDEX_INSERT = 6;
+
+    /**
+     * Size of the tconst field of an insert entry
+     */
+    private static final int TCONST_SIZE = 10;
+
+    /**
+     * Size of the entry header (length and type) and trailer (checksum)
+     */
+    private static final int HEADER_SIZE = 5;
+    private static final int TRAILER_SIZE = 4;
+
+    /**
+     * Channel of the log file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Number of waiting committers that triggers a sync
+     */
+    private final int groupSize;
+
+    /**
+     * Longest time a committer waits for others to join its group, in nanoseconds
+     */
+    private final long maxDelayNanos;
+
+    /**
+     * Lock guarding the buffers and sequence numbers
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition waiting = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    /**
+     * Buffer of appended entries not yet written, and the buffer being written
+     */
+    private ByteBuffer buffer;
+    private ByteBuffer spare;
+
+    /**
+     * Sequence number of the last appended entry, of the last entry being written, and
+     * of the last durable entry
+     */
+    private long appendedLsn;
+    private long flushingLsn;
+    private long durableLsn;
+
+    /**
+     * Number of committers waiting for entries not yet being written
+     */
+    private int waiters;
+
+    /**
+     * Number of syncs performed
+     */
+    private long numSyncs;
+
+    /**
+     * Failure of the flusher thread, if any
+     */
+    private IOException failure;
+
+    private boolean closed;
+    private final Thread flusher;
+
+    /**
+     * Open a log file for appending, creating it if needed
+     *
+     * @param path          path of the log file
+     * @param groupSize     number of waiting committers that triggers a sync
+     * @param maxDelayMicros longest time a committer waits for others to join its group
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(Path path, int groupSize, long maxDelayMicros) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.groupSize = Math.max(1, groupSize);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.buffer = ByteBuffer.allocate(1 << 16);
+        this.spare = ByteBuffer.allocate(1 << 16);
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Append the insertion of a record into a slot
+     *
+     * @param slot     slot of the record
+     * @param tconst   tconst of the record
+     * @param rating   averageRating of the record
+     * @param numVotes numVotes of the record
+     * @return sequence number of the entry
+     */
+    public long logInsert(int slot, String tconst, float rating, int numVotes) {
+        byte[] bytes = new byte[TCONST_SIZE];
+        byte[] ascii = tconst.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(ascii, 0, bytes, 0, Math.min(ascii.length, TCONST_SIZE));
+        ByteBuffer payload = ByteBuffer.allocate(4 + TCONST_SIZE + 4 + 4);
+        payload.putInt(slot).put(bytes).putFloat(rating).putInt(numVotes);
+        return append(INSERT, payload.array());
+    }
+
+    /**
+     * Append the deletion of the record in a slot
+     *
+     * @param slot slot of the record
+     * @return sequence number of the entry
+     */
+    public long logDelete(int slot) {
+        return append(DELETE, ByteBuffer.allocate(4).putInt(slot).array());
+    }
+
+    /**
+     * Append the insertion of a record into the B+ tree, which is replayed by reading
+     * the record back from its slot
+     *
+     * @param slot slot of the inserted record
+     * @return sequence number of the entry
+     */
+    public long logIndexInsert(int slot) {
+        return append(INDEX_INSERT, ByteBuffer.allocate(4).putInt(slot).array());
+    }
+
+    /**
+     * Append the deletion of a key from the B+ tree
+     *
+     * @param key deleted key
+     * @return sequence number of the entry
+     */
+    public long logIndexDelete(long key) {
+        return append(INDEX_DELETE, ByteBuffer.allocate(8).putLong(key).array());
+    }
+
+    /**
+     * Append the deletion of a range of keys from the B+ tree
+     *
+     * @param lower lower bound of deleted keys, inclusive
+     * @param upper upper bound of deleted keys, inclusive
+     * @return sequence number of the entry
+     */
+    public long logIndexDeleteRange(long lower, long upper) {
+        return append(INDEX_DELETE_RANGE, ByteBuffer.allocate(16).putLong(lower).putLong(upper).array());
+    }
+
+    /**
+     * Append a vacuum of the storage, which is replayed by running it again on the
+     * same state
+     *
+     * @param numBlocks number of blocks released
+     * @return sequence number of the entry
+     */
+    public long logVacuum(int numBlocks) {
+        return append(VACUUM, ByteBuffer.allocate(4).putInt(numBlocks).array());
+    }
+
+    /**
+     * Append an entry to the buffer as length, type, payload and checksum
+     *
+     * @param type    entry type
+     * @param payload entry payload
+     * @return sequence number of the entry
+     */
+    private long append(byte type, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(payload);
+        lock.lock();
+        try {
+            int size = HEADER_SIZE + payload.length + TRAILER_SIZE;
+            if (buffer.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            buffer.putInt(payload.length).put(type).put(payload).putInt((int) crc.getValue());
+            return ++appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every entry up to the given sequence number is durable
+     *
+     * @param lsn sequence number returned when appending
+     * @throws UncheckedIOException if syncing the log failed
+     * @throws IllegalStateException if the log was closed before the entry was durable
+     */
+    public void commit(long lsn) {
+        lock.lock();
+        try {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            if (lsn > flushingLsn) {
+                // Join the group of the next sync
+                waiters++;
+                waiting.signal();
+            }
+            while (durableLsn < lsn && failure == null && !closed) {
+                durable.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+            if (durableLsn < lsn) {
+                throw new IllegalStateException("Log closed before entry " + lsn + " was durable");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every appended entry is durable
+     */
+    public void flush() {
+        commit(getAppendedLsn());
+    }
+
+    /**
+     * Sequence number of the last appended entry, to commit a group of entries
+     * appended under a lock of the caller once the lock is released
+     *
+     * @return sequence number of the last appended entry
+     */
+    public long getAppendedLsn() {
+        lock.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flusher thread: wait for a group of committers, then write and sync their entries
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer out;
+            long upto;
+            lock.lock();
+            try {
+                while (waiters == 0 && !closed) {
+                    waiting.awaitUninterruptibly();
+                }
+                // Give other writers a chance to join the group
+                long remaining = maxDelayNanos;
+                while (waiters < groupSize && remaining > 0 && !closed) {
+                    try {
+                        remaining = waiting.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        remaining = 0;
+                    }
+                }
+                if (closed && buffer.position() == 0) {
+                    return;
+                }
+                out = buffer;
+                buffer = spare;
+                upto = appendedLsn;
+                flushingLsn = upto;
+                waiters = 0;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            out.clear();
+
+            lock.lock();
+            try {
+                spare = out;
+                numSyncs++;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableLsn = upto;
+                }
+                durable.signalAll();
+                if (error != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Discard every entry of the log, once its effects are persisted elsewhere
+     *
+     * @throws IOException if the file cannot be truncated
+     */
+    public void truncate() throws IOException {
+        flush();
+        lock.lock();
+        try {
+            channel.truncate(0);
+            channel.force(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNumSyncs() {
+        lock.lock();
+        try {
+            return numSyncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDurableLsn() {
+        lock.lock();
+        try {
+            return durableLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sync every appended entry and close the log file
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        lock.lock();
+        try {
+            closed = true;
+            waiting.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Handler of replayed log entries
+     */
+    public interface Replayer {
+        void insert(int slot, String tconst, float rating, int numVotes);
+
+        void delete(int slot);
+
+        void indexInsert(int slot);
+
+        void indexDelete(long key);
+
+        void indexDeleteRange(long lower, long upper);
+
+        void vacuum(int numBlocks);
+    }
+
+    /**
+     * Replay the entries of a log file in order, stopping at the first torn or
+     * corrupted entry
+     *
+     * @param path     path of the log file
+     * @param replayer handler of the entries
+     * @return number of entries replayed
+     * @throws IOException if the file cannot be read
+     */
+    public static long replay(Path path, Replayer replayer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        long count = 0;
+        while (data.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+            int start = data.position();
+            int length = data.getInt();
+            byte type = data.get();
+            if (length < 0 || data.remaining() < length + TRAILER_SIZE) {
+                break;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(type);
+            crc.update(data.array(), start + HEADER_SIZE, length);
+            ByteBuffer payload = ByteBuffer.wrap(data.array(), start + HEADER_SIZE, length).slice();
+            data.position(start + HEADER_SIZE + length);
+            if (data.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            switch (type) {
+                case INSERT:
+                    int slot = payload.getInt();
+                    byte[] tconst = new byte[TCONST_SIZE];
+                    payload.get(tconst);
+                    int end = 0;
+                    while (end < TCONST_SIZE && tconst[end] != 0) {
+                        end++;
+                    }
+                    replayer.insert(slot, new String(tconst, 0, end, StandardCharsets.US_ASCII), payload.getFloat(),
+                            payload.getInt());
+                    break;
+                case DELETE:
+                    replayer.delete(payload.getInt());
+                    break;
+                case INDEX_INSERT:
+                    replayer.indexInsert(payload.getInt());
+                    break;
+                case INDEX_DELETE:
+                    replayer.indexDelete(payload.getLong());
+                    break;
+                case INDEX_DELETE_RANGE:
+                    replayer.indexDeleteRange(payload.getLong(), payload.getLong());
+                    break;
+                case VACUUM:
+                    replayer.vacuum(payload.getInt());
+                    break;
+                default:
+                    return count;
+            }
+            count++;
+        }
+        return count;
+    }
+}